@@ -0,0 +1,58 @@
+package com.wagmorelabs.biscuit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures get() and getString() for each algorithm using the small and large fixtures from the test resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GetBenchmark {
+    @Param({"aesgcm256", "secretbox", "none"})
+    public String algorithm;
+
+    @Param({"small", "big"})
+    public String size;
+
+    private Biscuit biscuit;
+    private String name;
+
+    @Setup
+    public void setUp() {
+        biscuit = new Biscuit.Builder().build();
+        biscuit.read(new InputStreamReader(BiscuitTest.class.getResourceAsStream("secrets.yml"),
+                Charset.forName("UTF-8")));
+        name = "k-" + algorithm + ("big".equals(size) ? "-big" : "");
+        if (biscuit.get(name) == null) {
+            throw new IllegalStateException("Unable to decrypt " + name);
+        }
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return biscuit.get(name);
+    }
+
+    @Benchmark
+    public String getString() {
+        return biscuit.getString(name);
+    }
+}
@@ -0,0 +1,93 @@
+package com.wagmorelabs.biscuit;
+
+import com.amazonaws.services.kms.AbstractAWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures KmsKeyManager.decrypt() against an in-process AWSKMS stub that echoes the ciphertext after a fixed delay.
+ * Each thread decrypts its own secret, so concurrent calls are not coalesced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KmsKeyManagerBenchmark {
+    @Param({"0", "1000"})
+    public long latencyMicros;
+
+    private KmsKeyManager keyManager;
+
+    /**
+     * A KMS stub that returns the ciphertext blob as the plaintext key.
+     */
+    private static class LatencyKms extends AbstractAWSKMS {
+        private final long latencyNanos;
+
+        LatencyKms(long latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public DecryptResult decrypt(DecryptRequest request) {
+            if (latencyNanos > 0) {
+                LockSupport.parkNanos(latencyNanos);
+            }
+            return new DecryptResult().withPlaintext(request.getCiphertextBlob());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Secret {
+        private static final AtomicInteger threads = new AtomicInteger();
+        private final String name = "secret-" + threads.incrementAndGet();
+        private final byte[] keyCiphertext = new byte[184];
+    }
+
+    @Setup
+    public void setUp() {
+        LatencyKms kms = new LatencyKms(TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+        keyManager = new KmsKeyManager(region -> kms, "us-west-2");
+    }
+
+    private byte[] decrypt(Secret secret) {
+        return keyManager.decrypt("arn:aws:kms:us-west-2:123456789012:alias/biscuit-x", secret.keyCiphertext,
+                secret.name);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] decrypt1(Secret secret) {
+        return decrypt(secret);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[] decrypt8(Secret secret) {
+        return decrypt(secret);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public byte[] decrypt64(Secret secret) {
+        return decrypt(secret);
+    }
+}
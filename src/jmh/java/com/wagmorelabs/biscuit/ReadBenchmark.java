@@ -0,0 +1,75 @@
+package com.wagmorelabs.biscuit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Biscuit.readFile() and Biscuit.readMapped() on generated secret files of various sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int secrets;
+
+    private Path file;
+    private Path compiled;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("biscuit-read-benchmark", ".yml");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, Charset.forName("UTF-8"))) {
+            for (int i = 0; i < secrets; i++) {
+                writer.write("secret-" + i + ":\n" +
+                        "- key_id: arn:aws:kms:us-west-2:123456789012:alias/biscuit-x\n" +
+                        "  key_manager: testing\n" +
+                        "  key_ciphertext: eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXk=\n" +
+                        "  algorithm: aesgcm256\n" +
+                        "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n");
+            }
+        }
+        compiled = Files.createTempFile("biscuit-read-benchmark", ".bin");
+        Biscuit.compileMapped(file, compiled);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(compiled);
+    }
+
+    @Benchmark
+    public Biscuit readFile() throws IOException {
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.readFile(file.toString());
+        return biscuit;
+    }
+
+    @Benchmark
+    public Biscuit readMapped() throws IOException {
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.readMapped(compiled);
+        return biscuit;
+    }
+}
@@ -0,0 +1,278 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load tests of Biscuit and KmsKeyManager against {@link FakeKms}, run by the loadTest task rather than test. The
+ * assertions about each run carry its throughput and latency percentiles in their messages.
+ */
+public class KmsLoadTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final SecureRandom random = new SecureRandom();
+    // failed entries are logged with a stack trace each; keep the output readable
+    private static final Logger[] loggers = {
+            Logger.getLogger(Biscuit.class.getName()), Logger.getLogger(KmsKeyManager.class.getName())};
+
+    @BeforeClass
+    public static void quiet() {
+        for (Logger logger : loggers) {
+            logger.setLevel(Level.SEVERE);
+        }
+    }
+
+    @AfterClass
+    public static void restore() {
+        for (Logger logger : loggers) {
+            logger.setLevel(null);
+        }
+    }
+
+    /**
+     * secrets() generates a secrets document in which each secret has one aesgcm256 entry per region, with the data
+     * key encrypted by that region's KMS.
+     */
+    private static String secrets(FakeKms kms, int count, String... regions) throws GeneralSecurityException {
+        StringBuilder yaml = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String name = "secret-" + i;
+            byte[] dataKey = new byte[32];
+            random.nextBytes(dataKey);
+            String ciphertext = DatatypeConverter.printBase64Binary(aesGcm(dataKey, ("value-" + i).getBytes(UTF8)));
+            yaml.append(name).append(":\n");
+            for (String region : regions) {
+                String keyArn = kms.region(region).keyArn("biscuit");
+                yaml.append("- key_id: ").append(keyArn).append("\n")
+                        .append("  key_manager: kms\n")
+                        .append("  key_ciphertext: ")
+                        .append(DatatypeConverter.printBase64Binary(kms.encrypt(keyArn, dataKey, name))).append("\n")
+                        .append("  algorithm: aesgcm256\n")
+                        .append("  ciphertext: ").append(ciphertext).append("\n");
+            }
+        }
+        return yaml.toString();
+    }
+
+    private static byte[] aesGcm(byte[] key, byte[] plaintext) throws GeneralSecurityException {
+        byte[] nonce = new byte[12];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
+        byte[] sealed = cipher.doFinal(plaintext);
+        // Biscuit's format is [message][nonce]
+        return ByteBuffer.allocate(sealed.length + nonce.length).put(sealed).put(nonce).array();
+    }
+
+    /**
+     * Load is the outcome of a run.
+     */
+    private static final class Load {
+        final long successes;
+        final long failures;
+        final String summary;
+
+        Load(long successes, long failures, String summary) {
+            this.successes = successes;
+            this.failures = failures;
+            this.summary = summary;
+        }
+
+        @Override
+        public String toString() {
+            return summary;
+        }
+    }
+
+    /**
+     * run() calls get() from many threads for the given duration, cycling through the secrets, and summarizes the
+     * throughput and latency percentiles of the lookups.
+     */
+    private static Load run(String label, Biscuit biscuit, InMemoryMetrics metrics, int secrets, int threads,
+                            Duration duration) throws Exception {
+        LongAdder successes = new LongAdder();
+        LongAdder failures = new LongAdder();
+        InMemoryMetrics.Histogram latency = new InMemoryMetrics.Histogram();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + duration.toNanos();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            futures.add(pool.submit(() -> {
+                for (int i = seed; System.nanoTime() < deadline; i += threads) {
+                    String name = "secret-" + (i % secrets);
+                    long start = System.nanoTime();
+                    byte[] value = biscuit.get(name);
+                    latency.record(System.nanoTime() - start);
+                    if (value == null) {
+                        failures.increment();
+                    } else {
+                        assertEquals("value-" + (i % secrets), new String(value, UTF8));
+                        successes.increment();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(duration.getSeconds() + 30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        double seconds = duration.toNanos() / 1e9;
+        String summary = String.format("%s: %d threads, %.0f lookups/s, %d failed, p50 < %dus, p99 < %dus, "
+                        + "p99.9 < %dus, KMS errors %s",
+                label, threads, (successes.sum() + failures.sum()) / seconds, failures.sum(),
+                latency.percentileNanos(50) / 1000, latency.percentileNanos(99) / 1000,
+                latency.percentileNanos(99.9) / 1000, metrics.kmsErrors());
+        return new Load(successes.sum(), failures.sum(), summary);
+    }
+
+    private static Biscuit biscuit(FakeKms kms, InMemoryMetrics metrics, boolean keyCache) {
+        return builder(kms, metrics, keyCache).build();
+    }
+
+    private static Biscuit.Builder builder(FakeKms kms, InMemoryMetrics metrics, boolean keyCache) {
+        Biscuit.Builder builder = new Biscuit.Builder()
+                .withKeyManager(new KmsKeyManager(kms, "us-west-2").withMetrics(metrics))
+                .withMetrics(metrics);
+        if (keyCache) {
+            builder.withKeyCache(10000, Duration.ofMinutes(5));
+        }
+        return builder;
+    }
+
+    @Test
+    public void enforcesEncryptionContext() throws GeneralSecurityException {
+        FakeKms kms = new FakeKms();
+        Biscuit biscuit = biscuit(kms, new InMemoryMetrics(), false);
+        biscuit.read(new StringReader(secrets(kms, 1, "us-west-2").replace("secret-0:", "renamed:")));
+        assertNull(biscuit.get("renamed"));
+        biscuit.read(new StringReader(secrets(kms, 1, "us-west-2")));
+        assertEquals("value-0", biscuit.getString("secret-0"));
+    }
+
+    @Test
+    public void steadyLatency() throws Exception {
+        FakeKms kms = new FakeKms();
+        kms.region("us-west-2").latency(FakeKms.Latency.logNormal(500, 0.5, TimeUnit.MICROSECONDS));
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = biscuit(kms, metrics, false);
+        biscuit.read(new StringReader(secrets(kms, 100, "us-west-2")));
+        Load load = run("steady", biscuit, metrics, 100, 16, Duration.ofSeconds(1));
+        assertEquals(load.summary, 0, load.failures);
+        // concurrent lookups of the same secret share a request
+        assertTrue(load.summary, kms.region("us-west-2").requests.sum() <= load.successes);
+    }
+
+    @Test
+    public void throttling() throws Exception {
+        FakeKms kms = new FakeKms();
+        kms.region("us-west-2").throttleAbove(200);
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = biscuit(kms, metrics, false);
+        biscuit.read(new StringReader(secrets(kms, 100, "us-west-2")));
+        Load load = run("throttled", biscuit, metrics, 100, 8, Duration.ofSeconds(1));
+        assertTrue(load.summary, load.failures > 0);
+        assertEquals(load.summary, Long.valueOf(kms.region("us-west-2").throttled.sum()),
+                metrics.kmsErrors().get("us-west-2:ThrottlingException"));
+
+        // with a key cache, each data key is requested once and the rest of the lookups stay under the limit
+        FakeKms cachedKms = new FakeKms();
+        cachedKms.region("us-west-2").throttleAbove(200);
+        InMemoryMetrics cachedMetrics = new InMemoryMetrics();
+        Biscuit cached = biscuit(cachedKms, cachedMetrics, true);
+        cached.read(new StringReader(secrets(cachedKms, 100, "us-west-2")));
+        Load cachedLoad = run("throttled, key cache", cached, cachedMetrics, 100, 8, Duration.ofSeconds(1));
+        assertEquals(cachedLoad.summary, 0, cachedLoad.failures);
+        assertTrue(cachedLoad.summary, cachedKms.region("us-west-2").requests.sum() < 200);
+    }
+
+    @Test
+    public void regionalErrors() throws Exception {
+        FakeKms kms = new FakeKms();
+        kms.region("us-west-2").errorRate(0.5).latency(FakeKms.Latency.fixed(200, TimeUnit.MICROSECONDS));
+        kms.region("us-east-1").latency(FakeKms.Latency.withSlowFraction(
+                FakeKms.Latency.fixed(200, TimeUnit.MICROSECONDS), 0.01,
+                FakeKms.Latency.fixed(5, TimeUnit.MILLISECONDS)));
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = biscuit(kms, metrics, false);
+        biscuit.read(new StringReader(secrets(kms, 100, "us-west-2", "us-east-1")));
+        Load load = run("regional errors", biscuit, metrics, 100, 16, Duration.ofSeconds(1));
+        assertEquals(load.summary, 0, load.failures);
+        long fallbacks = 0;
+        for (long count : metrics.entryFallbacks().values()) {
+            fallbacks += count;
+        }
+        long errors = kms.region("us-west-2").errors.sum();
+        assertEquals(load.summary, Long.valueOf(errors), metrics.kmsErrors().get("us-west-2:KMSInternalException"));
+        // every lookup that shared a failed request falls back
+        assertTrue(load.summary, fallbacks >= errors);
+    }
+
+    @Test
+    public void regionalOutage() throws Exception {
+        FakeKms kms = new FakeKms();
+        kms.region("us-west-2").errorRate(1).latency(FakeKms.Latency.fixed(2, TimeUnit.MILLISECONDS));
+        kms.region("us-east-1").latency(FakeKms.Latency.fixed(200, TimeUnit.MICROSECONDS));
+        String secrets = secrets(kms, 100, "us-west-2", "us-east-1");
+
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = builder(kms, metrics, false).withCircuitBreaker(5, Duration.ofSeconds(30)).build();
+        biscuit.read(new StringReader(secrets));
+        Load load = run("regional outage, circuit breaker", biscuit, metrics, 100, 16, Duration.ofSeconds(1));
+        assertEquals(load.summary, 0, load.failures);
+        // every secret pays for the dead region at most until the breaker opens or its winner is remembered
+        assertTrue(load.summary, kms.region("us-west-2").requests.sum() <= 100);
+        for (PathHealth path : biscuit.health()) {
+            assertEquals(load.summary,
+                    "us-west-2".equals(path.region()) ? PathHealth.State.OPEN : PathHealth.State.CLOSED,
+                    path.state());
+        }
+    }
+
+    @Test
+    public void hedging() throws Exception {
+        FakeKms kms = new FakeKms();
+        kms.region("us-west-2").latency(FakeKms.Latency.withSlowFraction(
+                FakeKms.Latency.fixed(200, TimeUnit.MICROSECONDS), 0.05,
+                FakeKms.Latency.fixed(50, TimeUnit.MILLISECONDS)));
+        kms.region("us-east-1").latency(FakeKms.Latency.fixed(200, TimeUnit.MICROSECONDS));
+        String secrets = secrets(kms, 100, "us-west-2", "us-east-1");
+
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = biscuit(kms, metrics, false);
+        biscuit.read(new StringReader(secrets));
+        Load sequential = run("slow region", biscuit, metrics, 100, 16, Duration.ofSeconds(1));
+
+        InMemoryMetrics hedgedMetrics = new InMemoryMetrics();
+        Biscuit hedged = builder(kms, hedgedMetrics, false).withHedging(Duration.ofMillis(5)).build();
+        hedged.read(new StringReader(secrets));
+        Load hedgedLoad = run("slow region, hedged", hedged, hedgedMetrics, 100, 16, Duration.ofSeconds(1));
+
+        assertEquals(sequential.summary, 0, sequential.failures);
+        assertEquals(hedgedLoad.summary, 0, hedgedLoad.failures);
+        assertFalse(hedgedLoad.summary, hedgedMetrics.entryHedges().isEmpty());
+    }
+}
@@ -1,30 +1,166 @@
 package com.wagmorelabs.biscuit;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
- * AesGcm256 implements an AES-GCM-256 decryption operation compatible with Golang
+ * AesGcm256 implements AES-GCM-256 encryption and decryption operations compatible with Golang
  * crypto/cipher AESGCM AEAD.
  */
 class AesGcm256 implements Algorithm {
     private static final int AESGCM_NONCE_LENGTH = 12;
+    private static final int AESGCM_TAG_LENGTH = 16;
+    private static final SecureRandom random = new SecureRandom();
+    // ciphers are re-keyed with this after use so that they do not retain a data key
+    private static final SecretKeySpec ZERO_KEY = new SecretKeySpec(new byte[32], "AES");
+
+    // Cipher instances are expensive to look up and are not thread safe, so each thread keeps its own.
+    private static final ThreadLocal<CipherState> state = new ThreadLocal<>();
 
     @Override
-    public byte[] decrypt(byte[] key, byte[] ciphertext) throws GeneralSecurityException {
+    public int decrypt(byte[] key, ByteBuffer ciphertext, ByteBuffer output) throws GeneralSecurityException {
         // Format of ciphertext is [message][nonce]
-        byte[] message = new byte[ciphertext.length - AESGCM_NONCE_LENGTH];
-        System.arraycopy(ciphertext, 0, message, 0, ciphertext.length - AESGCM_NONCE_LENGTH);
+        int messageLength = ciphertext.remaining() - AESGCM_NONCE_LENGTH;
+        if (messageLength < AESGCM_TAG_LENGTH) {
+            throw new AEADBadTagException("Ciphertext too short");
+        }
+        CipherState cipherState = cipherState();
+        ByteBuffer message = ciphertext.duplicate();
+        message.limit(message.position() + messageLength);
+        ByteBuffer nonce = ciphertext.duplicate();
+        nonce.position(message.limit());
+        nonce.get(cipherState.nonce);
+        try {
+            cipherState.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                    new GCMParameterSpec(128, cipherState.nonce), null);
+            int written = cipherState.cipher.doFinal(message, output);
+            ciphertext.position(ciphertext.limit());
+            return written;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // don't reuse a cipher that may be left in an unknown state
+            state.remove();
+            throw e;
+        } finally {
+            cipherState.clear();
+        }
+    }
+
+    /**
+     * Authenticates the ciphertext and returns a Decryption that decrypts it with AES-CTR as it is read. The JCE's
+     * AES-GCM buffers the whole message until doFinal() so that it never releases unauthenticated plaintext; here
+     * the tag is instead checked up front with a separate GHASH pass over the ciphertext, which is already in memory,
+     * so that no plaintext is buffered and nothing is released before the tag has been verified.
+     */
+    @Override
+    public Decryption open(byte[] key, ByteBuffer ciphertext) throws GeneralSecurityException {
+        int messageLength = ciphertext.remaining() - AESGCM_NONCE_LENGTH;
+        if (messageLength < AESGCM_TAG_LENGTH) {
+            throw new AEADBadTagException("Ciphertext too short");
+        }
+        int start = ciphertext.position();
+        int end = start + messageLength - AESGCM_TAG_LENGTH;
+        // J0 = nonce || 1 for 96-bit nonces
+        byte[] counter = new byte[16];
+        for (int i = 0; i < AESGCM_NONCE_LENGTH; i++) {
+            counter[i] = ciphertext.get(start + messageLength + i);
+        }
+        counter[15] = 1;
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, keySpec);
+        byte[] h = aes.doFinal(new byte[16]);
+        byte[] tag = aes.doFinal(counter);
+        aes.init(Cipher.ENCRYPT_MODE, ZERO_KEY);
+        GHash ghash = new GHash(h);
+        ghash.update(ciphertext, start, end - start);
+        ghash.finish(tag, (long) (end - start) * 8);
+        int diff = 0;
+        for (int i = 0; i < AESGCM_TAG_LENGTH; i++) {
+            diff |= tag[i] ^ ciphertext.get(end + i);
+        }
+        Arrays.fill(h, (byte) 0);
+        Arrays.fill(tag, (byte) 0);
+        if (diff != 0) {
+            throw new AEADBadTagException("Message authentication failed");
+        }
+        // the message is encrypted from inc32(J0); a 32-bit counter cannot wrap within a 2GB message, so CTR mode's
+        // 128-bit increment produces the same keystream
+        counter[15] = 2;
+        Cipher ctr = Cipher.getInstance("AES/CTR/NoPadding");
+        ctr.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(counter));
+        ByteBuffer message = ciphertext.duplicate();
+        message.limit(end);
+        return new Decryption() {
+            private boolean destroyed;
+
+            @Override
+            public int read(ByteBuffer output) throws GeneralSecurityException {
+                if (destroyed) {
+                    throw new IllegalStateException("Decryption destroyed");
+                }
+                if (!message.hasRemaining()) {
+                    return -1;
+                }
+                ByteBuffer chunk = message.duplicate();
+                chunk.limit(chunk.position() + Math.min(chunk.remaining(), output.remaining()));
+                int written = ctr.update(chunk, output);
+                message.position(chunk.position());
+                return written;
+            }
+
+            @Override
+            public int remaining() {
+                return message.remaining();
+            }
+
+            @Override
+            public void destroy() {
+                destroyed = true;
+                message.position(message.limit());
+                try {
+                    // replace the expanded key held by the cipher
+                    ctr.init(Cipher.DECRYPT_MODE, ZERO_KEY, new IvParameterSpec(counter));
+                } catch (GeneralSecurityException e) {
+                    // nothing more can be done
+                }
+            }
+        };
+    }
+
+    @Override
+    public byte[] encrypt(byte[] key, byte[] plaintext) throws GeneralSecurityException {
+        CipherState cipherState = cipherState();
         byte[] nonce = new byte[AESGCM_NONCE_LENGTH];
-        System.arraycopy(ciphertext, ciphertext.length - AESGCM_NONCE_LENGTH, nonce, 0,
-                AESGCM_NONCE_LENGTH);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec params = new GCMParameterSpec(128, nonce);
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
-                params, null);
-        return cipher.doFinal(message);
+        random.nextBytes(nonce);
+        byte[] ciphertext = new byte[plaintext.length + AESGCM_TAG_LENGTH + AESGCM_NONCE_LENGTH];
+        try {
+            cipherState.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                    new GCMParameterSpec(128, nonce), null);
+            // Format of ciphertext is [message][nonce]
+            int written = cipherState.cipher.doFinal(plaintext, 0, plaintext.length, ciphertext, 0);
+            System.arraycopy(nonce, 0, ciphertext, written, AESGCM_NONCE_LENGTH);
+            return ciphertext;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            state.remove();
+            throw e;
+        } finally {
+            cipherState.clear();
+        }
+    }
+
+    @Override
+    public int plaintextLength(int ciphertextLength) throws GeneralSecurityException {
+        if (ciphertextLength < AESGCM_NONCE_LENGTH + AESGCM_TAG_LENGTH) {
+            throw new AEADBadTagException("Ciphertext too short");
+        }
+        return ciphertextLength - AESGCM_NONCE_LENGTH - AESGCM_TAG_LENGTH;
     }
 
     @Override
@@ -36,4 +172,107 @@ class AesGcm256 implements Algorithm {
     public boolean requiresKey() {
         return true;
     }
+
+    private static CipherState cipherState() throws GeneralSecurityException {
+        CipherState cipherState = state.get();
+        if (cipherState == null) {
+            cipherState = new CipherState(Cipher.getInstance("AES/GCM/NoPadding"));
+            state.set(cipherState);
+        }
+        return cipherState;
+    }
+
+    /**
+     * GHash implements the GHASH function of GCM over a message with no additional authenticated data.
+     */
+    static final class GHash {
+        private static final long R = 0xe100000000000000L;
+        private final long h0;
+        private final long h1;
+        private long y0;
+        private long y1;
+
+        GHash(byte[] h) {
+            ByteBuffer b = ByteBuffer.wrap(h);
+            this.h0 = b.getLong();
+            this.h1 = b.getLong();
+        }
+
+        /**
+         * update() hashes length bytes of in starting at the absolute index from, padding the last block with zeroes.
+         */
+        void update(ByteBuffer in, int from, int length) {
+            for (int i = 0; i < length; i += 16) {
+                long x0 = 0;
+                long x1 = 0;
+                for (int j = 0; j < 16; j++) {
+                    long b = i + j < length ? in.get(from + i + j) & 0xff : 0;
+                    if (j < 8) {
+                        x0 |= b << (56 - 8 * j);
+                    } else {
+                        x1 |= b << (120 - 8 * j);
+                    }
+                }
+                multiply(x0, x1);
+            }
+        }
+
+        /**
+         * finish() hashes the length block and XORs the result into out, which holds the encrypted initial counter.
+         */
+        void finish(byte[] out, long messageBits) {
+            multiply(0, messageBits);
+            ByteBuffer b = ByteBuffer.wrap(out);
+            long t0 = b.getLong(0) ^ y0;
+            long t1 = b.getLong(8) ^ y1;
+            b.putLong(0, t0).putLong(8, t1);
+            y0 = y1 = 0;
+        }
+
+        /**
+         * multiply() sets Y = (Y xor X) * H in GF(2^128), bit by bit and without branching on secret data.
+         */
+        private void multiply(long x0, long x1) {
+            x0 ^= y0;
+            x1 ^= y1;
+            long z0 = 0;
+            long z1 = 0;
+            long v0 = h0;
+            long v1 = h1;
+            for (int i = 0; i < 128; i++) {
+                long bit = i < 64 ? x0 >>> (63 - i) : x1 >>> (127 - i);
+                long mask = -(bit & 1);
+                z0 ^= v0 & mask;
+                z1 ^= v1 & mask;
+                long carry = -(v1 & 1);
+                v1 = (v1 >>> 1) | (v0 << 63);
+                v0 = (v0 >>> 1) ^ (R & carry);
+            }
+            y0 = z0;
+            y1 = z1;
+        }
+    }
+
+    /**
+     * CipherState holds a thread's cipher and nonce buffer. No key is kept between calls.
+     */
+    private static final class CipherState {
+        private final Cipher cipher;
+        private final byte[] nonce = new byte[AESGCM_NONCE_LENGTH];
+
+        CipherState(Cipher cipher) {
+            this.cipher = cipher;
+        }
+
+        /**
+         * clear() re-keys the cipher with a zero key, replacing the key schedule of the last data key.
+         */
+        void clear() {
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, ZERO_KEY, new GCMParameterSpec(128, nonce), null);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                state.remove();
+            }
+        }
+    }
 }
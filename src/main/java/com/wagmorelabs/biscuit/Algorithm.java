@@ -1,5 +1,6 @@
 package com.wagmorelabs.biscuit;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
 interface Algorithm {
@@ -11,7 +12,54 @@ interface Algorithm {
      * @return
      * @throws GeneralSecurityException
      */
-    byte[] decrypt(byte[] key, byte[] ciphertext) throws GeneralSecurityException;
+    default byte[] decrypt(byte[] key, byte[] ciphertext) throws GeneralSecurityException {
+        byte[] plaintext = new byte[plaintextLength(ciphertext.length)];
+        decrypt(key, ByteBuffer.wrap(ciphertext), ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
+    /**
+     * Decrypts the remaining bytes of a ciphertext buffer into an output buffer, advancing the position of both.
+     * The output buffer must have at least {@link #plaintextLength(int)} bytes remaining.
+     *
+     * @param key
+     * @param ciphertext
+     * @param output
+     * @return The number of bytes written to output.
+     * @throws GeneralSecurityException
+     */
+    int decrypt(byte[] key, ByteBuffer ciphertext, ByteBuffer output) throws GeneralSecurityException;
+
+    /**
+     * Authenticates the remaining bytes of a ciphertext buffer and returns a Decryption that produces the plaintext
+     * incrementally. The buffer is read, not copied, so it must not be modified until the Decryption is destroyed.
+     *
+     * @param key
+     * @param ciphertext
+     * @return
+     * @throws GeneralSecurityException if the ciphertext fails authentication.
+     */
+    Decryption open(byte[] key, ByteBuffer ciphertext) throws GeneralSecurityException;
+
+    /**
+     * Encrypts a plaintext using a given key, producing a ciphertext in the format read by
+     * {@link #decrypt(byte[], ByteBuffer, ByteBuffer)}. Each call uses a fresh random nonce.
+     *
+     * @param key
+     * @param plaintext
+     * @return
+     * @throws GeneralSecurityException
+     */
+    byte[] encrypt(byte[] key, byte[] plaintext) throws GeneralSecurityException;
+
+    /**
+     * Returns the length of the plaintext produced by decrypting a ciphertext of the given length.
+     *
+     * @param ciphertextLength
+     * @return
+     * @throws GeneralSecurityException if no valid ciphertext has the given length.
+     */
+    int plaintextLength(int ciphertextLength) throws GeneralSecurityException;
 
     /**
      * Returns the string used in the secret store to identify this algorithm.
@@ -26,4 +74,31 @@ interface Algorithm {
      * @return
      */
     boolean requiresKey();
+
+    /**
+     * Decryption produces the plaintext of an authenticated ciphertext a chunk at a time. Instances are not thread
+     * safe.
+     */
+    interface Decryption {
+        /**
+         * Decrypts up to output.remaining() bytes of plaintext into output, advancing its position.
+         *
+         * @param output
+         * @return The number of bytes written, or -1 if the whole plaintext has been read.
+         * @throws GeneralSecurityException
+         */
+        int read(ByteBuffer output) throws GeneralSecurityException;
+
+        /**
+         * Returns the number of plaintext bytes that have not been read.
+         *
+         * @return
+         */
+        int remaining();
+
+        /**
+         * destroy() clears the key-dependent state. Further reads fail.
+         */
+        void destroy();
+    }
 }
@@ -0,0 +1,92 @@
+package com.wagmorelabs.biscuit;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ApplicationKeyManager decorates a key manager supplied by the application for one Biscuit. It returns a copy of
+ * each key, so that Biscuit can zero the keys it is handed without writing to an array the key manager may keep, and
+ * if circuit breakers are enabled, records the outcome of each call in an {@link EntryHealth}. It sits beneath any key
+ * caches, so only calls that reach the key manager are recorded. A null key or an exception counts as a failure,
+ * since a generic key manager cannot say whether it failed or the key ciphertext was bad; {@link KmsKeyManager} and
+ * {@link AsyncKmsKeyManager} can, and report their own health instead.
+ */
+class ApplicationKeyManager implements KeyManager {
+    private final KeyManager delegate;
+    private final EntryHealth health;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate
+     * @param health   The circuit breakers to record calls in, or null.
+     */
+    ApplicationKeyManager(KeyManager delegate, EntryHealth health) {
+        this.delegate = delegate;
+        this.health = health;
+    }
+
+    @Override
+    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+        if (health != null) {
+            health.attempting(label(), keyID);
+        }
+        byte[] key = null;
+        try {
+            key = delegate.decrypt(keyID, keyCiphertext, secretName);
+            return key == null ? null : key.clone();
+        } finally {
+            // an interrupted call says nothing about the key manager
+            if (health != null && (key != null || !Thread.currentThread().isInterrupted())) {
+                health.keyResult(label(), keyID, key != null);
+            }
+        }
+    }
+
+    @Override
+    public DataKey generateDataKey(String keyID, String secretName) throws GeneralSecurityException {
+        return delegate.generateDataKey(keyID, secretName);
+    }
+
+    @Override
+    public String label() {
+        return delegate.label();
+    }
+
+    /**
+     * async() decorates an AsyncKeyManager in the same way.
+     *
+     * @param keyManager
+     * @param health     The circuit breakers to record calls in, or null.
+     * @return
+     */
+    static AsyncKeyManager async(AsyncKeyManager keyManager, EntryHealth health) {
+        return new AsyncKeyManager() {
+            @Override
+            public CompletableFuture<byte[]> decryptAsync(String keyID, byte[] keyCiphertext, String secretName) {
+                if (health != null) {
+                    health.attempting(label(), keyID);
+                }
+                CompletableFuture<byte[]> future;
+                try {
+                    future = keyManager.decryptAsync(keyID, keyCiphertext, secretName);
+                } catch (RuntimeException ex) {
+                    if (health != null) {
+                        health.keyResult(label(), keyID, false);
+                    }
+                    throw ex;
+                }
+                if (health != null) {
+                    future = future.whenComplete(
+                            (key, error) -> health.keyResult(label(), keyID, error == null && key != null));
+                }
+                return future.thenApply(key -> key == null ? null : key.clone());
+            }
+
+            @Override
+            public String label() {
+                return keyManager.label();
+            }
+        };
+    }
+}
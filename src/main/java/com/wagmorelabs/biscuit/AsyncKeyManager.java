@@ -0,0 +1,38 @@
+package com.wagmorelabs.biscuit;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * AsyncKeyManager wraps a key management service that can decrypt keys without blocking the calling thread.
+ */
+public interface AsyncKeyManager {
+    /**
+     * Decrypts an encrypted key. The returned future completes with the plaintext key, or exceptionally if the key
+     * could not be decrypted.
+     *
+     * @param keyID
+     * @param keyCiphertext The encrypted key. Implementations must not modify this array.
+     * @param secretName    The name of the secret being decrypted.
+     * @return
+     */
+    CompletableFuture<byte[]> decryptAsync(String keyID, byte[] keyCiphertext, String secretName);
+
+    /**
+     * Returns the string used in the secret store to identify this key management service.
+     *
+     * @return
+     */
+    String label();
+
+    /**
+     * Adapts a blocking KeyManager by running its decrypt operation on an executor.
+     *
+     * @param keyManager
+     * @param executor
+     * @return
+     */
+    static AsyncKeyManager fromKeyManager(KeyManager keyManager, Executor executor) {
+        return new BlockingAsyncKeyManager(keyManager, executor);
+    }
+}
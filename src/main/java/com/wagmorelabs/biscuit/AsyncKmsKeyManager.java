@@ -0,0 +1,133 @@
+package com.wagmorelabs.biscuit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.kms.AWSKMSAsync;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * AsyncKmsKeyManager implements an AsyncKeyManager for AWS KMS using the SDK's asynchronous client. The returned
+ * futures are completed on the client's own executor.
+ */
+public class AsyncKmsKeyManager implements AsyncKeyManager {
+    private static final String LABEL = "kms";
+    private final AWSKMSAsyncFactory factory;
+    private final String regionHint;
+    private volatile BiscuitMetrics metrics = BiscuitMetrics.NONE;
+
+    /**
+     * AWSKMSAsyncFactory implementations build AWSKMSAsync clients for a particular region.
+     */
+    public interface AWSKMSAsyncFactory {
+        AWSKMSAsync create(String region);
+    }
+
+    /**
+     * AsyncKmsKeyManager constructor.
+     *
+     * @param factory    The AWSKMSAsyncFactory responsible for constructing AWSKMSAsync clients for each region.
+     *                   AsyncKmsKeyManager asks the factory for a client on every request and never shuts clients
+     *                   down, so the factory should reuse its clients and is responsible for shutting them down.
+     * @param regionHint The region to use when the key ID does not include a region.
+     */
+    public AsyncKmsKeyManager(AWSKMSAsyncFactory factory, String regionHint) {
+        this.factory = factory;
+        this.regionHint = regionHint;
+    }
+
+    /**
+     * withMetrics() reports failed KMS requests to metrics by region and error code.
+     *
+     * @param metrics
+     * @return
+     */
+    public AsyncKmsKeyManager withMetrics(BiscuitMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * forBiscuit() returns a view of this key manager for one Biscuit, reporting to the Biscuit's metrics and health
+     * as described for {@link KmsKeyManager#forBiscuit(BiscuitMetrics, EntryHealth)}. The key manager itself is not
+     * changed.
+     *
+     * @param metrics
+     * @param health
+     * @return
+     */
+    AsyncKeyManager forBiscuit(BiscuitMetrics metrics, EntryHealth health) {
+        return new AsyncKeyManager() {
+            @Override
+            public CompletableFuture<byte[]> decryptAsync(String keyID, byte[] keyCiphertext, String secretName) {
+                BiscuitMetrics own = AsyncKmsKeyManager.this.metrics;
+                return AsyncKmsKeyManager.this.decryptAsync(keyID, keyCiphertext, secretName,
+                        own == BiscuitMetrics.NONE ? metrics : own, health);
+            }
+
+            @Override
+            public String label() {
+                return LABEL;
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptAsync(String keyID, byte[] keyCiphertext, String secretName) {
+        return decryptAsync(keyID, keyCiphertext, secretName, metrics, null);
+    }
+
+    private CompletableFuture<byte[]> decryptAsync(String keyID, byte[] keyCiphertext, String secretName,
+                                                   BiscuitMetrics metrics, EntryHealth health) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            String region = region(keyID);
+            AWSKMSAsync client = factory.create(region);
+            if (health != null) {
+                health.attempting(LABEL, keyID);
+            }
+            client.decryptAsync(
+                    new DecryptRequest()
+                            .withEncryptionContext(KmsKeyManager.encryptionContext(secretName))
+                            .withCiphertextBlob(ByteBuffer.wrap(keyCiphertext)),
+                    new AsyncHandler<DecryptRequest, DecryptResult>() {
+                        @Override
+                        public void onError(Exception exception) {
+                            boolean service = exception instanceof AmazonServiceException;
+                            metrics.kmsError(region, service
+                                    ? ((AmazonServiceException) exception).getErrorCode()
+                                    : exception.getClass().getSimpleName());
+                            if (health != null) {
+                                health.keyResult(LABEL, keyID, service
+                                        && !KmsKeyManager.isServiceFailure((AmazonServiceException) exception));
+                            }
+                            future.completeExceptionally(exception);
+                        }
+
+                        @Override
+                        public void onSuccess(DecryptRequest request, DecryptResult result) {
+                            if (health != null) {
+                                health.keyResult(LABEL, keyID, true);
+                            }
+                            future.complete(KmsKeyManager.toArray(result.getPlaintext()));
+                        }
+                    });
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    private String region(String keyID) {
+        String region = KmsKeyManager.getRegionFromKeyId(keyID);
+        return null == region ? regionHint : region;
+    }
+
+    @Override
+    public String label() {
+        return LABEL;
+    }
+}
@@ -1,21 +1,52 @@
 package com.wagmorelabs.biscuit;
 
-import org.yaml.snakeyaml.Yaml;
-
 import javax.xml.bind.DatatypeConverter;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,22 +57,83 @@ import java.util.logging.Logger;
 public class Biscuit {
 
     private final Map<String, KeyManager> keyManagers;
+    private final Map<String, AsyncKeyManager> asyncKeyManagers;
     private final Map<String, Algorithm> algorithms;
-    private final Map<String, Collection<Map<String, String>>> values = new HashMap<>();
+    // an immutable snapshot of the secrets, replaced as a whole by apply() so that lookups never take a lock
+    private final AtomicReference<Map<String, SecretEntry[]>> values =
+            new AtomicReference<>(Collections.emptyMap());
+    // compiled stores loaded with readMapped(), latest last; consulted for names not in values
+    private volatile List<MappedStore> mapped = Collections.emptyList();
+    private final PlaintextCache plaintextCache;
+    private final KeyCache keyCache;
+    // null unless refreshAhead() is running
+    private final AtomicReference<RefreshAhead> refresher = new AtomicReference<>();
+    private final Executor executor;
+    private final BiscuitMetrics metrics;
+    private final List<SecretChangeListener> listeners;
+    private final Executor hedgeExecutor;
+    private final long hedgeDelayNanos;
+    // null unless circuit breakers are enabled
+    private final EntryHealth health;
     private static final Logger logger = Logger.getLogger(Biscuit.class.getName());
 
     /**
      * Constructor. See {@link Biscuit.Builder}.
      *
-     * @param keyManagers
-     * @param algorithms
+     * @param builder
      */
-    private Biscuit(Map<String, KeyManager> keyManagers, Map<String, Algorithm> algorithms) {
-        this.keyManagers = keyManagers;
-        this.algorithms = algorithms;
+    private Biscuit(Builder builder) {
+        this.metrics = builder.metrics;
+        this.listeners = new ArrayList<>(builder.listeners);
+        this.hedgeExecutor = builder.hedgeExecutor;
+        this.hedgeDelayNanos = builder.hedgeDelay == null ? 0 : builder.hedgeDelay.toNanos();
+        this.health = builder.breakerOpenDuration == null
+                ? null : new EntryHealth(builder.breakerFailures, builder.breakerOpenDuration);
+        // Every key manager is wrapped so that the keys it hands to Biscuit are Biscuit's to zero, and so that circuit
+        // breakers record calls beneath the key caches, where cached keys do not count as successes.
+        Map<String, KeyManager> configured = new HashMap<>(builder.keyManagers);
+        for (Map.Entry<String, KeyManager> entry : configured.entrySet()) {
+            KeyManager keyManager = entry.getValue();
+            entry.setValue(keyManager instanceof KmsKeyManager
+                    ? ((KmsKeyManager) keyManager).forBiscuit(metrics, health)
+                    : new ApplicationKeyManager(keyManager, health));
+        }
+        Map<String, AsyncKeyManager> async = new HashMap<>(builder.asyncKeyManagers);
+        for (Map.Entry<String, AsyncKeyManager> entry : async.entrySet()) {
+            AsyncKeyManager keyManager = entry.getValue();
+            entry.setValue(keyManager instanceof AsyncKmsKeyManager
+                    ? ((AsyncKmsKeyManager) keyManager).forBiscuit(metrics, health)
+                    : ApplicationKeyManager.async(keyManager, health));
+        }
+        if (builder.persistentKeyCache != null) {
+            for (Map.Entry<String, KeyManager> entry : configured.entrySet()) {
+                entry.setValue(new PersistentKeyManager(entry.getValue(), builder.persistentKeyCache,
+                        builder.hostKey, builder.persistentKeyTtl));
+            }
+        }
+        if (builder.keyCache != null) {
+            for (Map.Entry<String, KeyManager> entry : configured.entrySet()) {
+                entry.setValue(new CachingKeyManager(entry.getValue(), builder.keyCache, metrics));
+            }
+        }
+        this.keyManagers = configured;
+        this.algorithms = new HashMap<>(builder.algorithms);
+        this.plaintextCache = builder.plaintextCache;
+        this.keyCache = builder.keyCache;
+        this.executor = builder.executor;
+        this.asyncKeyManagers = new HashMap<>();
+        for (KeyManager keyManager : configured.values()) {
+            asyncKeyManagers.put(keyManager.label(), AsyncKeyManager.fromKeyManager(keyManager, executor()));
+        }
+        asyncKeyManagers.putAll(async);
     }
 
-    private static byte[] decodeBase64(String encoded) {
+    private static final byte[] EMPTY = new byte[0];
+
+    static byte[] decodeBase64(String encoded) {
+        if (encoded.isEmpty()) {
+            return EMPTY;
+        }
         return DatatypeConverter.parseBase64Binary(encoded);
     }
 
@@ -59,26 +151,266 @@ public class Biscuit {
     }
 
     /**
-     * read() reads a YAML document containing one or more secrets from a Reader.
+     * read() reads a YAML document containing one or more secrets from a Reader. The secrets become visible to
+     * lookups all at once after the whole document has been parsed, so it is safe to call read() while other threads
+     * are looking up secrets.
      *
      * @param reader
      */
     public void read(Reader reader) {
-        Yaml yaml = new Yaml();
-        @SuppressWarnings("unchecked")
-        Map<String, List<Map<String, String>>> map = (Map<String, List<Map<String, String>>>) yaml.loadAs(reader, Map
-                .class);
-        // fill in any missing values with blanks to avoid obnoxious nullity tests later
-        for (Map.Entry<String, List<Map<String, String>>> secret : map.entrySet()) {
-            for (Map<String, String> entry : secret.getValue()) {
-                for (Field field : Field.values()) {
-                    if (!entry.containsKey(field.toString())) {
-                        entry.put(field.toString(), "");
-                    }
+        Map<String, SecretEntry[]> map = new HashMap<>();
+        SecretsParser.parse(reader, (name, entries) -> map.put(name, newEntries(entries)));
+        apply(map, Collections.emptySet());
+    }
+
+    /**
+     * load() reads the documents of several sources in parallel on the executor configured with
+     * {@link Builder#withExecutor(Executor)}, and publishes their secrets at once, as {@link #read(Reader)} does for
+     * one document. When a secret is defined more than once, later sources take precedence over earlier ones, and
+     * within a source later documents take precedence as described by {@link SecretSource#documents()}. Nothing is
+     * published unless every document is read successfully.
+     *
+     * @param sources
+     * @throws IOException if a document cannot be read or parsed. Failures of other documents are attached as
+     *                     suppressed exceptions.
+     */
+    public void load(List<SecretSource> sources) throws IOException {
+        List<SecretSource.Document> documents = new ArrayList<>();
+        for (SecretSource source : sources) {
+            documents.addAll(source.documents());
+        }
+        // a single document is parsed on the calling thread
+        Executor executor = documents.size() == 1 ? Runnable::run : executor();
+        List<CompletableFuture<Map<String, SecretEntry[]>>> parsed = new ArrayList<>(documents.size());
+        for (SecretSource.Document document : documents) {
+            parsed.add(CompletableFuture.supplyAsync(() -> parse(document), executor));
+        }
+        Map<String, SecretEntry[]> merged = new HashMap<>();
+        IOException failure = null;
+        for (CompletableFuture<Map<String, SecretEntry[]>> future : parsed) {
+            try {
+                merged.putAll(future.join());
+            } catch (CompletionException e) {
+                IOException cause = e.getCause() instanceof UncheckedIOException
+                        ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
                 }
             }
         }
-        values.putAll(map);
+        if (failure != null) {
+            throw failure;
+        }
+        apply(merged, Collections.emptySet());
+    }
+
+    private Map<String, SecretEntry[]> parse(SecretSource.Document document) {
+        Map<String, SecretEntry[]> map = new HashMap<>();
+        try (Reader reader = document.open()) {
+            SecretsParser.parse(reader, (name, entries) -> map.put(name, newEntries(entries)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(new IOException("Unable to read " + document.description(), e));
+        } catch (RuntimeException e) {
+            throw new UncheckedIOException(new IOException("Unable to parse " + document.description(), e));
+        }
+        return map;
+    }
+
+    /**
+     * watchFile() reads a YAML document containing one or more secrets from a file, like
+     * {@link #readFile(String)}, and then watches the file for changes. When the file changes, it is read again
+     * once it has been quiet for 100ms. Only secrets whose entries changed are replaced; secrets that were removed
+     * from the file are removed. Memoized plaintexts of those secrets are discarded and change listeners are notified.
+     *
+     * @param filename
+     * @return A Closeable that stops watching the file.
+     * @throws IOException if the file cannot be read initially.
+     */
+    public Closeable watchFile(String filename) throws IOException {
+        return watchFile(filename, Duration.ofMillis(100));
+    }
+
+    /**
+     * watchFile() is like {@link #watchFile(String)}, but waits until the file has been quiet for debounce before
+     * reading it again.
+     *
+     * @param filename
+     * @param debounce
+     * @return
+     * @throws IOException
+     */
+    public Closeable watchFile(String filename, Duration debounce) throws IOException {
+        FileWatcher watcher = new FileWatcher(this, Paths.get(filename), debounce);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * apply() publishes a new snapshot in which changed secrets are replaced and removed secrets are absent, then
+     * discards their memoized plaintexts and notifies the change listeners. Lookups see either the previous snapshot
+     * or the new one, never a partially applied change.
+     */
+    void apply(Map<String, SecretEntry[]> changed, Set<String> removed) {
+        synchronized (values) {
+            Map<String, SecretEntry[]> next = new HashMap<>(values.get());
+            next.putAll(changed);
+            next.keySet().removeAll(removed);
+            values.set(Collections.unmodifiableMap(next));
+        }
+        if (health != null) {
+            health.forget(changed.keySet());
+            health.forget(removed);
+        }
+        if (plaintextCache != null) {
+            for (String name : changed.keySet()) {
+                plaintextCache.invalidate(name);
+            }
+            for (String name : removed) {
+                plaintextCache.invalidate(name);
+            }
+        }
+        Set<String> changedNames = Collections.unmodifiableSet(changed.keySet());
+        Set<String> removedNames = Collections.unmodifiableSet(removed);
+        for (SecretChangeListener listener : listeners) {
+            try {
+                listener.secretsChanged(changedNames, removedNames);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Exception thrown by change listener", e);
+            }
+        }
+    }
+
+    /**
+     * readMapped() memory-maps a secrets file compiled by {@link #compileMapped(Path, Path)}. Only the file's header is
+     * read, so this takes constant time however many secrets the file holds; each lookup then finds the secret in the
+     * file's index and reads its ciphertext directly from the mapping. Secrets loaded with {@link #read(Reader)} take
+     * precedence over mapped files, and later mapped files take precedence over earlier ones. Mapping a path that
+     * is already mapped replaces the earlier mapping, and the file then takes precedence as if mapped for the first
+     * time. All memoized plaintexts are discarded. Change listeners are not notified.
+     *
+     * @param path
+     * @throws IOException if the file cannot be read or is not a compiled secrets file.
+     */
+    public void readMapped(Path path) throws IOException {
+        MappedStore store = MappedStore.open(path);
+        synchronized (values) {
+            List<MappedStore> next = new ArrayList<>();
+            for (MappedStore existing : mapped) {
+                if (!existing.path().equals(store.path())) {
+                    next.add(existing);
+                }
+            }
+            next.add(store);
+            mapped = Collections.unmodifiableList(next);
+        }
+        mappedChanged();
+    }
+
+    /**
+     * releaseMapped() stops reading secrets from a file mapped by {@link #readMapped(Path)}. The mapping is unmapped
+     * by the garbage collector once no lookups, handles or streams refer to it. All memoized plaintexts are discarded.
+     * Change listeners are not notified.
+     *
+     * @param path
+     * @return true if the path was mapped.
+     */
+    public boolean releaseMapped(Path path) {
+        Path key = MappedStore.key(path);
+        synchronized (values) {
+            List<MappedStore> next = new ArrayList<>();
+            for (MappedStore existing : mapped) {
+                if (!existing.path().equals(key)) {
+                    next.add(existing);
+                }
+            }
+            if (next.size() == mapped.size()) {
+                return false;
+            }
+            mapped = Collections.unmodifiableList(next);
+        }
+        mappedChanged();
+        return true;
+    }
+
+    /**
+     * mappedChanged() discards the state kept for secrets that may have changed because stores were mapped or
+     * released: the remembered winners of secrets read from mapped stores, and all memoized plaintexts.
+     */
+    private void mappedChanged() {
+        if (health != null) {
+            health.forgetMapped();
+        }
+        invalidateAll();
+    }
+
+    /**
+     * compileMapped() converts a YAML (or JSON) secrets file to the binary form read by {@link #readMapped(Path)}.
+     * The ciphertexts remain encrypted. The destination is replaced atomically.
+     *
+     * @param source
+     * @param destination
+     * @throws IOException
+     */
+    public static void compileMapped(Path source, Path destination) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(source, Charset.forName("UTF-8"))) {
+            MappedStore.compile(reader, destination);
+        }
+    }
+
+    /**
+     * snapshot() returns the immutable map of the secrets loaded with read() as of now.
+     */
+    Map<String, SecretEntry[]> snapshot() {
+        return values.get();
+    }
+
+    private SecretEntry[] entries(String name) throws GeneralSecurityException {
+        SecretEntry[] entries = values.get().get(name);
+        List<MappedStore> stores = mapped;
+        for (int i = stores.size() - 1; entries == null && i >= 0; i--) {
+            entries = stores.get(i).get(name, this::newEntry);
+        }
+        return entries;
+    }
+
+    private Set<String> names() {
+        Set<String> names = new LinkedHashSet<>();
+        for (MappedStore store : mapped) {
+            names.addAll(store.names());
+        }
+        names.addAll(values.get().keySet());
+        return names;
+    }
+
+    SecretEntry[] newEntries(List<Map<String, String>> entries) {
+        SecretEntry[] parsed = new SecretEntry[entries.size()];
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = newEntry(entries.get(i));
+        }
+        return parsed;
+    }
+
+    private SecretEntry newEntry(String keyID, String keyManagerLabel, String algorithmLabel, byte[] keyCiphertext,
+                                 ByteBuffer ciphertext) {
+        return new SecretEntry(keyID, keyManagerLabel, keyManagers.get(keyManagerLabel),
+                asyncKeyManagers.get(keyManagerLabel), algorithmLabel, algorithms.get(algorithmLabel), keyCiphertext,
+                ciphertext);
+    }
+
+    private SecretEntry newEntry(Map<String, String> fields) {
+        String keyManagerLabel = Field.KEY_MANAGER.get(fields).intern();
+        String algorithmLabel = Field.ALGORITHM.get(fields).intern();
+        return new SecretEntry(
+                Field.KEY_ID.get(fields).intern(),
+                keyManagerLabel,
+                keyManagers.get(keyManagerLabel),
+                asyncKeyManagers.get(keyManagerLabel),
+                algorithmLabel,
+                algorithms.get(algorithmLabel),
+                decodeBase64(Field.KEY_CIPHERTEXT.get(fields)),
+                decodeBase64(Field.CIPHERTEXT.get(fields)));
     }
 
     /**
@@ -89,41 +421,721 @@ public class Biscuit {
      * @return
      */
     public byte[] get(String name) {
-        Collection<Map<String, String>> entries = values.get(name);
-        if (entries == null || entries.size() == 0) {
+        accessed(name);
+        try {
+            if (plaintextCache != null) {
+                PlaintextCache.Memo memo = memoized(name, DIRECT);
+                return memo == null ? null : memo.bytes();
+            }
+            return decrypt(name, DIRECT);
+        } catch (GeneralSecurityException e) {
+            // already logged by firstSuccess()
+            return null;
+        }
+    }
+
+    private PlaintextCache.Memo memoized(String name, KeyFetcher fetcher) throws GeneralSecurityException {
+        PlaintextCache.Memo memo = plaintextCache.get(name);
+        if (memo != null) {
+            metrics.plaintextCacheHit(name);
+        } else {
+            metrics.plaintextCacheMiss(name);
+            long generation = plaintextCache.generation(name);
+            byte[] plaintext = decrypt(name, fetcher);
+            if (plaintext == null) {
+                return null;
+            }
+            memo = plaintextCache.put(name, plaintext, generation);
+            if (memo == null) {
+                // the secret was reloaded while it was decrypted; return what was read, but do not keep it
+                memo = PlaintextCache.Memo.of(plaintext);
+            }
+        }
+        return memo;
+    }
+
+    private void accessed(String name) {
+        RefreshAhead r = refresher.get();
+        if (r != null) {
+            r.accessed(name);
+        }
+    }
+
+    /**
+     * refreshAhead() starts re-decrypting frequently looked up secrets in the background shortly before their
+     * memoized plaintexts expire, or, for secrets with no memoized plaintext, before the keys of their preferred
+     * entries leave the key cache, so that lookups keep hitting warm entries. Secrets with nothing cached are not
+     * refreshed. Each secret is refreshed between window and window/2 before expiry, chosen at random per secret so
+     * that a fleet of processes does not refresh in step. Only secrets looked up through get(), getString(),
+     * getAsync() and getStringAsync() since refreshing started are tracked. Refreshed keys are fetched from the key
+     * manager even if they are still cached.
+     *
+     * @param window  How long before expiry a secret may be refreshed. Should be well below the caches' TTLs.
+     * @param threads The maximum number of secrets refreshed at once.
+     * @return A Closeable that stops refreshing.
+     * @throws IllegalStateException if neither a key cache nor a plaintext cache is configured, or refreshing has
+     *                               already been started.
+     */
+    public Closeable refreshAhead(Duration window, int threads) {
+        if (plaintextCache == null && keyCache == null) {
+            throw new IllegalStateException("refreshAhead requires a key cache or a plaintext cache");
+        }
+        RefreshAhead r = new RefreshAhead(new RefreshAhead.Target() {
+            @Override
+            public long remainingNanos(String name) {
+                return Biscuit.this.remainingNanos(name);
+            }
+
+            @Override
+            public void refresh(String name) throws GeneralSecurityException {
+                Biscuit.this.refresh(name);
+            }
+        }, window, threads);
+        if (!refresher.compareAndSet(null, r)) {
+            r.close();
+            throw new IllegalStateException("refreshAhead is already running");
+        }
+        r.start();
+        return () -> {
+            refresher.compareAndSet(r, null);
+            r.close();
+        };
+    }
+
+    /**
+     * refresher() returns the running RefreshAhead, or null.
+     */
+    RefreshAhead refresher() {
+        return refresher.get();
+    }
+
+    /**
+     * remainingNanos() returns how long the cached state of a secret has left: its memo, or if it has none and there
+     * is a key cache, the cached key of its preferred entry.
+     */
+    private long remainingNanos(String name) {
+        SecretEntry[] entries;
+        try {
+            entries = entries(name);
+        } catch (GeneralSecurityException e) {
+            // logged by the lookups of the secret
+            return Long.MAX_VALUE;
+        }
+        if (entries == null || entries.length == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (plaintextCache != null) {
+            long remaining = plaintextCache.remainingNanos(name);
+            // secrets larger than the plaintext cache are never memoized, but their keys may be cached
+            if (remaining >= 0 || keyCache == null) {
+                return remaining;
+            }
+        }
+        int preferred = preferredEntry(name);
+        SecretEntry entry = entries[preferred < entries.length ? preferred : 0];
+        if (!(entry.keyManager() instanceof CachingKeyManager)) {
+            return Long.MAX_VALUE;
+        }
+        return ((CachingKeyManager) entry.keyManager()).remainingNanos(entry.keyID(), entry.keyCiphertext(), name);
+    }
+
+    /**
+     * refresh() decrypts a secret with keys fetched from the key managers rather than the key cache, replacing the
+     * cached keys and the memoized plaintext. The plaintext is not memoized if the secret was invalidated meanwhile.
+     */
+    private void refresh(String name) throws GeneralSecurityException {
+        long generation = plaintextCache == null ? 0 : plaintextCache.generation(name);
+        byte[] plaintext = decrypt(name, REFRESH);
+        if (plaintext == null) {
+            return;
+        }
+        if (plaintextCache == null || plaintextCache.put(name, plaintext, generation) == null) {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * decrypt() returns the plaintext of the first entry of a secret that can be decrypted. See
+     * {@link #firstSuccess(String, EntryOperation, Consumer)}.
+     */
+    private byte[] decrypt(String name, KeyFetcher fetcher) throws GeneralSecurityException {
+        return firstSuccess(name, (entry) -> decryptOne(name, entry, fetcher),
+                (plaintext) -> Arrays.fill(plaintext, (byte) 0));
+    }
+
+    /**
+     * firstSuccess() applies an operation to each entry of a secret in turn and returns the first result. Returns
+     * null if the secret does not exist. If every entry fails, the last exception is thrown with the earlier ones
+     * attached as suppressed exceptions. When hedging is enabled, entries are tried concurrently as described in
+     * {@link Builder#withHedging(Duration, Executor)}, and results that lose the race are passed to discard. When
+     * circuit breakers are enabled, entries are tried in the order chosen by {@link EntryHealth#order}.
+     */
+    private <T> T firstSuccess(String name, EntryOperation<T> operation, Consumer<? super T> discard)
+            throws GeneralSecurityException {
+        SecretEntry[] entries;
+        try {
+            entries = entries(name);
+        } catch (GeneralSecurityException e) {
+            logger.log(Level.WARNING, "Exception thrown while reading secret", e);
+            throw e;
+        }
+        if (entries == null || entries.length == 0) {
             // entry does not exist
             return null;
         }
-        for (Map<String, String> entry : entries) {
+        SecretEntry[] ordered = health == null ? entries : health.order(name, entries);
+        if (hedgeExecutor != null && entries.length > 1) {
+            return hedged(name, entries, ordered, operation, discard);
+        }
+        long start = System.nanoTime();
+        GeneralSecurityException failure = null;
+        for (int i = 0; i < ordered.length; i++) {
             try {
-                return decryptOne(name, entry);
+                T result = operation.apply(ordered[i]);
+                metrics.secretDecrypted(name, System.nanoTime() - start, true);
+                succeeded(name, entries, ordered[i]);
+                return result;
             } catch (GeneralSecurityException e) {
                 logger.log(Level.WARNING, "Exception thrown while decrypting entry", e);
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                failure = e;
+                if (i + 1 < ordered.length) {
+                    metrics.entryFallback(name, ordered[i].keyManagerLabel());
+                }
             }
         }
-        return null;
+        metrics.secretDecrypted(name, System.nanoTime() - start, false);
+        throw failure;
+    }
+
+    private void succeeded(String name, SecretEntry[] entries, SecretEntry winner) {
+        if (health != null) {
+            // secrets that were not loaded with read() come from the mapped stores
+            health.succeeded(name, entries, winner, !values.get().containsKey(name));
+        }
     }
 
-    private byte[] decryptOne(String name, Map<String, String> entry) throws GeneralSecurityException {
-        Algorithm algo = algorithms.get(Field.ALGORITHM.get(entry));
-        if (null == algo) {
-            throw new NoSuchAlgorithmException("Unrecognized algorithm: " +
-                    Field.ALGORITHM.get(entry));
+    /**
+     * hedged() starts the operation on the first of the ordered entries, and on each following entry when the
+     * attempts already running have not finished within the hedge delay or have all failed. The first success is
+     * returned; attempts that have not started are skipped, and the results of those still running are discarded
+     * when they finish. An attempt that throws a runtime exception, such as a client timeout, fails like any other;
+     * if every attempt fails, the last exception is thrown with the earlier ones attached as suppressed exceptions.
+     */
+    private <T> T hedged(String name, SecretEntry[] secret, SecretEntry[] entries, EntryOperation<T> operation,
+                         Consumer<? super T> discard) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        Hedge<T> hedge = new Hedge<>(discard);
+        List<FutureTask<T>> attempts = new ArrayList<>(entries.length);
+        int running = 0;
+        Exception failure = null;
+        try {
+            attempts.add(hedge.start(hedgeExecutor, operation, entries[0]));
+            running++;
+            while (running > 0) {
+                FutureTask<T> done;
+                if (attempts.size() < entries.length) {
+                    done = hedge.completed.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        metrics.entryHedged(name, entries[attempts.size() - 1].keyManagerLabel());
+                        attempts.add(hedge.start(hedgeExecutor, operation, entries[attempts.size()]));
+                        running++;
+                        continue;
+                    }
+                } else {
+                    done = hedge.completed.take();
+                }
+                running--;
+                try {
+                    T result = done.get();
+                    metrics.secretDecrypted(name, System.nanoTime() - start, true);
+                    succeeded(name, secret, entries[attempts.indexOf(done)]);
+                    return result;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    Exception cause = (Exception) e.getCause();
+                    logger.log(Level.WARNING, "Exception thrown while decrypting entry", cause);
+                    if (failure != null) {
+                        cause.addSuppressed(failure);
+                    }
+                    failure = cause;
+                    if (attempts.size() < entries.length) {
+                        metrics.entryFallback(name, entries[attempts.indexOf(done)].keyManagerLabel());
+                        attempts.add(hedge.start(hedgeExecutor, operation, entries[attempts.size()]));
+                        running++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            GeneralSecurityException interrupted = new GeneralSecurityException("Interrupted while decrypting " + name);
+            if (failure != null) {
+                interrupted.addSuppressed(failure);
+            }
+            failure = interrupted;
+        } finally {
+            hedge.settle();
+        }
+        metrics.secretDecrypted(name, System.nanoTime() - start, false);
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
         }
+        throw (GeneralSecurityException) failure;
+    }
+
+    private byte[] decryptOne(String name, SecretEntry entry, KeyFetcher fetcher)
+            throws GeneralSecurityException {
+        Algorithm algo = algorithm(entry);
+        byte[] key = key(name, entry, algo, fetcher);
+        try {
+            return decryptCiphertext(algo, key, entry);
+        } finally {
+            zero(key);
+        }
+    }
+
+    /**
+     * zero() zeroes a key fetched through this Biscuit's key managers, which are wrapped so that every key they return
+     * is a copy that Biscuit owns.
+     */
+    private static void zero(byte[] key) {
+        if (key != null) {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private byte[] key(String name, SecretEntry entry, Algorithm algo, KeyFetcher fetcher)
+            throws GeneralSecurityException {
+        if (!algo.requiresKey()) {
+            return null;
+        }
+        KeyManager keyManager = keyManager(entry);
+        long start = System.nanoTime();
         byte[] key = null;
-        if (algo.requiresKey()) {
-            KeyManager keyManager = keyManagers.get(Field.KEY_MANAGER.get(entry));
-            if (null == keyManager) {
-                throw new KeyStoreException("Unrecognized key manager: " +
-                        Field.KEY_MANAGER.get(entry));
+        try {
+            key = fetcher.fetch(keyManager, entry.keyID(), entry.keyCiphertext(), name);
+        } finally {
+            metrics.keyDecrypted(entry.keyManagerLabel(), System.nanoTime() - start, key != null);
+        }
+        if (null == key) {
+            throw unableToDecryptKey(entry);
+        }
+        return key;
+    }
+
+    private byte[] decryptCiphertext(Algorithm algo, byte[] key, SecretEntry entry) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            byte[] plaintext = new byte[algo.plaintextLength(entry.ciphertextLength())];
+            algo.decrypt(key, entry.ciphertext(), ByteBuffer.wrap(plaintext));
+            success = true;
+            return plaintext;
+        } finally {
+            metrics.algorithmDecrypted(entry.algorithmLabel(), System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * getHandle() decrypts a secret into memory outside of the Java heap and returns a handle to it. The handle
+     * should be closed as soon as the plaintext is no longer needed, which zeroes it. Handles neither consult nor
+     * populate the plaintext cache. Returns null if the secret does not exist or cannot be decrypted.
+     *
+     * @param name
+     * @return
+     */
+    public SecretHandle getHandle(String name) {
+        try {
+            return firstSuccess(name, (entry) -> {
+                Algorithm algo = algorithm(entry);
+                byte[] key = key(name, entry, algo, DIRECT);
+                ByteBuffer plaintext;
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    plaintext = ByteBuffer.allocateDirect(algo.plaintextLength(entry.ciphertextLength()));
+                    try {
+                        algo.decrypt(key, entry.ciphertext(), plaintext);
+                        success = true;
+                    } catch (GeneralSecurityException | RuntimeException e) {
+                        SecretHandle.zero(plaintext);
+                        throw e;
+                    }
+                } finally {
+                    zero(key);
+                    metrics.algorithmDecrypted(entry.algorithmLabel(), System.nanoTime() - start, success);
+                }
+                plaintext.flip();
+                return new SecretHandle(plaintext);
+            }, SecretHandle::close);
+        } catch (GeneralSecurityException e) {
+            // already logged by firstSuccess()
+            return null;
+        }
+    }
+
+    /**
+     * openStream() returns a stream from which the plaintext of a secret is decrypted as it is read, so that large
+     * secrets can be piped into files or KeyStores without a copy of the whole plaintext. The ciphertext, held
+     * decoded since the secret was loaded or read directly from a mapped file, is authenticated before the stream
+     * is returned, and is not copied. Streams neither consult nor populate the plaintext cache, and should be closed
+     * when no longer needed. Returns null if the secret does not exist or cannot be decrypted.
+     *
+     * @param name
+     * @return
+     */
+    public SecretStream openStream(String name) {
+        try {
+            return firstSuccess(name, (entry) -> {
+                Algorithm algo = algorithm(entry);
+                byte[] key = key(name, entry, algo, DIRECT);
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    SecretStream stream = new SecretStream(algo.open(key, entry.ciphertext()));
+                    success = true;
+                    return stream;
+                } finally {
+                    // the decryption state holds its own copy of the key, zeroed when the stream is closed
+                    zero(key);
+                    metrics.algorithmDecrypted(entry.algorithmLabel(), System.nanoTime() - start, success);
+                }
+            }, SecretStream::close);
+        } catch (GeneralSecurityException e) {
+            // already logged by firstSuccess()
+            return null;
+        }
+    }
+
+    private static Algorithm algorithm(SecretEntry entry) throws NoSuchAlgorithmException {
+        if (null == entry.algorithm()) {
+            throw new NoSuchAlgorithmException("Unrecognized algorithm: " + entry.algorithmLabel());
+        }
+        return entry.algorithm();
+    }
+
+    private static KeyManager keyManager(SecretEntry entry) throws KeyStoreException {
+        if (null == entry.keyManager()) {
+            throw new KeyStoreException("Unrecognized key manager: " + entry.keyManagerLabel());
+        }
+        return entry.keyManager();
+    }
+
+    private static KeyStoreException unableToDecryptKey(SecretEntry entry) {
+        return new KeyStoreException("Unable to decrypt key: " +
+                DatatypeConverter.printBase64Binary(entry.keyCiphertext()));
+    }
+
+    /**
+     * getAsync() returns a future that completes with the plaintext as a byte array. Key decryption is performed by
+     * the {@link AsyncKeyManager} registered for each entry's key manager; blocking key managers are run on the
+     * executor configured with {@link Builder#withExecutor(Executor)}. The future completes exceptionally with a
+     * {@link NoSuchElementException} if the secret does not exist, or with the last entry's exception if no entry
+     * could be decrypted.
+     *
+     * @param name
+     * @return
+     */
+    public CompletableFuture<byte[]> getAsync(String name) {
+        return plaintextAsync(name).thenApply(PlaintextCache.Memo::bytes);
+    }
+
+    /**
+     * getStringAsync() is like {@link #getAsync(String)}, but interprets the plaintext as a UTF-8 string.
+     *
+     * @param name
+     * @return
+     */
+    public CompletableFuture<String> getStringAsync(String name) {
+        return plaintextAsync(name).thenApply(PlaintextCache.Memo::string);
+    }
+
+    private CompletableFuture<PlaintextCache.Memo> plaintextAsync(String name) {
+        accessed(name);
+        if (plaintextCache != null) {
+            PlaintextCache.Memo memo = plaintextCache.get(name);
+            if (memo != null) {
+                metrics.plaintextCacheHit(name);
+                return CompletableFuture.completedFuture(memo);
+            }
+            metrics.plaintextCacheMiss(name);
+        }
+        long generation = plaintextCache == null ? 0 : plaintextCache.generation(name);
+        SecretEntry[] entries;
+        try {
+            entries = entries(name);
+        } catch (GeneralSecurityException e) {
+            logger.log(Level.WARNING, "Exception thrown while reading secret", e);
+            return failedFuture(e);
+        }
+        if (entries == null || entries.length == 0) {
+            return failedFuture(new NoSuchElementException("No such secret: " + name));
+        }
+        SecretEntry[] ordered = health == null ? entries : health.order(name, entries);
+        long start = System.nanoTime();
+        return decryptAsync(name, entries, Arrays.asList(ordered).iterator(), null)
+                .whenComplete((plaintext, error) ->
+                        metrics.secretDecrypted(name, System.nanoTime() - start, error == null))
+                .thenApply(plaintext -> {
+                    PlaintextCache.Memo memo = plaintextCache == null
+                            ? null : plaintextCache.put(name, plaintext, generation);
+                    return memo == null ? PlaintextCache.Memo.of(plaintext) : memo;
+                });
+    }
+
+    private CompletableFuture<byte[]> decryptAsync(String name, SecretEntry[] secret, Iterator<SecretEntry> entries,
+                                                   Throwable failure) {
+        if (!entries.hasNext()) {
+            return failedFuture(failure);
+        }
+        SecretEntry entry = entries.next();
+        return decryptOneAsync(name, entry)
+                .handle((plaintext, error) -> {
+                    if (error == null) {
+                        succeeded(name, secret, entry);
+                        return CompletableFuture.completedFuture(plaintext);
+                    }
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    logger.log(Level.WARNING, "Exception thrown while decrypting entry", cause);
+                    if (failure != null) {
+                        cause.addSuppressed(failure);
+                    }
+                    if (entries.hasNext()) {
+                        metrics.entryFallback(name, entry.keyManagerLabel());
+                    }
+                    return decryptAsync(name, secret, entries, cause);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<byte[]> decryptOneAsync(String name, SecretEntry entry) {
+        Algorithm algo;
+        try {
+            algo = algorithm(entry);
+            if (!algo.requiresKey()) {
+                return CompletableFuture.completedFuture(decryptCiphertext(algo, null, entry));
             }
-            key = keyManager.decrypt(Field.KEY_ID.get(entry), decodeBase64(Field.KEY_CIPHERTEXT.get(entry)), name);
-            if (null == key) {
-                throw new KeyStoreException("Unable to decrypt key: " + Field.KEY_CIPHERTEXT.get(entry));
+        } catch (GeneralSecurityException e) {
+            return failedFuture(e);
+        }
+        AsyncKeyManager keyManager = entry.asyncKeyManager();
+        if (null == keyManager) {
+            return failedFuture(new KeyStoreException("Unrecognized key manager: " + entry.keyManagerLabel()));
+        }
+        long start = System.nanoTime();
+        return keyManager
+                .decryptAsync(entry.keyID(), entry.keyCiphertext(), name)
+                .whenComplete((key, error) -> metrics.keyDecrypted(entry.keyManagerLabel(), System.nanoTime() - start,
+                        error == null && key != null))
+                .thenApply(key -> {
+                    try {
+                        if (null == key) {
+                            throw unableToDecryptKey(entry);
+                        }
+                        return decryptCiphertext(algo, key, entry);
+                    } catch (GeneralSecurityException e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        zero(key);
+                    }
+                });
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * getAll() decrypts several secrets in parallel using the executor configured with
+     * {@link Builder#withExecutor(Executor)}, or a shared pool of daemon threads if none was configured. Names that
+     * do not exist or cannot be decrypted are reported in {@link BulkResult#failures()}.
+     *
+     * @param names
+     * @return
+     */
+    public BulkResult<byte[]> getAll(Collection<String> names) {
+        return getAll(names, executor());
+    }
+
+    /**
+     * getAll() decrypts several secrets in parallel using the given executor. Duplicate names are decrypted once,
+     * and identical key decryption requests are sent to the key manager once.
+     *
+     * @param names
+     * @param executor
+     * @return
+     */
+    public BulkResult<byte[]> getAll(Collection<String> names, Executor executor) {
+        return bulk(names, executor, PlaintextCache.Memo::bytes);
+    }
+
+    /**
+     * getAllStrings() is like {@link #getAll(Collection)}, but interprets each plaintext as a UTF-8 string.
+     *
+     * @param names
+     * @return
+     */
+    public BulkResult<String> getAllStrings(Collection<String> names) {
+        return getAllStrings(names, executor());
+    }
+
+    /**
+     * getAllStrings() is like {@link #getAll(Collection, Executor)}, but interprets each plaintext as a UTF-8
+     * string.
+     *
+     * @param names
+     * @param executor
+     * @return
+     */
+    public BulkResult<String> getAllStrings(Collection<String> names, Executor executor) {
+        return bulk(names, executor, PlaintextCache.Memo::string);
+    }
+
+    private <T> BulkResult<T> bulk(Collection<String> names, Executor executor,
+                                   Function<PlaintextCache.Memo, T> convert) {
+        CoalescingKeyFetcher fetcher = new CoalescingKeyFetcher();
+        Map<String, T> results = new LinkedHashMap<>();
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        await(fanOut(names, executor, fetcher, convert), NO_DEADLINE, results, failures, new LinkedHashSet<>());
+        fetcher.destroy();
+        return new BulkResult<>(results, failures);
+    }
+
+    /**
+     * fanOut() looks up each distinct name on the executor, memoizing the plaintexts if a plaintext cache is
+     * configured, and converts the plaintexts. Plaintexts that are not memoized are zeroed after conversion.
+     */
+    private <T> Map<String, CompletableFuture<T>> fanOut(Collection<String> names, Executor executor,
+                                                         KeyFetcher fetcher, Function<PlaintextCache.Memo, T> convert) {
+        Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+        for (String name : new LinkedHashSet<>(names)) {
+            futures.put(name, CompletableFuture.supplyAsync(() -> {
+                try {
+                    if (plaintextCache != null) {
+                        PlaintextCache.Memo memo = memoized(name, fetcher);
+                        if (memo != null) {
+                            return convert.apply(memo);
+                        }
+                    } else {
+                        byte[] plaintext = decrypt(name, fetcher);
+                        if (plaintext != null) {
+                            try {
+                                return convert.apply(PlaintextCache.Memo.of(plaintext));
+                            } finally {
+                                Arrays.fill(plaintext, (byte) 0);
+                            }
+                        }
+                    }
+                    throw new NoSuchElementException("No such secret: " + name);
+                } catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        return futures;
+    }
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * await() waits until every future has completed, or until deadlineNanos (a System.nanoTime() value) has passed
+     * unless it is NO_DEADLINE, then sorts the names into results, failures, and those still running.
+     */
+    private static <T> void await(Map<String, CompletableFuture<T>> futures, long deadlineNanos,
+                                  Map<String, T> results, Map<String, Exception> failures, Set<String> running) {
+        CompletableFuture<Void> all =
+                CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]));
+        try {
+            if (deadlineNanos == NO_DEADLINE) {
+                all.join();
+            } else {
+                all.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | CompletionException | CancellationException e) {
+            // failures are reported per secret below
         }
-        String ciphertext = Field.CIPHERTEXT.get(entry);
-        return algo.decrypt(key, decodeBase64(ciphertext));
+        for (Map.Entry<String, CompletableFuture<T>> entry : futures.entrySet()) {
+            CompletableFuture<T> future = entry.getValue();
+            if (!future.isDone()) {
+                running.add(entry.getKey());
+                continue;
+            }
+            try {
+                results.put(entry.getKey(), future.join());
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                failures.put(entry.getKey(), cause instanceof Exception ? (Exception) cause : e);
+            }
+        }
+    }
+
+    /**
+     * health() returns the state of the circuit breaker of each key manager and region that has been used. Empty
+     * unless {@link Builder#withCircuitBreaker(int, Duration)} was configured.
+     *
+     * @return
+     */
+    public List<PathHealth> health() {
+        return health == null ? Collections.emptyList() : health.paths();
+    }
+
+    /**
+     * preferredEntry() returns the index, in file order, of the entry of a secret that will be tried first. This is
+     * the entry that last succeeded when {@link Builder#withCircuitBreaker(int, Duration)} was configured, and 0
+     * otherwise.
+     *
+     * @param name
+     * @return
+     */
+    public int preferredEntry(String name) {
+        return health == null ? 0 : health.preferredEntry(name);
+    }
+
+    /**
+     * warmUp() decrypts every secret in parallel on the executor configured with
+     * {@link Builder#withExecutor(Executor)}, filling the key and plaintext caches so that the first lookups do not
+     * pay for key decryption. It waits at most until the deadline has passed. See
+     * {@link #warmUp(Collection, Duration, Executor)}.
+     *
+     * @param deadline
+     * @return
+     */
+    public WarmUpResult warmUp(Duration deadline) {
+        return warmUp(names(), deadline, executor());
+    }
+
+    /**
+     * warmUp() decrypts the named secrets in parallel using the given executor, filling the key and plaintext caches,
+     * and waits until they have all finished or the deadline has passed, whichever comes first. Secrets still being
+     * decrypted at the deadline are reported in {@link WarmUpResult#timedOut()} and continue in the background.
+     * Without caches configured, warming up only establishes connections to the key management services.
+     *
+     * @param names
+     * @param deadline
+     * @param executor
+     * @return
+     */
+    public WarmUpResult warmUp(Collection<String> names, Duration deadline, Executor executor) {
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        // the key fetches are not coalesced: lookups still running at the deadline outlive this call
+        Map<String, Boolean> warmed = new LinkedHashMap<>();
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        Set<String> timedOut = new LinkedHashSet<>();
+        await(fanOut(names, executor, DIRECT, memo -> Boolean.TRUE), deadlineNanos, warmed, failures, timedOut);
+        return new WarmUpResult(warmed.keySet(), failures, timedOut);
+    }
+
+    private Executor executor() {
+        return executor != null ? executor : DefaultExecutor.INSTANCE;
     }
 
     /**
@@ -135,27 +1147,220 @@ public class Biscuit {
      * @throws GeneralSecurityException
      */
     public String getString(String name) {
-        byte[] plaintext = get(name);
-        if (plaintext == null) {
+        accessed(name);
+        try {
+            if (plaintextCache != null) {
+                PlaintextCache.Memo memo = memoized(name, DIRECT);
+                return memo == null ? null : memo.string();
+            }
+            byte[] plaintext = decrypt(name, DIRECT);
+            if (plaintext == null) {
+                return null;
+            }
+            return new String(plaintext, Charset.forName("UTF-8"));
+        } catch (GeneralSecurityException e) {
+            // already logged by firstSuccess()
             return null;
         }
-        return new String(plaintext, Charset.forName("UTF-8"));
     }
 
-    private enum Field {
+    /**
+     * invalidate() discards the memoized plaintext of a secret, if any, so that the next lookup decrypts it again.
+     * Has no effect unless plaintext memoization is enabled.
+     *
+     * @param name
+     */
+    public void invalidate(String name) {
+        if (plaintextCache != null) {
+            plaintextCache.invalidate(name);
+        }
+    }
+
+    /**
+     * invalidateAll() discards all memoized plaintexts. Has no effect unless plaintext memoization is enabled.
+     */
+    public void invalidateAll() {
+        if (plaintextCache != null) {
+            plaintextCache.invalidateAll();
+        }
+    }
+
+    /**
+     * EntryOperation is an operation on a single entry of a secret.
+     */
+    private interface EntryOperation<T> {
+        T apply(SecretEntry entry) throws GeneralSecurityException;
+    }
+
+    /**
+     * KeyFetcher is the path by which decryptOne() asks a key manager for a key.
+     */
+    private interface KeyFetcher {
+        byte[] fetch(KeyManager keyManager, String keyID, byte[] keyCiphertext, String secretName);
+    }
+
+    private static final KeyFetcher DIRECT = KeyManager::decrypt;
+
+    private static final KeyFetcher REFRESH = (keyManager, keyID, keyCiphertext, secretName) ->
+            keyManager instanceof CachingKeyManager
+                    ? ((CachingKeyManager) keyManager).refresh(keyID, keyCiphertext, secretName)
+                    : keyManager.decrypt(keyID, keyCiphertext, secretName);
+
+    /**
+     * CoalescingKeyFetcher sends each distinct key decryption request to the key manager at most once; concurrent
+     * and subsequent identical requests share the first result.
+     */
+    private static class CoalescingKeyFetcher implements KeyFetcher {
+        private final ConcurrentHashMap<KeyCache.CacheKey, CompletableFuture<byte[]>> fetches =
+                new ConcurrentHashMap<>();
+
+        @Override
+        public byte[] fetch(KeyManager keyManager, String keyID, byte[] keyCiphertext, String secretName) {
+            KeyCache.CacheKey cacheKey = new KeyCache.CacheKey(keyManager.label(), keyID, keyCiphertext, secretName);
+            CompletableFuture<byte[]> fetch = new CompletableFuture<>();
+            CompletableFuture<byte[]> existing = fetches.putIfAbsent(cacheKey, fetch);
+            if (existing == null) {
+                try {
+                    fetch.complete(keyManager.decrypt(keyID, keyCiphertext, secretName));
+                } catch (RuntimeException e) {
+                    fetch.completeExceptionally(e);
+                }
+                existing = fetch;
+            }
+            byte[] key = existing.join();
+            return key == null ? null : key.clone();
+        }
+
+        /**
+         * Zeroes every key that was fetched.
+         */
+        void destroy() {
+            for (CompletableFuture<byte[]> fetch : fetches.values()) {
+                byte[] key = fetch.getNow(null);
+                if (key != null) {
+                    Arrays.fill(key, (byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hedge tracks the concurrent attempts of one hedged lookup. Attempts that finish after the lookup has settled
+     * are discarded.
+     */
+    private static final class Hedge<T> {
+        private final BlockingQueue<FutureTask<T>> completed = new LinkedBlockingQueue<>();
+        private final Consumer<? super T> discard;
+        private volatile boolean settled; // written while holding completed
+
+        Hedge(Consumer<? super T> discard) {
+            this.discard = discard;
+        }
+
+        /**
+         * start() runs an attempt on the executor, or on the calling thread if the executor rejects it.
+         */
+        FutureTask<T> start(Executor executor, EntryOperation<T> operation, SecretEntry entry) {
+            FutureTask<T> attempt = new FutureTask<T>(() -> {
+                if (settled) {
+                    throw new CancellationException("Lookup already settled");
+                }
+                return operation.apply(entry);
+            }) {
+                @Override
+                protected void done() {
+                    synchronized (completed) {
+                        if (!settled) {
+                            completed.add(this);
+                            return;
+                        }
+                    }
+                    discard(this);
+                }
+            };
+            try {
+                executor.execute(attempt);
+            } catch (RejectedExecutionException e) {
+                attempt.run();
+            }
+            return attempt;
+        }
+
+        /**
+         * settle() discards the results of the attempts that completed but were not taken. Attempts are not
+         * cancelled: interrupting one could fail a key request that other lookups share, and a cancelled attempt's
+         * result could not be discarded. Attempts that have not started yet skip their work, and those still running
+         * discard their results when they finish.
+         */
+        void settle() {
+            List<FutureTask<T>> untaken = new ArrayList<>();
+            synchronized (completed) {
+                settled = true;
+                completed.drainTo(untaken);
+            }
+            for (FutureTask<T> attempt : untaken) {
+                discard(attempt);
+            }
+        }
+
+        private void discard(FutureTask<T> attempt) {
+            try {
+                T result = attempt.get();
+                if (result != null) {
+                    discard.accept(result);
+                }
+            } catch (ExecutionException | InterruptedException | CancellationException e) {
+                // nothing to discard
+            }
+        }
+    }
+
+    /**
+     * HedgeExecutor is the pool used for hedged lookups when no executor has been configured. Attempts never queue
+     * behind the lookups that started them: the pool grows to at most MAX_THREADS threads, and beyond that attempts
+     * run on the thread performing the lookup, which then tries entries one after another.
+     */
+    private static class HedgeExecutor {
+        static final int MAX_THREADS = 64;
+        private static final AtomicInteger threadCount = new AtomicInteger();
+        static final ExecutorService INSTANCE = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "biscuit-hedge-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * DefaultExecutor is the pool used for bulk operations when no executor has been configured.
+     */
+    static class DefaultExecutor {
+        private static final AtomicInteger threadCount = new AtomicInteger();
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(16, runnable -> {
+            Thread thread = new Thread(runnable, "biscuit-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    enum Field {
         KEY_ID,
         KEY_MANAGER,
         KEY_CIPHERTEXT,
         ALGORITHM,
         CIPHERTEXT;
 
+        private final String key = this.name().toLowerCase();
+
         public String get(Map<String, String> entry) {
-            return entry.get(this.name().toLowerCase());
+            // null fields are not stored, and read as empty like fields whose value is ''
+            String value = entry.get(key);
+            return value == null ? "" : value;
         }
 
         @Override
         public String toString() {
-            return this.name().toLowerCase();
+            return key;
         }
     }
 
@@ -164,7 +1369,21 @@ public class Biscuit {
      */
     public static class Builder {
         private final Map<String, KeyManager> keyManagers = new HashMap<>();
+        private final Map<String, AsyncKeyManager> asyncKeyManagers = new HashMap<>();
         private final Map<String, Algorithm> algorithms = new HashMap<>();
+        private KeyCache keyCache;
+        private Path persistentKeyCache;
+        private byte[] hostKey;
+        private Duration persistentKeyTtl;
+        private PlaintextCache plaintextCache;
+        private Executor executor;
+        private BiscuitMetrics metrics = BiscuitMetrics.NONE;
+        private final List<SecretChangeListener> listeners = new ArrayList<>();
+        private Duration hedgeDelay;
+        private Executor hedgeExecutor;
+        private int breakerFailures;
+        private Duration breakerOpenDuration;
+        private final List<SecretSource> sources = new ArrayList<>();
 
         public Builder() {
             withAlgorithm(new SecretBox());
@@ -196,12 +1415,190 @@ public class Biscuit {
         }
 
         /**
-         * Instantiates a configured Secrets object.
+         * Registers an asynchronous key manager. It is used by {@link Biscuit#getAsync(String)} in preference to a
+         * blocking key manager with the same label.
          *
+         * @param keyManager
          * @return
          */
+        public Builder withAsyncKeyManager(AsyncKeyManager keyManager) {
+            asyncKeyManagers.put(keyManager.label(), keyManager);
+            return this;
+        }
+
+        /**
+         * Enables caching of decrypted data keys for all registered key managers. Keys are cached by key manager, key
+         * ID, encrypted key, and secret name, and are discarded in least-recently-used order once more than
+         * maxEntries are held or once they are older than ttl. Discarded keys are zeroed.
+         *
+         * @param maxEntries
+         * @param ttl
+         * @return
+         */
+        public Builder withKeyCache(int maxEntries, Duration ttl) {
+            this.keyCache = new KeyCache(maxEntries, ttl);
+            return this;
+        }
+
+        /**
+         * Enables a cache of decrypted data keys on disk for all registered key managers, so that a restarted
+         * process can decrypt its secrets without calling the key management services. Each key is stored in its
+         * own file in directory, sealed with AES-GCM-256 under the key held in hostKeyFile, which is created with a
+         * random key if it does not exist. Keys are used for at most ttl after they were fetched. The host key file
+         * must be protected at least as well as the secrets themselves. Asynchronous key managers registered with
+         * {@link #withAsyncKeyManager(AsyncKeyManager)} do not use this cache.
+         *
+         * @param directory
+         * @param hostKeyFile
+         * @param ttl
+         * @return
+         * @throws IOException if the host key cannot be read or created.
+         */
+        public Builder withPersistentKeyCache(Path directory, Path hostKeyFile, Duration ttl) throws IOException {
+            if (ttl.isNegative() || ttl.isZero()) {
+                throw new IllegalArgumentException("ttl must be positive");
+            }
+            this.hostKey = PersistentKeyManager.hostKey(hostKeyFile);
+            this.persistentKeyCache = directory;
+            this.persistentKeyTtl = ttl;
+            return this;
+        }
+
+        /**
+         * Enables memoization of decrypted secrets by name. Memoized plaintexts are safe to read from many threads,
+         * expire ttl after they were decrypted, and are discarded oldest-first once more than maxBytes of plaintext
+         * is retained. Memoized values are dropped when a secret is re-read or {@link Biscuit#invalidate(String)} is
+         * called.
+         *
+         * @param maxBytes
+         * @param ttl
+         * @return
+         */
+        public Builder withPlaintextCache(long maxBytes, Duration ttl) {
+            this.plaintextCache = new PlaintextCache(maxBytes, ttl);
+            return this;
+        }
+
+        /**
+         * Sets the executor used by bulk operations such as {@link Biscuit#getAll(Collection)}. By default a shared
+         * pool of daemon threads is used.
+         *
+         * @param executor
+         * @return
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Registers a listener for decrypt latencies, cache hits and misses, and entry fallbacks. Registered
+         * {@link KmsKeyManager} and {@link AsyncKmsKeyManager} instances without metrics of their own also report
+         * their failed requests to it. See {@link InMemoryMetrics} for an implementation that can be scraped.
+         *
+         * @param metrics
+         * @return
+         */
+        public Builder withMetrics(BiscuitMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Registers a listener that is notified whenever secrets are loaded, replaced or removed.
+         *
+         * @param listener
+         * @return
+         */
+        public Builder withChangeListener(SecretChangeListener listener) {
+            listeners.add(listener);
+            return this;
+        }
+
+        /**
+         * Enables hedged lookups using a shared pool of at most 64 daemon threads. See
+         * {@link #withHedging(Duration, Executor)}.
+         *
+         * @param delay
+         * @return
+         */
+        public Builder withHedging(Duration delay) {
+            return withHedging(delay, HedgeExecutor.INSTANCE);
+        }
+
+        /**
+         * Enables hedged lookups for secrets with more than one entry. Each entry is decrypted on the executor. If
+         * the first entry has not been decrypted within delay, the second is started alongside it, and so on; an
+         * entry that fails starts the next one immediately. The first entry to succeed is returned; the others are
+         * not interrupted, and their results are discarded. This bounds the latency of {@link Biscuit#get(String)},
+         * {@link Biscuit#getString(String)} and {@link Biscuit#getHandle(String)} when a key management service is
+         * slow rather than down, at the cost of extra key requests. Attempts the executor rejects run on the thread
+         * performing the lookup. The executor should not be one whose threads perform lookups themselves.
+         *
+         * @param delay
+         * @param executor
+         * @return
+         */
+        public Builder withHedging(Duration delay, Executor executor) {
+            if (delay.isNegative()) {
+                throw new IllegalArgumentException("delay must not be negative");
+            }
+            this.hedgeDelay = delay;
+            this.hedgeExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Enables a circuit breaker for each key manager and region, and sticky ordering of the entries of each
+         * secret. After failureThreshold consecutive failures to decrypt a data key, entries using that key manager
+         * and region are tried only after all others, until openDuration has passed and a lookup probes it again.
+         * Whichever entry last succeeded for a secret is tried first. The region is taken from the key ID when it is
+         * an ARN. See {@link Biscuit#health()}.
+         *
+         * @param failureThreshold
+         * @param openDuration
+         * @return
+         */
+        public Builder withCircuitBreaker(int failureThreshold, Duration openDuration) {
+            if (failureThreshold <= 0) {
+                throw new IllegalArgumentException("failureThreshold must be positive");
+            }
+            if (openDuration.isNegative() || openDuration.isZero()) {
+                throw new IllegalArgumentException("openDuration must be positive");
+            }
+            this.breakerFailures = failureThreshold;
+            this.breakerOpenDuration = openDuration;
+            return this;
+        }
+
+        /**
+         * Adds a source of secrets to load when the Biscuit is built. Sources are read in parallel; secrets in later
+         * sources take precedence over those in earlier ones. See {@link Biscuit#load(List)}.
+         *
+         * @param source
+         * @return
+         */
+        public Builder withSource(SecretSource source) {
+            sources.add(source);
+            return this;
+        }
+
+        /**
+         * Instantiates a configured Secrets object and loads the sources added with {@link #withSource}.
+         *
+         * @return
+         * @throws UncheckedIOException if a source cannot be read or parsed.
+         */
         public Biscuit build() {
-            return new Biscuit(keyManagers, algorithms);
+            Biscuit biscuit = new Biscuit(this);
+            if (!sources.isEmpty()) {
+                try {
+                    biscuit.load(sources);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return biscuit;
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.wagmorelabs.biscuit;
+
+/**
+ * BiscuitMetrics receives measurements of decryption activity. Register an implementation with
+ * {@link Biscuit.Builder#withMetrics(BiscuitMetrics)} and, for KMS errors, {@link KmsKeyManager#withMetrics}.
+ * <p>
+ * Callbacks are made synchronously on the thread doing the work, often on the request path, so implementations must
+ * be thread-safe and should return quickly. Every method has a no-op default. Durations are in nanoseconds.
+ */
+public interface BiscuitMetrics {
+    /**
+     * A metrics implementation that discards everything.
+     */
+    BiscuitMetrics NONE = new BiscuitMetrics() {
+    };
+
+    /**
+     * Called after a lookup of a secret that was not served from the plaintext cache has finished.
+     *
+     * @param name
+     * @param nanos
+     * @param success False if no entry of the secret could be decrypted.
+     */
+    default void secretDecrypted(String name, long nanos, boolean success) {
+    }
+
+    /**
+     * Called after a key manager was asked to decrypt a data key. Lookups answered by the key cache are included.
+     *
+     * @param keyManager The key manager label.
+     * @param nanos
+     * @param success    False if the key manager failed to return a key.
+     */
+    default void keyDecrypted(String keyManager, long nanos, boolean success) {
+    }
+
+    /**
+     * Called after an algorithm decrypted, or failed to decrypt, a ciphertext.
+     *
+     * @param algorithm The algorithm label.
+     * @param nanos
+     * @param success
+     */
+    default void algorithmDecrypted(String algorithm, long nanos, boolean success) {
+    }
+
+    /**
+     * Called when a data key is found in the key cache.
+     *
+     * @param keyManager
+     */
+    default void keyCacheHit(String keyManager) {
+    }
+
+    /**
+     * Called when a data key is not found in the key cache.
+     *
+     * @param keyManager
+     */
+    default void keyCacheMiss(String keyManager) {
+    }
+
+    /**
+     * Called when a secret is served from the plaintext cache.
+     *
+     * @param name
+     */
+    default void plaintextCacheHit(String name) {
+    }
+
+    /**
+     * Called when a secret is not found in the plaintext cache.
+     *
+     * @param name
+     */
+    default void plaintextCacheMiss(String name) {
+    }
+
+    /**
+     * Called when an entry of a secret could not be decrypted and the next entry will be tried.
+     *
+     * @param name
+     * @param keyManager The key manager label of the entry that failed.
+     */
+    default void entryFallback(String name, String keyManager) {
+    }
+
+    /**
+     * Called when an entry of a secret has not been decrypted within the hedge delay and the next entry is started
+     * alongside it.
+     *
+     * @param name
+     * @param keyManager The key manager label of the slow entry.
+     */
+    default void entryHedged(String name, String keyManager) {
+    }
+
+    /**
+     * Called when a request to KMS fails.
+     *
+     * @param region
+     * @param errorType The AWS error code, such as ThrottlingException, or the exception's class name if the request
+     *                  did not receive a response.
+     */
+    default void kmsError(String region, String errorType) {
+    }
+}
@@ -0,0 +1,322 @@
+package com.wagmorelabs.biscuit;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * BiscuitWriter encrypts secrets and writes them as a YAML document that {@link Biscuit#read(java.io.Reader)}
+ * reads. Each secret gets one entry per configured key, typically one per region, each with its own data key
+ * generated by the key's key manager, so that any one region can decrypt the secret on its own.
+ * <p>
+ * Secrets and their entries are encrypted in parallel, and the document is written as secrets finish, in the order
+ * they were given, with a bounded number of secrets in flight.
+ */
+public class BiscuitWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, KeyManager> keyManagers;
+    private final Algorithm algorithm;
+    private final List<Key> keys;
+    private final Executor executor;
+    private final int maxInFlight;
+
+    /**
+     * Key names a key manager and a key ID.
+     */
+    private static final class Key {
+        private final String keyManager;
+        private final String keyID;
+
+        Key(String keyManager, String keyID) {
+            this.keyManager = keyManager;
+            this.keyID = keyID;
+        }
+    }
+
+    private BiscuitWriter(Builder builder) {
+        this.keyManagers = new HashMap<>(builder.keyManagers);
+        this.algorithm = builder.algorithms.get(builder.algorithm);
+        this.keys = algorithm.requiresKey()
+                ? new ArrayList<>(builder.keys) : Collections.singletonList(new Key(null, null));
+        this.executor = builder.executor != null ? builder.executor : Biscuit.DefaultExecutor.INSTANCE;
+        this.maxInFlight = builder.maxInFlight;
+    }
+
+    /**
+     * write() encrypts secrets and writes the document to out, in the iteration order of the map. The writer is
+     * flushed but not closed. If a secret cannot be encrypted, the secrets still in flight are cancelled, the exception
+     * is thrown and out holds an incomplete document; see {@link #write(Map, Path)}.
+     *
+     * @param secrets Plaintexts by secret name.
+     * @param out
+     * @throws IOException
+     * @throws GeneralSecurityException if a key manager fails to generate a data key.
+     */
+    public void write(Map<String, byte[]> secrets, Writer out) throws IOException, GeneralSecurityException {
+        Deque<CompletableFuture<String>> inFlight = new ArrayDeque<>();
+        try {
+            for (Map.Entry<String, byte[]> secret : secrets.entrySet()) {
+                if (inFlight.size() >= maxInFlight) {
+                    out.write(join(inFlight.removeFirst()));
+                }
+                inFlight.addLast(encrypt(secret.getKey(), secret.getValue()));
+            }
+            while (!inFlight.isEmpty()) {
+                out.write(join(inFlight.removeFirst()));
+            }
+        } finally {
+            // after a failure, entries that have not started are skipped
+            for (CompletableFuture<String> secret : inFlight) {
+                secret.cancel(false);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * write() encrypts secrets and writes the document to destination, replacing it atomically once every secret has
+     * been encrypted.
+     *
+     * @param secrets
+     * @param destination
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void write(Map<String, byte[]> secrets, Path destination) throws IOException, GeneralSecurityException {
+        Path parent = destination.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, destination.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp, UTF8)) {
+                write(secrets, out);
+            }
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String join(CompletableFuture<String> future) throws GeneralSecurityException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * encrypt() starts encrypting one entry of a secret per key and returns a future of the secret's YAML. If an
+     * entry fails or the future is cancelled, the entries that have not started are cancelled.
+     */
+    private CompletableFuture<String> encrypt(String name, byte[] plaintext) {
+        List<CompletableFuture<String>> entries = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            entries.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return entry(name, plaintext, key);
+                } catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        CompletableFuture<?>[] all = entries.toArray(new CompletableFuture<?>[entries.size()]);
+        CompletableFuture<String> secret = CompletableFuture.allOf(all)
+                .thenApply(ignored -> {
+                    StringBuilder yaml = new StringBuilder();
+                    quote(yaml, name);
+                    yaml.append(":\n");
+                    for (CompletableFuture<String> entry : entries) {
+                        yaml.append(entry.join());
+                    }
+                    return yaml.toString();
+                });
+        secret.whenComplete((yaml, error) -> {
+            if (error != null) {
+                for (CompletableFuture<String> entry : entries) {
+                    entry.cancel(false);
+                }
+            }
+        });
+        return secret;
+    }
+
+    private String entry(String name, byte[] plaintext, Key key) throws GeneralSecurityException {
+        StringBuilder yaml = new StringBuilder();
+        String first = "- ";
+        byte[] ciphertext;
+        if (algorithm.requiresKey()) {
+            DataKey dataKey = keyManagers.get(key.keyManager).generateDataKey(key.keyID, name);
+            try {
+                ciphertext = algorithm.encrypt(dataKey.plaintext(), plaintext);
+            } finally {
+                dataKey.destroy();
+            }
+            yaml.append(first).append(Biscuit.Field.KEY_ID).append(": ");
+            quote(yaml, key.keyID);
+            yaml.append("\n  ").append(Biscuit.Field.KEY_MANAGER).append(": ").append(key.keyManager)
+                    .append("\n  ").append(Biscuit.Field.KEY_CIPHERTEXT).append(": ")
+                    .append(DatatypeConverter.printBase64Binary(dataKey.ciphertext()))
+                    .append("\n");
+            first = "  ";
+        } else {
+            ciphertext = algorithm.encrypt(null, plaintext);
+        }
+        yaml.append(first).append(Biscuit.Field.ALGORITHM).append(": ").append(algorithm.label())
+                .append("\n  ").append(Biscuit.Field.CIPHERTEXT).append(": ");
+        if (ciphertext.length == 0) {
+            yaml.append("\"\"");
+        } else {
+            yaml.append(DatatypeConverter.printBase64Binary(ciphertext));
+        }
+        return yaml.append("\n").toString();
+    }
+
+    /**
+     * quote() appends a YAML double-quoted scalar, so that names that look like numbers, booleans or null, or that
+     * contain YAML syntax, are read back unchanged. Control characters and characters outside the Basic
+     * Multilingual Plane are escaped.
+     */
+    static void quote(StringBuilder yaml, String value) {
+        yaml.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            int c = value.codePointAt(i);
+            if (c == '"' || c == '\\') {
+                yaml.append('\\').append((char) c);
+            } else if (c < 0x20 || c == 0x7f) {
+                yaml.append(String.format("\\x%02x", c));
+            } else if (c > 0xffff) {
+                yaml.append(String.format("\\U%08x", c));
+                i++;
+            } else {
+                yaml.append((char) c);
+            }
+        }
+        yaml.append('"');
+    }
+
+    /**
+     * Builder for the BiscuitWriter class.
+     */
+    public static class Builder {
+        private final Map<String, KeyManager> keyManagers = new HashMap<>();
+        private final Map<String, Algorithm> algorithms = new HashMap<>();
+        private final List<Key> keys = new ArrayList<>();
+        private String algorithm = "secretbox";
+        private Executor executor;
+        private int maxInFlight = 256;
+
+        public Builder() {
+            for (Algorithm algorithm : new Algorithm[]{new SecretBox(), new AesGcm256(), new Plaintext()}) {
+                algorithms.put(algorithm.label(), algorithm);
+            }
+            withKeyManager(new TestingKeyManager());
+        }
+
+        /**
+         * Registers a key manager.
+         *
+         * @param keyManager
+         * @return
+         */
+        public Builder withKeyManager(KeyManager keyManager) {
+            keyManagers.put(keyManager.label(), keyManager);
+            return this;
+        }
+
+        /**
+         * Selects the algorithm used to encrypt secrets: secretbox (the default), aesgcm256, or none.
+         *
+         * @param label
+         * @return
+         * @throws NoSuchAlgorithmException if the algorithm is not recognized.
+         */
+        public Builder withAlgorithm(String label) throws NoSuchAlgorithmException {
+            if (!algorithms.containsKey(label)) {
+                throw new NoSuchAlgorithmException("Unrecognized algorithm: " + label);
+            }
+            this.algorithm = label;
+            return this;
+        }
+
+        /**
+         * Adds a key with which every secret is encrypted. Each key produces one entry per secret, in the order the
+         * keys were added; add a key per region to make secrets readable in any of them.
+         *
+         * @param keyManager The label of a registered key manager.
+         * @param keyID
+         * @return
+         */
+        public Builder withKey(String keyManager, String keyID) {
+            keys.add(new Key(keyManager, keyID));
+            return this;
+        }
+
+        /**
+         * Sets the executor on which secrets are encrypted. By default, the shared pool used by
+         * {@link Biscuit#getAll(java.util.Collection)} is used.
+         *
+         * @param executor
+         * @return
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the number of secrets that may be encrypted ahead of the one being written. Defaults to 256.
+         *
+         * @param maxInFlight
+         * @return
+         */
+        public Builder withMaxInFlight(int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight must be positive");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Instantiates a configured BiscuitWriter.
+         *
+         * @return
+         * @throws IllegalStateException if the algorithm requires a key and no key was added, or a key names a key
+         *                               manager that is not registered.
+         */
+        public BiscuitWriter build() {
+            if (algorithms.get(algorithm).requiresKey()) {
+                if (keys.isEmpty()) {
+                    throw new IllegalStateException("No keys configured for algorithm " + algorithm);
+                }
+                for (Key key : keys) {
+                    KeyManager keyManager = keyManagers.get(key.keyManager);
+                    if (keyManager == null) {
+                        throw new IllegalStateException("Unrecognized key manager: " + key.keyManager);
+                    }
+                }
+            }
+            return new BiscuitWriter(this);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.wagmorelabs.biscuit;
+
+import java.security.KeyStoreException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * BlockingAsyncKeyManager adapts a blocking KeyManager to the AsyncKeyManager interface.
+ */
+class BlockingAsyncKeyManager implements AsyncKeyManager {
+    private final KeyManager keyManager;
+    private final Executor executor;
+
+    BlockingAsyncKeyManager(KeyManager keyManager, Executor executor) {
+        this.keyManager = keyManager;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptAsync(String keyID, byte[] keyCiphertext, String secretName) {
+        return CompletableFuture.supplyAsync(() -> {
+            byte[] key = keyManager.decrypt(keyID, keyCiphertext, secretName);
+            if (null == key) {
+                throw new CompletionException(new KeyStoreException("Unable to decrypt key with " + label()));
+            }
+            return key;
+        }, executor);
+    }
+
+    @Override
+    public String label() {
+        return keyManager.label();
+    }
+}
@@ -0,0 +1,48 @@
+package com.wagmorelabs.biscuit;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * BulkResult holds the outcome of decrypting several secrets at once.
+ *
+ * @param <T> The type of the decrypted values.
+ */
+public final class BulkResult<T> {
+    private final Map<String, T> values;
+    private final Map<String, Exception> failures;
+
+    BulkResult(Map<String, T> values, Map<String, Exception> failures) {
+        this.values = Collections.unmodifiableMap(values);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Returns the decrypted values by secret name, in the order the names were requested.
+     *
+     * @return
+     */
+    public Map<String, T> values() {
+        return values;
+    }
+
+    /**
+     * Returns the reason each failed secret could not be returned, by secret name. Secrets that do not exist are
+     * reported with a {@link java.util.NoSuchElementException}; secrets whose entries all failed to decrypt are
+     * reported with the exception thrown by the last entry.
+     *
+     * @return
+     */
+    public Map<String, Exception> failures() {
+        return failures;
+    }
+
+    /**
+     * Indicates whether every requested secret was decrypted.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return failures.isEmpty();
+    }
+}
@@ -0,0 +1,79 @@
+package com.wagmorelabs.biscuit;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * CachingKeyManager decorates a KeyManager with a {@link KeyCache} so that repeated requests for the same key do
+ * not reach the underlying key management service until the cached key expires.
+ */
+class CachingKeyManager implements KeyManager {
+    private final KeyManager delegate;
+    private final KeyCache cache;
+    private final BiscuitMetrics metrics;
+
+    CachingKeyManager(KeyManager delegate, KeyCache cache) {
+        this(delegate, cache, BiscuitMetrics.NONE);
+    }
+
+    CachingKeyManager(KeyManager delegate, KeyCache cache, BiscuitMetrics metrics) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+        KeyCache.CacheKey cacheKey = new KeyCache.CacheKey(label(), keyID, keyCiphertext, secretName);
+        byte[] key = cache.get(cacheKey);
+        if (key != null) {
+            metrics.keyCacheHit(label());
+            return key;
+        }
+        metrics.keyCacheMiss(label());
+        // The delegate is called without holding the cache lock; concurrent misses for the same key may each reach
+        // the key manager once.
+        key = delegate.decrypt(keyID, keyCiphertext, secretName);
+        if (key != null) {
+            cache.put(cacheKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * refresh() fetches a key from the delegate, bypassing the cache, and replaces the cached copy.
+     *
+     * @param keyID
+     * @param keyCiphertext
+     * @param secretName
+     * @return
+     */
+    byte[] refresh(String keyID, byte[] keyCiphertext, String secretName) {
+        byte[] key = delegate.decrypt(keyID, keyCiphertext, secretName);
+        if (key != null) {
+            cache.put(new KeyCache.CacheKey(label(), keyID, keyCiphertext, secretName), key);
+        }
+        return key;
+    }
+
+    /**
+     * remainingNanos() returns how long the cached key has left before it expires, or -1 if it is not cached.
+     *
+     * @param keyID
+     * @param keyCiphertext
+     * @param secretName
+     * @return
+     */
+    long remainingNanos(String keyID, byte[] keyCiphertext, String secretName) {
+        return cache.remainingNanos(new KeyCache.CacheKey(label(), keyID, keyCiphertext, secretName));
+    }
+
+    @Override
+    public DataKey generateDataKey(String keyID, String secretName) throws GeneralSecurityException {
+        return delegate.generateDataKey(keyID, secretName);
+    }
+
+    @Override
+    public String label() {
+        return delegate.label();
+    }
+}
@@ -0,0 +1,49 @@
+package com.wagmorelabs.biscuit;
+
+import java.util.Arrays;
+
+/**
+ * DataKey is a freshly generated data key, returned by {@link KeyManager#generateDataKey(String, String)}: the
+ * plaintext key used to encrypt a secret, and the same key encrypted by the key management service, which is stored
+ * alongside the secret.
+ */
+public final class DataKey {
+    private final byte[] plaintext;
+    private final byte[] ciphertext;
+
+    /**
+     * Constructor. The arrays are not copied.
+     *
+     * @param plaintext
+     * @param ciphertext
+     */
+    public DataKey(byte[] plaintext, byte[] ciphertext) {
+        this.plaintext = plaintext;
+        this.ciphertext = ciphertext;
+    }
+
+    /**
+     * Returns the plaintext key. The array is not copied; it is zeroed by {@link #destroy()}.
+     *
+     * @return
+     */
+    public byte[] plaintext() {
+        return plaintext;
+    }
+
+    /**
+     * Returns the encrypted key.
+     *
+     * @return
+     */
+    public byte[] ciphertext() {
+        return ciphertext;
+    }
+
+    /**
+     * destroy() zeroes the plaintext key.
+     */
+    public void destroy() {
+        Arrays.fill(plaintext, (byte) 0);
+    }
+}
@@ -0,0 +1,286 @@
+package com.wagmorelabs.biscuit;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * EntryHealth decides the order in which the entries of a secret are tried. It keeps a circuit breaker for each key
+ * manager and region, and remembers which entry of each secret last succeeded.
+ * <p>
+ * A breaker opens after failureThreshold consecutive failures of requests to a key manager. Only requests that reach
+ * the key manager count, not keys served from a cache, and key managers that can tell a service failure from a
+ * rejected key ciphertext report only the former as failures. Entries behind an open breaker are tried only after all
+ * others. Once a breaker has been open for openDuration, its entries are tried in order again, and the first request
+ * that reaches the key manager probes it; the probe's outcome closes the breaker or opens it again. The entry that
+ * last succeeded for a secret is tried first.
+ */
+class EntryHealth {
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier clock;
+    // breakers by key manager label and region
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Breaker>> breakers = new ConcurrentHashMap<>();
+    // breakers by key manager label and key ID, to avoid parsing the key ID on every lookup
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Breaker>> byKeyID = new ConcurrentHashMap<>();
+    // the entry that last succeeded, for secrets where it is not the first
+    private final ConcurrentHashMap<String, Winner> winners = new ConcurrentHashMap<>();
+    // advanced whenever the mapped stores change, making the winners of mapped secrets from earlier generations stale
+    private final AtomicLong generation = new AtomicLong();
+
+    EntryHealth(int failureThreshold, Duration openDuration) {
+        this(failureThreshold, openDuration, System::nanoTime);
+    }
+
+    EntryHealth(int failureThreshold, Duration openDuration, LongSupplier clock) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        if (openDuration.isNegative() || openDuration.isZero()) {
+            throw new IllegalArgumentException("openDuration must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * order() returns the entries of a secret in the order they should be tried: the last winner first, then the
+     * rest in file order, with entries whose breaker is open moved to the end.
+     *
+     * @param name
+     * @param entries
+     * @return
+     */
+    SecretEntry[] order(String name, SecretEntry[] entries) {
+        if (entries.length == 1) {
+            return entries;
+        }
+        Winner winner = winner(name);
+        int first = winner != null && winner.index < entries.length ? winner.index : 0;
+        SecretEntry[] ordered = new SecretEntry[entries.length];
+        SecretEntry[] unavailable = null;
+        int n = 0;
+        int skipped = 0;
+        long now = clock.getAsLong();
+        for (int i = -1; i < entries.length; i++) {
+            int index = i < 0 ? first : i;
+            if (i == first) {
+                continue;
+            }
+            SecretEntry entry = entries[index];
+            if (breaker(entry.keyManagerLabel(), entry.keyID()).available(now)) {
+                ordered[n++] = entry;
+            } else {
+                if (unavailable == null) {
+                    unavailable = new SecretEntry[entries.length];
+                }
+                unavailable[skipped++] = entry;
+            }
+        }
+        if (skipped > 0) {
+            System.arraycopy(unavailable, 0, ordered, n, skipped);
+        }
+        return ordered;
+    }
+
+    /**
+     * succeeded() records the entry that was used for a secret.
+     *
+     * @param name
+     * @param entries The entries of the secret in file order.
+     * @param winner
+     * @param mapped  Whether the secret was read from a mapped store rather than loaded with read().
+     */
+    void succeeded(String name, SecretEntry[] entries, SecretEntry winner, boolean mapped) {
+        if (entries.length == 1) {
+            return;
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == winner) {
+                if (i == 0) {
+                    winners.remove(name);
+                } else {
+                    winners.put(name, new Winner(i, mapped ? generation.get() : LOADED));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * attempting() records that a request for a key is about to be sent to a key manager. If the breaker of its key
+     * manager and region has been open for openDuration, the request becomes the breaker's probe.
+     *
+     * @param keyManager
+     * @param keyID
+     */
+    void attempting(String keyManager, String keyID) {
+        breaker(keyManager, keyID).attempt(clock.getAsLong());
+    }
+
+    /**
+     * keyResult() records whether a request to a key manager found it healthy.
+     *
+     * @param keyManager
+     * @param keyID
+     * @param success
+     */
+    void keyResult(String keyManager, String keyID, boolean success) {
+        Breaker breaker = breaker(keyManager, keyID);
+        if (success) {
+            breaker.success();
+        } else {
+            breaker.failure(clock.getAsLong());
+        }
+    }
+
+    /**
+     * forget() discards the remembered winners of secrets that were reloaded or removed.
+     *
+     * @param names
+     */
+    void forget(Collection<String> names) {
+        for (String name : names) {
+            winners.remove(name);
+        }
+    }
+
+    /**
+     * forgetMapped() discards the remembered winners of every secret read from a mapped store. They are dropped when
+     * next looked up, so this takes constant time however many secrets the stores hold.
+     */
+    void forgetMapped() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * preferredEntry() returns the index of the entry that is tried first for a secret.
+     *
+     * @param name
+     * @return
+     */
+    int preferredEntry(String name) {
+        Winner winner = winner(name);
+        return winner == null ? 0 : winner.index;
+    }
+
+    private Winner winner(String name) {
+        Winner winner = winners.get(name);
+        if (winner != null && winner.generation != LOADED && winner.generation != generation.get()) {
+            winners.remove(name, winner);
+            return null;
+        }
+        return winner;
+    }
+
+    private static final long LOADED = -1;
+
+    /**
+     * Winner is the index of the entry that last succeeded for a secret, and the generation of the mapped stores it
+     * was read from, or LOADED for secrets loaded with read().
+     */
+    private static final class Winner {
+        private final int index;
+        private final long generation;
+
+        Winner(int index, long generation) {
+            this.index = index;
+            this.generation = generation;
+        }
+    }
+
+    List<PathHealth> paths() {
+        List<PathHealth> paths = new ArrayList<>();
+        for (ConcurrentHashMap<String, Breaker> byRegion : breakers.values()) {
+            for (Breaker breaker : byRegion.values()) {
+                paths.add(breaker.snapshot());
+            }
+        }
+        return paths;
+    }
+
+    private Breaker breaker(String keyManager, String keyID) {
+        ConcurrentHashMap<String, Breaker> keys = byKeyID.get(keyManager);
+        if (keys == null) {
+            keys = byKeyID.computeIfAbsent(keyManager, label -> new ConcurrentHashMap<>());
+        }
+        String key = keyID == null ? "" : keyID;
+        Breaker breaker = keys.get(key);
+        if (breaker == null) {
+            String region = KmsKeyManager.getRegionFromKeyId(key);
+            String regionKey = region == null ? "" : region;
+            breaker = breakers.computeIfAbsent(keyManager, label -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(regionKey, r -> new Breaker(keyManager, region));
+            keys.putIfAbsent(key, breaker);
+        }
+        return breaker;
+    }
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    /**
+     * Breaker is the circuit breaker of one key manager and region.
+     */
+    private final class Breaker {
+        private final String keyManager;
+        private final String region;
+        private final AtomicInteger state = new AtomicInteger(CLOSED);
+        private final AtomicInteger failures = new AtomicInteger();
+        // when the breaker opened, or when the current probe started
+        private final AtomicLong since = new AtomicLong();
+
+        Breaker(String keyManager, String region) {
+            this.keyManager = keyManager;
+            this.region = region;
+        }
+
+        /**
+         * available() indicates whether an entry behind this breaker should be tried in order: the breaker is closed,
+         * or it is due a probe because it has been open for the open duration or its probe has not reported back
+         * within it.
+         */
+        boolean available(long now) {
+            return state.get() == CLOSED || now - since.get() >= openNanos;
+        }
+
+        /**
+         * attempt() makes a request the probe if the breaker is due one. Only one concurrent request wins the probe.
+         */
+        void attempt(long now) {
+            if (state.get() == CLOSED) {
+                return;
+            }
+            long opened = since.get();
+            if (now - opened >= openNanos && since.compareAndSet(opened, now)) {
+                state.compareAndSet(OPEN, HALF_OPEN);
+            }
+        }
+
+        void success() {
+            failures.set(0);
+            state.set(CLOSED);
+        }
+
+        void failure(long now) {
+            if (failures.incrementAndGet() >= failureThreshold || state.get() == HALF_OPEN) {
+                since.set(now);
+                state.set(OPEN);
+            }
+        }
+
+        PathHealth snapshot() {
+            int current = state.get();
+            PathHealth.State s = current == CLOSED ? PathHealth.State.CLOSED
+                    : current == HALF_OPEN ? PathHealth.State.HALF_OPEN : PathHealth.State.OPEN;
+            return new PathHealth(keyManager, region, s, failures.get());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.wagmorelabs.biscuit;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FileWatcher keeps a Biscuit up to date with a secrets file. When the file changes it waits until the file has been
+ * quiet for the debounce interval, parses it again, and applies only the secrets whose entries changed or that were
+ * removed. If the file cannot be read or parsed, the secrets already loaded are kept.
+ */
+class FileWatcher implements Closeable {
+    private static final Logger logger = Logger.getLogger(FileWatcher.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // how long close() waits for a reload in progress to finish
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final Biscuit biscuit;
+    private final Path path;
+    private final long debounceNanos;
+    private final WatchService watchService;
+    private final Thread thread;
+    // digests of the entries of each secret last loaded from the file; guarded by this
+    private Map<String, byte[]> digests = new HashMap<>();
+
+    FileWatcher(Biscuit biscuit, Path path, Duration debounce) throws IOException {
+        this.biscuit = biscuit;
+        this.path = path.toAbsolutePath();
+        this.debounceNanos = debounce.toNanos();
+        this.watchService = this.path.getFileSystem().newWatchService();
+        this.thread = new Thread(this::run, "biscuit-watch-" + this.path.getFileName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * start() loads the file and then watches it for changes.
+     *
+     * @throws IOException if the file cannot be read. The watch is not started.
+     */
+    void start() throws IOException {
+        // register before the first load so that a change made during the load is not missed
+        path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        try {
+            reload();
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        thread.start();
+    }
+
+    /**
+     * reload() parses the file and applies the differences from the previous load to the Biscuit.
+     *
+     * @throws IOException
+     */
+    synchronized void reload() throws IOException {
+        Map<String, byte[]> loaded = new HashMap<>();
+        Map<String, SecretEntry[]> changed = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, UTF8)) {
+            SecretsParser.parse(reader, (name, entries) -> {
+                byte[] digest = digest(entries);
+                loaded.put(name, digest);
+                byte[] previous = digests.get(name);
+                if (previous == null || !MessageDigest.isEqual(previous, digest)) {
+                    changed.put(name, biscuit.newEntries(entries));
+                }
+            });
+        }
+        Set<String> removed = new HashSet<>(digests.keySet());
+        removed.removeAll(loaded.keySet());
+        digests = loaded;
+        if (!changed.isEmpty() || !removed.isEmpty()) {
+            biscuit.apply(changed, removed);
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!drain(watchService.take())) {
+                    continue;
+                }
+                // debounce: wait until no events have arrived for the debounce interval
+                WatchKey key;
+                while ((key = watchService.poll(debounceNanos, TimeUnit.NANOSECONDS)) != null) {
+                    drain(key);
+                }
+                try {
+                    reload();
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Unable to reload " + path + "; keeping previous secrets", e);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * drain() consumes the events of a key and returns true if any of them may concern the watched file.
+     */
+    private boolean drain(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || path.getFileName().equals(event.context())) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    /**
+     * close() stops watching the file and waits a few seconds for a reload in progress to finish, so that no reload
+     * is applied after close() returns unless the wait times out. Secrets already loaded are kept.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+        if (Thread.currentThread() == thread) {
+            // closed by a change listener
+            return;
+        }
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (thread.isAlive()) {
+            logger.warning("Timed out waiting for the watch of " + path + " to stop");
+        }
+    }
+
+    boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    /**
+     * digest() returns a SHA-256 hash of the fields of each entry, so that the raw document need not be retained.
+     */
+    static byte[] digest(List<Map<String, String>> entries) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Map<String, String> entry : entries) {
+            for (Map.Entry<String, String> field : new TreeMap<>(entry).entrySet()) {
+                sha256.update(field.getKey().getBytes(UTF8));
+                sha256.update((byte) 0);
+                sha256.update(field.getValue().getBytes(UTF8));
+                sha256.update((byte) 0);
+            }
+            sha256.update((byte) 1);
+        }
+        return sha256.digest();
+    }
+}
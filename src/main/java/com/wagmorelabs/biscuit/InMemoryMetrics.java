@@ -0,0 +1,269 @@
+package com.wagmorelabs.biscuit;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * InMemoryMetrics is a BiscuitMetrics that accumulates counters and latency histograms in memory so that they can be
+ * read, for example by a metrics exporter. Recording does not take locks.
+ */
+public final class InMemoryMetrics implements BiscuitMetrics {
+    private final ConcurrentHashMap<String, Histogram> secrets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> keyManagers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> algorithms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> fallbacks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> hedges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> kmsErrors = new ConcurrentHashMap<>();
+    private final LongAdder keyCacheHits = new LongAdder();
+    private final LongAdder keyCacheMisses = new LongAdder();
+    private final LongAdder plaintextCacheHits = new LongAdder();
+    private final LongAdder plaintextCacheMisses = new LongAdder();
+
+    @Override
+    public void secretDecrypted(String name, long nanos, boolean success) {
+        histogram(secrets, name).record(nanos);
+        if (!success) {
+            counter(failures, "secret:" + name).increment();
+        }
+    }
+
+    @Override
+    public void keyDecrypted(String keyManager, long nanos, boolean success) {
+        histogram(keyManagers, keyManager).record(nanos);
+        if (!success) {
+            counter(failures, "key_manager:" + keyManager).increment();
+        }
+    }
+
+    @Override
+    public void algorithmDecrypted(String algorithm, long nanos, boolean success) {
+        histogram(algorithms, algorithm).record(nanos);
+        if (!success) {
+            counter(failures, "algorithm:" + algorithm).increment();
+        }
+    }
+
+    @Override
+    public void keyCacheHit(String keyManager) {
+        keyCacheHits.increment();
+    }
+
+    @Override
+    public void keyCacheMiss(String keyManager) {
+        keyCacheMisses.increment();
+    }
+
+    @Override
+    public void plaintextCacheHit(String name) {
+        plaintextCacheHits.increment();
+    }
+
+    @Override
+    public void plaintextCacheMiss(String name) {
+        plaintextCacheMisses.increment();
+    }
+
+    @Override
+    public void entryFallback(String name, String keyManager) {
+        counter(fallbacks, name).increment();
+    }
+
+    @Override
+    public void entryHedged(String name, String keyManager) {
+        counter(hedges, name).increment();
+    }
+
+    @Override
+    public void kmsError(String region, String errorType) {
+        counter(kmsErrors, region + ":" + errorType).increment();
+    }
+
+    /**
+     * Returns the latency histograms of secret lookups, by secret name.
+     *
+     * @return
+     */
+    public Map<String, Histogram> secretLatencies() {
+        return Collections.unmodifiableMap(new TreeMap<>(secrets));
+    }
+
+    /**
+     * Returns the latency histograms of key decryption, by key manager label.
+     *
+     * @return
+     */
+    public Map<String, Histogram> keyManagerLatencies() {
+        return Collections.unmodifiableMap(new TreeMap<>(keyManagers));
+    }
+
+    /**
+     * Returns the latency histograms of ciphertext decryption, by algorithm label.
+     *
+     * @return
+     */
+    public Map<String, Histogram> algorithmLatencies() {
+        return Collections.unmodifiableMap(new TreeMap<>(algorithms));
+    }
+
+    /**
+     * Returns failure counts keyed by "secret:name", "key_manager:label" or "algorithm:label".
+     *
+     * @return
+     */
+    public Map<String, Long> failures() {
+        return sums(failures);
+    }
+
+    /**
+     * Returns the number of times each secret fell back to a later entry.
+     *
+     * @return
+     */
+    public Map<String, Long> entryFallbacks() {
+        return sums(fallbacks);
+    }
+
+    /**
+     * Returns the number of times each secret started a hedged attempt on a later entry.
+     *
+     * @return
+     */
+    public Map<String, Long> entryHedges() {
+        return sums(hedges);
+    }
+
+    /**
+     * Returns KMS error counts keyed by "region:errorType".
+     *
+     * @return
+     */
+    public Map<String, Long> kmsErrors() {
+        return sums(kmsErrors);
+    }
+
+    public long keyCacheHits() {
+        return keyCacheHits.sum();
+    }
+
+    public long keyCacheMisses() {
+        return keyCacheMisses.sum();
+    }
+
+    public long plaintextCacheHits() {
+        return plaintextCacheHits.sum();
+    }
+
+    public long plaintextCacheMisses() {
+        return plaintextCacheMisses.sum();
+    }
+
+    private static Histogram histogram(ConcurrentHashMap<String, Histogram> histograms, String key) {
+        // get() first: computeIfAbsent() locks the bin even when the key is present
+        Histogram histogram = histograms.get(key);
+        return histogram != null ? histogram : histograms.computeIfAbsent(key, k -> new Histogram());
+    }
+
+    private static LongAdder counter(ConcurrentHashMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        return counter != null ? counter : counters.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            sums.put(entry.getKey(), entry.getValue().sum());
+        }
+        return Collections.unmodifiableMap(sums);
+    }
+
+    /**
+     * Histogram counts durations in buckets whose bounds are powers of two nanoseconds, so that each bucket spans at
+     * most a factor of two. Bucket i holds durations in [2^(i-1), 2^i), and bucket 0 holds durations of zero.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[bucket(nanos)].increment();
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        static int bucket(long nanos) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sumNanos() {
+            return sum.sum();
+        }
+
+        public long maxNanos() {
+            return max.get();
+        }
+
+        /**
+         * Returns an upper bound for the given percentile, in nanoseconds: the largest value the bucket
+         * containing it can hold, capped at the largest recorded value. Returns 0 if nothing has been recorded.
+         *
+         * @param percentile A value between 0 and 100.
+         * @return
+         */
+        public long percentileNanos(double percentile) {
+            long[] counts = bucketCounts();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    long bound = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(bound, maxNanos());
+                }
+            }
+            return maxNanos();
+        }
+
+        /**
+         * Returns the number of durations recorded in each bucket.
+         *
+         * @return
+         */
+        public long[] bucketCounts() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+    }
+}
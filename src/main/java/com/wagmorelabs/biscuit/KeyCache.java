@@ -0,0 +1,210 @@
+package com.wagmorelabs.biscuit;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * KeyCache holds plaintext data keys returned by key managers. The cache is bounded by both entry count and age;
+ * entries are evicted in least-recently-used order and their key material is zeroed when they leave the cache. Expired
+ * keys are dropped by the next call to the cache, whether or not it is for them.
+ */
+class KeyCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    // entries in least-recently-used order, for eviction by count
+    private final LinkedHashMap<CacheKey, CachedKey> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // the same entries in the order they were fetched, which is also the order in which they expire
+    private final LinkedHashMap<CacheKey, CachedKey> fetched = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries The maximum number of keys to retain.
+     * @param ttl        The maximum amount of time a key is retained after it was fetched from the key manager.
+     */
+    KeyCache(int maxEntries, Duration ttl) {
+        this(maxEntries, ttl, System::nanoTime);
+    }
+
+    KeyCache(int maxEntries, Duration ttl, LongSupplier clock) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * get() returns a copy of the cached key, or null if there is no unexpired entry.
+     *
+     * @param key
+     * @return
+     */
+    synchronized byte[] get(CacheKey key) {
+        expire(clock.getAsLong());
+        CachedKey cached = entries.get(key);
+        return cached == null ? null : cached.key.clone();
+    }
+
+    /**
+     * remainingNanos() returns how long the cached key has left before it expires, or -1 if there is none. Unlike
+     * {@link #get(CacheKey)}, this does not count as a use of the key for eviction.
+     *
+     * @param key
+     * @return
+     */
+    synchronized long remainingNanos(CacheKey key) {
+        long now = clock.getAsLong();
+        expire(now);
+        CachedKey cached = fetched.get(key);
+        if (cached == null) {
+            return -1;
+        }
+        return Math.max(0, ttlNanos - (now - cached.fetchedAt));
+    }
+
+    /**
+     * put() stores a copy of a key.
+     *
+     * @param key
+     * @param plaintextKey
+     */
+    synchronized void put(CacheKey key, byte[] plaintextKey) {
+        long now = clock.getAsLong();
+        expire(now);
+        CacheKey retained = key.retain();
+        CachedKey cached = new CachedKey(plaintextKey.clone(), now);
+        CachedKey previous = entries.put(retained, cached);
+        if (previous != null) {
+            // re-inserting moves the key to the end of the fetch order
+            fetched.remove(retained);
+            previous.destroy();
+        }
+        fetched.put(retained, cached);
+        if (entries.size() > maxEntries) {
+            Iterator<Map.Entry<CacheKey, CachedKey>> eldest = entries.entrySet().iterator();
+            Map.Entry<CacheKey, CachedKey> evicted = eldest.next();
+            eldest.remove();
+            fetched.remove(evicted.getKey());
+            evicted.getValue().destroy();
+        }
+    }
+
+    /**
+     * expire() zeroes and drops every expired key. Keys expire in the order they were fetched, so only the expired
+     * keys and the first unexpired one are visited.
+     */
+    private void expire(long now) {
+        for (Iterator<Map.Entry<CacheKey, CachedKey>> it = fetched.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<CacheKey, CachedKey> entry = it.next();
+            if (now - entry.getValue().fetchedAt < ttlNanos) {
+                return;
+            }
+            it.remove();
+            entries.remove(entry.getKey());
+            entry.getValue().destroy();
+        }
+    }
+
+    /**
+     * invalidateAll() evicts every entry.
+     */
+    synchronized void invalidateAll() {
+        for (CachedKey cached : fetched.values()) {
+            cached.destroy();
+        }
+        fetched.clear();
+        entries.clear();
+    }
+
+    /**
+     * retained() returns the cache's own array for a key rather than a copy, so that tests can observe zeroing.
+     */
+    synchronized byte[] retained(CacheKey key) {
+        CachedKey cached = fetched.get(key);
+        return cached == null ? null : cached.key;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * CacheKey identifies a key by the key manager, key ID, encrypted key, and the secret it was requested for.
+     */
+    static final class CacheKey {
+        private final String keyManager;
+        private final String keyID;
+        private final byte[] keyCiphertext;
+        private final String secretName;
+        private final int hash;
+
+        /**
+         * Constructor. The key does not copy keyCiphertext; see {@link #retain()}.
+         */
+        CacheKey(String keyManager, String keyID, byte[] keyCiphertext, String secretName) {
+            this.keyManager = keyManager;
+            this.keyID = keyID;
+            this.keyCiphertext = keyCiphertext;
+            this.secretName = secretName;
+            int h = keyManager.hashCode();
+            h = 31 * h + (keyID == null ? 0 : keyID.hashCode());
+            h = 31 * h + Arrays.hashCode(this.keyCiphertext);
+            h = 31 * h + (secretName == null ? 0 : secretName.hashCode());
+            this.hash = h;
+        }
+
+        /**
+         * Returns a key that holds its own copy of the encrypted key, suitable for storing beyond the current call.
+         *
+         * @return
+         */
+        CacheKey retain() {
+            return new CacheKey(keyManager, keyID, keyCiphertext.clone(), secretName);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash
+                    && keyManager.equals(other.keyManager)
+                    && (keyID == null ? other.keyID == null : keyID.equals(other.keyID))
+                    && Arrays.equals(keyCiphertext, other.keyCiphertext)
+                    && (secretName == null ? other.secretName == null : secretName.equals(other.secretName));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class CachedKey {
+        private final byte[] key;
+        private final long fetchedAt;
+
+        CachedKey(byte[] key, long fetchedAt) {
+            this.key = key;
+            this.fetchedAt = fetchedAt;
+        }
+
+        void destroy() {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.wagmorelabs.biscuit;
 
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+
 /**
  * KeyManager wraps a key management service.
  */
@@ -8,12 +11,27 @@ public interface KeyManager {
      * Decrypts an encrypted key.
      *
      * @param keyID
-     * @param keyCiphertext
+     * @param keyCiphertext The encrypted key. Implementations must not modify this array.
      * @param secretName    The name of the secret being decrypted.
      * @return
      */
     byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName);
 
+    /**
+     * Generates a new 256-bit data key for encrypting a secret. The encrypted key must be one that
+     * {@link #decrypt(String, byte[], String)} accepts for the same key ID and secret name. Key managers that do not
+     * override this method cannot generate keys; it throws KeyStoreException.
+     *
+     * @param keyID
+     * @param secretName The name of the secret the key will encrypt.
+     * @return
+     * @throws GeneralSecurityException if the key management service fails to generate a key, or the key manager
+     *                                  cannot generate keys.
+     */
+    default DataKey generateDataKey(String keyID, String secretName) throws GeneralSecurityException {
+        throw new KeyStoreException("Key manager " + label() + " cannot generate data keys");
+    }
+
     /**
      * Returns the string used in the secret store to identify this key management service.
      *
@@ -0,0 +1,164 @@
+package com.wagmorelabs.biscuit;
+
+import com.amazonaws.services.kms.AWSKMS;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * KmsClientPool holds one AWSKMS client per region. Clients are created lazily on first use, once per region however
+ * many threads ask for it at the same time. If an idle timeout is configured, the factory must return a new client on
+ * each call, and clients are shut down once they have not been used for that long; otherwise the clients belong to
+ * the factory and are never shut down by the pool.
+ */
+class KmsClientPool {
+    private final KmsKeyManager.AWSKMSFactory factory;
+    private final long idleNanos;
+    private final boolean ownsClients;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, CompletableFuture<PooledClient>> clients = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep;
+
+    /**
+     * Constructor.
+     *
+     * @param factory
+     * @param idleTimeout How long a client may go unused before it is shut down, or null to keep clients forever.
+     */
+    KmsClientPool(KmsKeyManager.AWSKMSFactory factory, Duration idleTimeout) {
+        this(factory, idleTimeout, System::nanoTime);
+    }
+
+    KmsClientPool(KmsKeyManager.AWSKMSFactory factory, Duration idleTimeout, LongSupplier clock) {
+        if (idleTimeout != null && (idleTimeout.isNegative() || idleTimeout.isZero())) {
+            throw new IllegalArgumentException("idleTimeout must be positive");
+        }
+        this.factory = factory;
+        this.idleNanos = idleTimeout == null ? Long.MAX_VALUE : idleTimeout.toNanos();
+        this.ownsClients = idleTimeout != null;
+        this.clock = clock;
+        this.lastSweep = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * acquire() returns the client for a region, creating it if necessary. Every call must be paired with a call to
+     * {@link PooledClient#release()}.
+     *
+     * @param region
+     * @return
+     */
+    PooledClient acquire(String region) {
+        long now = clock.getAsLong();
+        evictIdle(now);
+        while (true) {
+            CompletableFuture<PooledClient> created = new CompletableFuture<>();
+            CompletableFuture<PooledClient> future = clients.computeIfAbsent(region, r -> created);
+            if (future == created) {
+                // clients are slow to build, and the factory may use the pool, so build outside of the map's locks;
+                // other threads wait for this one rather than building clients of their own
+                try {
+                    created.complete(new PooledClient(factory.create(region)));
+                } catch (RuntimeException | Error e) {
+                    clients.remove(region, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+            PooledClient pooled = join(future);
+            // taking a client and evicting it are both done under the map's lock for the region
+            if (clients.computeIfPresent(region, (r, current) -> {
+                if (current == future) {
+                    pooled.inUse.incrementAndGet();
+                    pooled.lastUsed = now;
+                }
+                return current;
+            }) == future) {
+                return pooled;
+            }
+            // the client was evicted or the pool shut down meanwhile
+        }
+    }
+
+    private static PooledClient join(CompletableFuture<PooledClient> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    /**
+     * shutdown() forgets every client, shutting them down if the pool owns them.
+     */
+    void shutdown() {
+        for (String region : clients.keySet()) {
+            clients.computeIfPresent(region, (r, future) -> {
+                if (ownsClients) {
+                    // a client still being built is shut down once it is ready
+                    future.thenAccept(pooled -> pooled.client.shutdown());
+                }
+                return null;
+            });
+        }
+    }
+
+    private void evictIdle(long now) {
+        if (!ownsClients) {
+            return;
+        }
+        long previous = lastSweep.get();
+        if (now - previous < idleNanos / 2 || !lastSweep.compareAndSet(previous, now)) {
+            return;
+        }
+        for (String region : clients.keySet()) {
+            clients.computeIfPresent(region, (r, future) -> {
+                if (!future.isDone() || future.isCompletedExceptionally()) {
+                    return future;
+                }
+                PooledClient pooled = future.join();
+                if (pooled.inUse.get() == 0 && now - pooled.lastUsed >= idleNanos) {
+                    pooled.client.shutdown();
+                    return null;
+                }
+                return future;
+            });
+        }
+    }
+
+    /**
+     * PooledClient is a client on loan from the pool.
+     */
+    final class PooledClient {
+        private final AWSKMS client;
+        private final AtomicInteger inUse = new AtomicInteger();
+        private volatile long lastUsed;
+
+        private PooledClient(AWSKMS client) {
+            this.client = client;
+        }
+
+        AWSKMS client() {
+            return client;
+        }
+
+        void release() {
+            lastUsed = clock.getAsLong();
+            inUse.decrementAndGet();
+        }
+    }
+}
@@ -1,12 +1,31 @@
 package com.wagmorelabs.biscuit;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.AWSKMSClient;
+import com.amazonaws.services.kms.model.DataKeySpec;
 import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
 
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,8 +35,12 @@ import java.util.logging.Logger;
 public class KmsKeyManager implements KeyManager {
     private static final Logger logger = Logger.getLogger(KmsKeyManager.class.getName());
     private static final String LABEL = "kms";
-    private final AWSKMSFactory factory;
+    private final KmsClientPool clients;
     private final String regionHint;
+    private final ConcurrentHashMap<String, String> regions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Flight, SharedKey> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private volatile BiscuitMetrics metrics = BiscuitMetrics.NONE;
 
     /**
      * AWSKMSFactory implementations build AWSKMS clients for a particular region.
@@ -27,45 +50,358 @@ public class KmsKeyManager implements KeyManager {
     }
 
     /**
-     * KmsKeyManager constructor.
+     * KmsKeyManager constructor. Clients are kept for the lifetime of the KmsKeyManager and belong to the factory, so
+     * KmsKeyManager never shuts them down.
      *
      * @param factory    The AWSKMSFactory responsible for constructing AWSKMS clients for each region. KmsKeyManager
-     *                   does not cache clients and will ask the factory for clients multiple times per region, so it is
-     *                   up to the caller to manage the pool of AWSKMS clients and ensure they are configured
-     *                   appropriately.
+     *                   asks the factory for a client the first time each region is used and reuses that client for
+     *                   all subsequent requests to the region.
      * @param regionHint The region to use when the key ID does not include a region.
      */
     public KmsKeyManager(AWSKMSFactory factory, String regionHint) {
-        this.factory = factory;
+        this(factory, regionHint, null);
+    }
+
+    /**
+     * KmsKeyManager constructor.
+     *
+     * @param factory     The AWSKMSFactory responsible for constructing AWSKMS clients for each region. KmsKeyManager
+     *                    asks the factory for a client the first time each region is used, and again after an idle
+     *                    client has been shut down, so the factory must return a new client on each call.
+     * @param regionHint  The region to use when the key ID does not include a region.
+     * @param idleTimeout How long a region's client may go unused before it is shut down, or null to keep clients for
+     *                    the lifetime of the KmsKeyManager.
+     */
+    public KmsKeyManager(AWSKMSFactory factory, String regionHint, Duration idleTimeout) {
+        this(new KmsClientPool(factory, idleTimeout), regionHint);
+    }
+
+    KmsKeyManager(KmsClientPool clients, String regionHint) {
+        this.clients = clients;
         this.regionHint = regionHint;
     }
 
+    /**
+     * clientFactory returns an AWSKMSFactory that builds a new AWSKMSClient for each region, allowing at most
+     * maxConnections concurrent HTTP connections per region.
+     *
+     * @param credentials
+     * @param maxConnections
+     * @return
+     */
+    public static AWSKMSFactory clientFactory(AWSCredentialsProvider credentials, int maxConnections) {
+        return region -> Region.getRegion(Regions.fromName(region)).createClient(AWSKMSClient.class, credentials,
+                new ClientConfiguration().withMaxConnections(maxConnections));
+    }
+
+    /**
+     * withMetrics() reports failed KMS requests to metrics by region and error code.
+     *
+     * @param metrics
+     * @return
+     */
+    public KmsKeyManager withMetrics(BiscuitMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * forBiscuit() returns a view of this key manager for one Biscuit. The view reports failed requests to the
+     * Biscuit's metrics unless {@link #withMetrics(BiscuitMetrics)} has been called, and, if health is not null,
+     * records the outcome of each request to KMS in its circuit breakers. Only throttling, server errors and
+     * transport failures count as failures; KMS rejecting a key ciphertext does not. The key manager itself is not
+     * changed, so it may be shared.
+     *
+     * @param metrics
+     * @param health
+     * @return
+     */
+    KeyManager forBiscuit(BiscuitMetrics metrics, EntryHealth health) {
+        return new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                BiscuitMetrics own = KmsKeyManager.this.metrics;
+                return KmsKeyManager.this.decrypt(keyID, keyCiphertext, secretName,
+                        own == BiscuitMetrics.NONE ? metrics : own, health);
+            }
+
+            @Override
+            public DataKey generateDataKey(String keyID, String secretName) throws GeneralSecurityException {
+                return KmsKeyManager.this.generateDataKey(keyID, secretName);
+            }
+
+            @Override
+            public String label() {
+                return LABEL;
+            }
+        };
+    }
+
+    /**
+     * isServiceFailure() indicates whether an error from KMS says that the service, rather than the request, is at
+     * fault.
+     *
+     * @param ex
+     * @return
+     */
+    static boolean isServiceFailure(AmazonServiceException ex) {
+        return ex.getStatusCode() >= 500 || "ThrottlingException".equals(ex.getErrorCode());
+    }
+
+    /**
+     * shutdown() forgets every client, shutting them down if this KmsKeyManager was given an idle timeout.
+     */
+    public void shutdown() {
+        clients.shutdown();
+    }
+
+    /**
+     * Decrypts an encrypted key. Concurrent calls for the same region, encrypted key and secret name share a single
+     * request to KMS.
+     */
     @Override
     public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+        return decrypt(keyID, keyCiphertext, secretName, metrics, null);
+    }
+
+    /**
+     * decrypt() decrypts an encrypted key, reporting a failed request to metrics and recording the request in health
+     * if it is not null. A caller that shares another's request reports nothing; the request is reported by the
+     * caller that sent it.
+     */
+    private byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName, BiscuitMetrics metrics,
+                           EntryHealth health) {
+        String region = resolveRegion(keyID);
+        Flight flight = new Flight(region, keyCiphertext, secretName);
+        SharedKey shared = new SharedKey();
+        SharedKey existing;
+        while ((existing = inFlight.putIfAbsent(flight, shared)) != null) {
+            // a request that has already been released has also left the map, so the next attempt leads
+            if (existing.hold()) {
+                coalesced.increment();
+                return follow(existing);
+            }
+        }
         try {
-            String region = getRegionFromKeyId(keyID);
-            if (null == region) {
-                region = regionHint;
+            byte[] key = decryptWithKms(keyID, region, keyCiphertext, secretName, metrics, health);
+            shared.result.complete(key);
+            return key == null ? null : key.clone();
+        } catch (Throwable ex) {
+            // followers must never be left waiting, whatever the leader throws
+            shared.result.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(flight, shared);
+            shared.release();
+        }
+    }
+
+    private static byte[] follow(SharedKey shared) {
+        try {
+            byte[] key = shared.result.join();
+            return key == null ? null : key.clone();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
-            AWSKMS client = this.factory.create(region);
-            Map<String, String> encryptionContext = new HashMap<>();
-            encryptionContext.put("SecretName", secretName);
-            return client.decrypt(
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        } finally {
+            shared.release();
+        }
+    }
+
+    /**
+     * Returns the number of decrypt calls that were satisfied by sharing another caller's in-flight request.
+     *
+     * @return
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    private byte[] decryptWithKms(String keyID, String region, byte[] keyCiphertext, String secretName,
+                                  BiscuitMetrics metrics, EntryHealth health) {
+        KmsClientPool.PooledClient pooled = clients.acquire(region);
+        if (health != null) {
+            health.attempting(LABEL, keyID);
+        }
+        boolean healthy = false;
+        try {
+            byte[] key = toArray(pooled.client().decrypt(
                     new DecryptRequest()
-                            .withEncryptionContext(encryptionContext)
+                            .withEncryptionContext(encryptionContext(secretName))
                             .withCiphertextBlob(ByteBuffer.wrap(keyCiphertext))
-            ).getPlaintext().array();
+            ).getPlaintext());
+            healthy = true;
+            return key;
         } catch (AmazonServiceException ex) {
+            healthy = !isServiceFailure(ex);
+            metrics.kmsError(region, ex.getErrorCode());
             logger.log(Level.WARNING, "Exception when attempting to decrypt key", ex);
             return null;
+        } catch (AmazonClientException ex) {
+            metrics.kmsError(region, ex.getClass().getSimpleName());
+            throw ex;
+        } finally {
+            pooled.release();
+            // an interrupted request says nothing about KMS
+            if (health != null && (healthy || !Thread.currentThread().isInterrupted())) {
+                health.keyResult(LABEL, keyID, healthy);
+            }
         }
     }
 
+    /**
+     * Generates a data key with KMS GenerateDataKey, in the region named by the key ARN or the region hint, bound
+     * to the secret by the SecretName encryption context.
+     */
+    @Override
+    public DataKey generateDataKey(String keyID, String secretName) throws GeneralSecurityException {
+        String region = resolveRegion(keyID);
+        KmsClientPool.PooledClient pooled = clients.acquire(region);
+        try {
+            GenerateDataKeyResult result = pooled.client().generateDataKey(
+                    new GenerateDataKeyRequest()
+                            .withKeyId(keyID)
+                            .withKeySpec(DataKeySpec.AES_256)
+                            .withEncryptionContext(encryptionContext(secretName)));
+            return new DataKey(toArray(result.getPlaintext()), toArray(result.getCiphertextBlob()));
+        } catch (AmazonServiceException ex) {
+            metrics.kmsError(region, ex.getErrorCode());
+            throw new KeyStoreException("Unable to generate data key with " + keyID + " in " + region, ex);
+        } catch (AmazonClientException ex) {
+            metrics.kmsError(region, ex.getClass().getSimpleName());
+            throw ex;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * resolveRegion returns the region named by a key ARN, or the region hint. Results are cached per key ID.
+     *
+     * @param keyID
+     * @return
+     */
+    String resolveRegion(String keyID) {
+        if (null == keyID) {
+            return regionHint;
+        }
+        String region = regions.get(keyID);
+        if (null == region) {
+            region = getRegionFromKeyId(keyID);
+            if (null == region) {
+                region = regionHint;
+            }
+            if (null != region) {
+                regions.put(keyID, region);
+            }
+        }
+        return region;
+    }
+
     @Override
     public String label() {
         return LABEL;
     }
 
+    /**
+     * SharedKey is the result of a KMS decrypt request, shared by the callers that asked for the same key while it
+     * was in flight. Each caller returns its own copy of the key; the last to release it zeroes the original.
+     */
+    private static final class SharedKey {
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        // the leader holds the key until it has copied it
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        /**
+         * hold() adds a holder, unless the key has already been released by every holder.
+         */
+        boolean hold() {
+            while (true) {
+                int n = holders.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (holders.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            // the leader releases only after completing the result
+            if (holders.decrementAndGet() == 0 && !result.isCompletedExceptionally()) {
+                byte[] key = result.join();
+                if (key != null) {
+                    Arrays.fill(key, (byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flight identifies a KMS decrypt request by region, encrypted key, and the SecretName encryption context.
+     */
+    private static final class Flight {
+        private final String region;
+        private final ByteBuffer keyCiphertext;
+        private final String secretName;
+
+        Flight(String region, byte[] keyCiphertext, String secretName) {
+            this.region = region;
+            this.keyCiphertext = ByteBuffer.wrap(keyCiphertext.clone());
+            this.secretName = secretName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Flight)) {
+                return false;
+            }
+            Flight other = (Flight) o;
+            return Objects.equals(region, other.region)
+                    && keyCiphertext.equals(other.keyCiphertext)
+                    && Objects.equals(secretName, other.secretName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(region, keyCiphertext, secretName);
+        }
+    }
+
+    /**
+     * encryptionContext returns the KMS encryption context binding a key to the secret it protects.
+     *
+     * @param secretName
+     * @return
+     */
+    static Map<String, String> encryptionContext(String secretName) {
+        Map<String, String> encryptionContext = new HashMap<>();
+        encryptionContext.put("SecretName", secretName);
+        return encryptionContext;
+    }
+
+    /**
+     * toArray copies the remaining bytes of a buffer returned by the SDK.
+     *
+     * @param buffer
+     * @return
+     */
+    static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     /**
      * getRegionFromKeyId extracts the region from a key ARN, or returns null if not present.
      *
@@ -0,0 +1,345 @@
+package com.wagmorelabs.biscuit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MappedStore is a secrets file compiled to a binary form that is read through a memory mapping. Opening a store
+ * reads only its header, and each lookup binary searches the name index and decodes just the entries of the
+ * requested secret, whose ciphertexts are slices of the mapping.
+ * <p>
+ * The layout, in big-endian order, is:
+ * <pre>
+ * int      magic "BSCT"
+ * int      version (1)
+ * int      number of secrets
+ * int[]    offset of each secret's record, sorted by the UTF-8 bytes of the names
+ * records  u16 name length, name, u16 entry count, then for each entry:
+ *          u16 length + key_id, u16 length + key_manager, u16 length + algorithm,
+ *          i32 length + key_ciphertext, i32 length + ciphertext
+ * </pre>
+ * Strings are UTF-8; the encrypted key and ciphertext are stored decoded from base64.
+ */
+class MappedStore {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int MAGIC = 0x42534354;
+    static final int VERSION = 1;
+    private static final int HEADER = 12;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final int count;
+
+    /**
+     * EntryFactory resolves the labels of an entry read from the store.
+     */
+    interface EntryFactory {
+        SecretEntry entry(String keyID, String keyManagerLabel, String algorithmLabel, byte[] keyCiphertext,
+                          ByteBuffer ciphertext);
+    }
+
+    private MappedStore(Path path, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled secrets file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported compiled secrets file version: " + buffer.getInt(4));
+        }
+        this.count = buffer.getInt(8);
+        if (count < 0 || (long) HEADER + 4L * count > buffer.limit()) {
+            throw new IOException("Truncated compiled secrets file");
+        }
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    /**
+     * open() maps a compiled secrets file.
+     *
+     * @param path
+     * @return
+     * @throws IOException if the file cannot be read or is not a compiled secrets file.
+     */
+    static MappedStore open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedStore(key(path), mapped);
+        }
+    }
+
+    /**
+     * key() returns the path by which stores mapped from a file are identified.
+     *
+     * @param path
+     * @return
+     */
+    static Path key(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * path() returns the absolute path of the file the store was mapped from.
+     *
+     * @return
+     */
+    Path path() {
+        return path;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * get() returns the entries of a secret, or null if the store does not contain it.
+     *
+     * @param name
+     * @param factory
+     * @return
+     * @throws GeneralSecurityException if the part of the file read for the secret is corrupt.
+     */
+    SecretEntry[] get(String name, EntryFactory factory) throws GeneralSecurityException {
+        byte[] key = name.getBytes(UTF8);
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int record = record(mid);
+            int cmp = compareName(record, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return entries(record + 2 + key.length, factory);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * names() returns the names of the secrets in the store, in index order. Names are decoded as they are accessed.
+     *
+     * @return
+     */
+    List<String> names() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException(String.valueOf(index));
+                }
+                try {
+                    int record = record(index);
+                    return string(record + 2, nameLength(record));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    private int record(int index) throws GeneralSecurityException {
+        int record = buffer.getInt(HEADER + 4 * index);
+        check(record, 2);
+        return record;
+    }
+
+    private int nameLength(int record) throws GeneralSecurityException {
+        int length = buffer.getShort(record) & 0xffff;
+        check(record + 2, length);
+        return length;
+    }
+
+    /**
+     * check() verifies that length bytes starting at position lie within the records of the file. Offsets and lengths
+     * are only validated as they are read, so a corrupt file fails the lookups that touch the corruption.
+     */
+    private void check(int position, long length) throws GeneralSecurityException {
+        if (position < HEADER || length < 0 || position + length > buffer.limit()) {
+            throw new GeneralSecurityException("Corrupt compiled secrets file: " + path);
+        }
+    }
+
+    private int compareName(int record, byte[] key) throws GeneralSecurityException {
+        int length = nameLength(record);
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(record + 2 + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private SecretEntry[] entries(int position, EntryFactory factory) throws GeneralSecurityException {
+        check(position, 2);
+        int count = buffer.getShort(position) & 0xffff;
+        position += 2;
+        SecretEntry[] entries = new SecretEntry[count];
+        for (int i = 0; i < count; i++) {
+            int length = shortLength(position);
+            String keyID = string(position + 2, length);
+            position += 2 + length;
+            length = shortLength(position);
+            String keyManager = string(position + 2, length);
+            position += 2 + length;
+            length = shortLength(position);
+            String algorithm = string(position + 2, length);
+            position += 2 + length;
+            length = intLength(position);
+            byte[] keyCiphertext = new byte[length];
+            slice(position + 4, length).get(keyCiphertext);
+            position += 4 + length;
+            length = intLength(position);
+            ByteBuffer ciphertext = slice(position + 4, length);
+            position += 4 + length;
+            entries[i] = factory.entry(keyID, keyManager, algorithm, keyCiphertext, ciphertext);
+        }
+        return entries;
+    }
+
+    private int shortLength(int position) throws GeneralSecurityException {
+        check(position, 2);
+        int length = buffer.getShort(position) & 0xffff;
+        check(position + 2, length);
+        return length;
+    }
+
+    private int intLength(int position) throws GeneralSecurityException {
+        check(position, 4);
+        int length = buffer.getInt(position);
+        check(position + 4, length);
+        return length;
+    }
+
+    private ByteBuffer slice(int position, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(position + length).position(position);
+        return slice.slice();
+    }
+
+    private String string(int position, int length) {
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[length];
+        slice(position, length).get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * compile() converts a YAML (or JSON) secrets document to the compiled form and writes it to destination,
+     * replacing it atomically.
+     *
+     * @param reader
+     * @param destination
+     * @throws IOException
+     */
+    static void compile(Reader reader, Path destination) throws IOException {
+        Map<byte[], byte[]> records = new TreeMap<>(MappedStore::compareUnsigned);
+        SecretsParser.parse(reader, (name, entries) -> records.put(name.getBytes(UTF8), record(name, entries)));
+        Path parent = destination.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, destination.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream stream = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                write(records, out);
+            }
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void write(Map<byte[], byte[]> records, DataOutputStream out) throws IOException {
+        long offset = HEADER + 4L * records.size();
+        for (byte[] record : records.values()) {
+            offset += record.length;
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Compiled secrets file would exceed 2GB");
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(records.size());
+        int record = HEADER + 4 * records.size();
+        for (byte[] bytes : records.values()) {
+            out.writeInt(record);
+            record += bytes.length;
+        }
+        for (byte[] bytes : records.values()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] record(String name, List<Map<String, String>> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeShortString(out, name);
+            if (entries.size() > 0xffff) {
+                throw new IllegalArgumentException("Too many entries for secret " + name);
+            }
+            out.writeShort(entries.size());
+            for (Map<String, String> entry : entries) {
+                writeShortString(out, Biscuit.Field.KEY_ID.get(entry));
+                writeShortString(out, Biscuit.Field.KEY_MANAGER.get(entry));
+                writeShortString(out, Biscuit.Field.ALGORITHM.get(entry));
+                writeBytes(out, Biscuit.decodeBase64(Biscuit.Field.KEY_CIPHERTEXT.get(entry)));
+                writeBytes(out, Biscuit.decodeBase64(Biscuit.Field.CIPHERTEXT.get(entry)));
+            }
+        } catch (IOException e) {
+            // not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeShortString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > 0xffff) {
+            throw new IllegalArgumentException("Value too long: " + value.substring(0, 32) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,74 @@
+package com.wagmorelabs.biscuit;
+
+/**
+ * PathHealth is a snapshot of the circuit breaker of one key manager and region, as returned by
+ * {@link Biscuit#health()}.
+ */
+public final class PathHealth {
+    /**
+     * State is the state of a circuit breaker.
+     */
+    public enum State {
+        /**
+         * Entries are tried in order.
+         */
+        CLOSED,
+        /**
+         * Key requests have failed repeatedly; entries are tried only after all others.
+         */
+        OPEN,
+        /**
+         * The open duration has passed and a lookup has been let through to probe the key manager.
+         */
+        HALF_OPEN
+    }
+
+    private final String keyManager;
+    private final String region;
+    private final State state;
+    private final int consecutiveFailures;
+
+    PathHealth(String keyManager, String region, State state, int consecutiveFailures) {
+        this.keyManager = keyManager;
+        this.region = region;
+        this.state = state;
+        this.consecutiveFailures = consecutiveFailures;
+    }
+
+    /**
+     * Returns the key manager label.
+     *
+     * @return
+     */
+    public String keyManager() {
+        return keyManager;
+    }
+
+    /**
+     * Returns the region of the key IDs, or null if they are not ARNs.
+     *
+     * @return
+     */
+    public String region() {
+        return region;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Returns the number of key requests that have failed since the last success.
+     *
+     * @return
+     */
+    public int consecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public String toString() {
+        return keyManager + (region == null ? "" : "/" + region) + ": " + state + " (" + consecutiveFailures
+                + " consecutive failures)";
+    }
+}
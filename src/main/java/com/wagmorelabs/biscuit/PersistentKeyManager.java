@@ -0,0 +1,305 @@
+package com.wagmorelabs.biscuit;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PersistentKeyManager decorates a KeyManager with a cache of decrypted data keys kept on disk, so that a restarted
+ * process can decrypt its secrets without calling the key management service.
+ * <p>
+ * Each key is stored in its own file in the cache directory, named by the SHA-256 hash of the key manager label,
+ * key ID, encrypted key, and secret name. A file holds the key's expiry time followed by the key sealed with
+ * AES-GCM-256 under the host key, in the [message][nonce] layout of {@link AesGcm256}; the file name and expiry are
+ * authenticated as associated data, so a file cannot be moved to another key or have its lifetime extended. Files
+ * are written to a temporary file and renamed into place. Expired files are deleted when they are read and when the
+ * cache is opened.
+ * <p>
+ * The cache is an optimization: files that cannot be read, written, or authenticated are logged and treated as
+ * misses.
+ */
+class PersistentKeyManager implements KeyManager {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger logger = Logger.getLogger(PersistentKeyManager.class.getName());
+    private static final SecureRandom random = new SecureRandom();
+    static final int HOST_KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final String SUFFIX = ".key";
+
+    private final KeyManager delegate;
+    private final Path directory;
+    private final SecretKeySpec hostKey;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate
+     * @param directory The cache directory. It is created if it does not exist.
+     * @param hostKey   The 32-byte key used to seal cached keys. See {@link #hostKey(Path)}.
+     * @param ttl       How long a cached key is used after it was fetched from the delegate.
+     */
+    PersistentKeyManager(KeyManager delegate, Path directory, byte[] hostKey, Duration ttl) {
+        this(delegate, directory, hostKey, ttl, System::currentTimeMillis);
+    }
+
+    PersistentKeyManager(KeyManager delegate, Path directory, byte[] hostKey, Duration ttl, LongSupplier clock) {
+        if (hostKey.length != HOST_KEY_LENGTH) {
+            throw new IllegalArgumentException("hostKey must be " + HOST_KEY_LENGTH + " bytes");
+        }
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.delegate = delegate;
+        this.directory = directory;
+        this.hostKey = new SecretKeySpec(hostKey, "AES");
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+        sweep();
+    }
+
+    /**
+     * hostKey() reads the host key from a file, first creating the file with a random key, readable only by its
+     * owner where the file system supports it, if it does not exist. An existing file is trusted only if it is
+     * readable by its owner alone.
+     *
+     * @param path
+     * @return
+     * @throws IOException if the file cannot be read or created, is readable by others, or does not hold a 32-byte
+     *                     key.
+     */
+    static byte[] hostKey(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            byte[] key = new byte[HOST_KEY_LENGTH];
+            random.nextBytes(key);
+            Path parent = path.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+            try {
+                restrictToOwner(temp);
+                Files.write(temp, key);
+                // another process may have created the key first; if so, use theirs. Linking, unlike renaming, fails
+                // rather than replacing an existing file.
+                Files.createLink(path, temp);
+            } catch (FileAlreadyExistsException e) {
+                logger.fine("Host key created concurrently: " + path);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+                Files.deleteIfExists(temp);
+            }
+        }
+        checkOwnerOnly(path);
+        byte[] key = Files.readAllBytes(path);
+        if (key.length != HOST_KEY_LENGTH) {
+            Arrays.fill(key, (byte) 0);
+            throw new IOException("Host key " + path + " must be " + HOST_KEY_LENGTH + " bytes");
+        }
+        return key;
+    }
+
+    @Override
+    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+        String name = fileName(keyID, keyCiphertext, secretName);
+        Path file = directory.resolve(name + SUFFIX);
+        byte[] key = read(file, name);
+        if (key != null) {
+            return key;
+        }
+        key = delegate.decrypt(keyID, keyCiphertext, secretName);
+        if (key != null) {
+            write(file, name, key);
+        }
+        return key;
+    }
+
+    @Override
+    public DataKey generateDataKey(String keyID, String secretName) throws GeneralSecurityException {
+        return delegate.generateDataKey(keyID, secretName);
+    }
+
+    @Override
+    public String label() {
+        return delegate.label();
+    }
+
+    private byte[] read(Path file, String name) {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read cached key " + file, e);
+            return null;
+        }
+        try {
+            if (contents.length < 8 + NONCE_LENGTH + TAG_LENGTH) {
+                throw new AEADBadTagException("Cached key too short");
+            }
+            long expiresAt = ByteBuffer.wrap(contents).getLong();
+            if (clock.getAsLong() >= expiresAt) {
+                delete(file);
+                return null;
+            }
+            int nonceOffset = contents.length - NONCE_LENGTH;
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, hostKey,
+                    new GCMParameterSpec(TAG_LENGTH * 8, contents, nonceOffset, NONCE_LENGTH));
+            cipher.updateAAD(aad(name, expiresAt));
+            return cipher.doFinal(contents, 8, nonceOffset - 8);
+        } catch (GeneralSecurityException e) {
+            logger.log(Level.WARNING, "Discarding cached key that failed authentication: " + file, e);
+            delete(file);
+            return null;
+        }
+    }
+
+    private void write(Path file, String name, byte[] key) {
+        long expiresAt = clock.getAsLong() + ttlMillis;
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        byte[] contents;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, hostKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(aad(name, expiresAt));
+            byte[] sealed = cipher.doFinal(key);
+            contents = ByteBuffer.allocate(8 + sealed.length + NONCE_LENGTH)
+                    .putLong(expiresAt).put(sealed).put(nonce).array();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, name, ".tmp");
+            restrictToOwner(temp);
+            Files.write(temp, contents);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to write cached key " + file, e);
+        } finally {
+            if (temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    /**
+     * sweep() deletes expired cache files and temporary files left behind by interrupted writes.
+     */
+    private void sweep() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        long now = clock.getAsLong();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(".tmp")) {
+                    delete(file);
+                } else if (fileName.endsWith(SUFFIX) && expiresAt(file) <= now) {
+                    delete(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to sweep key cache " + directory, e);
+        }
+    }
+
+    private static long expiresAt(Path file) {
+        try {
+            byte[] contents = Files.readAllBytes(file);
+            return contents.length < 8 ? Long.MIN_VALUE : ByteBuffer.wrap(contents).getLong();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to delete " + file, e);
+        }
+    }
+
+    private static void restrictToOwner(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; rely on the directory's permissions
+        }
+    }
+
+    private static void checkOwnerOnly(Path file) throws IOException {
+        Set<PosixFilePermission> permissions;
+        try {
+            permissions = Files.getPosixFilePermissions(file);
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; rely on the directory's permissions
+            return;
+        }
+        for (PosixFilePermission permission : permissions) {
+            if (!permission.name().startsWith("OWNER_")) {
+                throw new IOException("Host key " + file + " must be accessible only by its owner");
+            }
+        }
+    }
+
+    private static byte[] aad(String name, long expiresAt) {
+        byte[] bytes = name.getBytes(UTF8);
+        return ByteBuffer.allocate(bytes.length + 8).put(bytes).putLong(expiresAt).array();
+    }
+
+    /**
+     * fileName() returns the hex SHA-256 hash identifying a cached key. Each field is length-prefixed so that
+     * distinct inputs cannot produce the same hash.
+     */
+    private String fileName(String keyID, byte[] keyCiphertext, String secretName) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(sha256, label().getBytes(UTF8));
+        update(sha256, keyID == null ? new byte[0] : keyID.getBytes(UTF8));
+        update(sha256, keyCiphertext);
+        update(sha256, secretName == null ? new byte[0] : secretName.getBytes(UTF8));
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : sha256.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest digest, byte[] field) {
+        digest.update(ByteBuffer.allocate(4).putInt(field.length).array());
+        digest.update(field);
+    }
+}
@@ -1,5 +1,6 @@
 package com.wagmorelabs.biscuit;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
 /**
@@ -7,8 +8,49 @@ import java.security.GeneralSecurityException;
  */
 class Plaintext implements Algorithm {
     @Override
-    public byte[] decrypt(byte[] key, byte[] ciphertext) throws GeneralSecurityException {
-        return ciphertext;
+    public int decrypt(byte[] key, ByteBuffer ciphertext, ByteBuffer output) throws GeneralSecurityException {
+        int length = ciphertext.remaining();
+        output.put(ciphertext);
+        return length;
+    }
+
+    @Override
+    public Decryption open(byte[] key, ByteBuffer ciphertext) {
+        ByteBuffer in = ciphertext.duplicate();
+        return new Decryption() {
+            @Override
+            public int read(ByteBuffer output) {
+                if (!in.hasRemaining()) {
+                    return -1;
+                }
+                int length = Math.min(in.remaining(), output.remaining());
+                ByteBuffer chunk = in.duplicate();
+                chunk.limit(chunk.position() + length);
+                output.put(chunk);
+                in.position(in.position() + length);
+                return length;
+            }
+
+            @Override
+            public int remaining() {
+                return in.remaining();
+            }
+
+            @Override
+            public void destroy() {
+                in.position(in.limit());
+            }
+        };
+    }
+
+    @Override
+    public byte[] encrypt(byte[] key, byte[] plaintext) {
+        return plaintext.clone();
+    }
+
+    @Override
+    public int plaintextLength(int ciphertextLength) {
+        return ciphertextLength;
     }
 
     @Override
@@ -0,0 +1,242 @@
+package com.wagmorelabs.biscuit;
+
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * PlaintextCache memoizes decrypted secrets by name. Lookups do not take locks. Entries expire a fixed time after
+ * they are stored, and the total number of plaintext bytes retained is bounded; when the bound is exceeded the
+ * oldest entries are discarded first.
+ * <p>
+ * Each invalidation advances the generation of the names it discards. A plaintext decrypted from the secrets as
+ * they were at one generation is only stored if no invalidation has happened since, so that a decryption that
+ * raced with a reload cannot put back a plaintext the reload discarded.
+ */
+class PlaintextCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, Memo> entries = new ConcurrentHashMap<>();
+    private final AtomicLong retainedBytes = new AtomicLong();
+    // guarded by this: the last invalidation of each name since the last invalidateAll(), which was at allInvalidated
+    private final HashMap<String, Long> invalidated = new HashMap<>();
+    private long allInvalidated;
+    private long lastGeneration;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes The maximum number of plaintext bytes to retain across all secrets.
+     * @param ttl      How long a plaintext is retained after it was decrypted.
+     */
+    PlaintextCache(long maxBytes, Duration ttl) {
+        this(maxBytes, ttl, System::nanoTime);
+    }
+
+    PlaintextCache(long maxBytes, Duration ttl, LongSupplier clock) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * get() returns the unexpired memo for a secret, or null.
+     *
+     * @param name
+     * @return
+     */
+    Memo get(String name) {
+        Memo memo = entries.get(name);
+        if (memo == null) {
+            return null;
+        }
+        if (clock.getAsLong() - memo.storedAt >= ttlNanos) {
+            remove(name, memo);
+            return null;
+        }
+        return memo;
+    }
+
+    /**
+     * remainingNanos() returns how long the memo for a secret has left before it expires, or -1 if there is none.
+     *
+     * @param name
+     * @return
+     */
+    long remainingNanos(String name) {
+        Memo memo = entries.get(name);
+        if (memo == null) {
+            return -1;
+        }
+        return Math.max(0, ttlNanos - (clock.getAsLong() - memo.storedAt));
+    }
+
+    /**
+     * generation() returns the generation of a secret, to be passed to {@link #put(String, byte[], long)} once the
+     * secret has been decrypted. Read it before the secrets are read.
+     *
+     * @param name
+     * @return
+     */
+    synchronized long generation(String name) {
+        Long generation = invalidated.get(name);
+        return generation == null ? allInvalidated : generation;
+    }
+
+    /**
+     * put() memoizes a plaintext unconditionally and returns the memo. See {@link #put(String, byte[], long)}.
+     *
+     * @param name
+     * @param plaintext The plaintext. The cache takes ownership of the array.
+     * @return
+     */
+    synchronized Memo put(String name, byte[] plaintext) {
+        return put(name, plaintext, generation(name));
+    }
+
+    /**
+     * put() memoizes a plaintext and returns the memo, unless the secret has been invalidated since generation was
+     * read, in which case it returns null and the plaintext is not retained. Plaintexts larger than the byte budget
+     * are returned in a memo that is not retained.
+     *
+     * @param name
+     * @param plaintext  The plaintext. The cache takes ownership of the array if it is retained.
+     * @param generation The value of {@link #generation(String)} before the secret was decrypted.
+     * @return
+     */
+    Memo put(String name, byte[] plaintext, long generation) {
+        Memo memo = new Memo(plaintext, clock.getAsLong());
+        synchronized (this) {
+            if (generation(name) != generation) {
+                return null;
+            }
+            if (plaintext.length > maxBytes) {
+                return memo;
+            }
+            Memo previous = entries.put(name, memo);
+            retainedBytes.addAndGet(plaintext.length);
+            if (previous != null) {
+                retainedBytes.addAndGet(-previous.plaintext.length);
+            }
+        }
+        if (retainedBytes.get() > maxBytes) {
+            trim();
+        }
+        return memo;
+    }
+
+    /**
+     * invalidate() discards the memo for a secret.
+     *
+     * @param name
+     */
+    synchronized void invalidate(String name) {
+        invalidated.put(name, ++lastGeneration);
+        Memo memo = entries.remove(name);
+        if (memo != null) {
+            retainedBytes.addAndGet(-memo.plaintext.length);
+        }
+    }
+
+    /**
+     * invalidateAll() discards every memo.
+     */
+    synchronized void invalidateAll() {
+        invalidated.clear();
+        allInvalidated = ++lastGeneration;
+        for (String name : entries.keySet()) {
+            Memo memo = entries.remove(name);
+            if (memo != null) {
+                retainedBytes.addAndGet(-memo.plaintext.length);
+            }
+        }
+    }
+
+    long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    private void remove(String name, Memo memo) {
+        if (entries.remove(name, memo)) {
+            retainedBytes.addAndGet(-memo.plaintext.length);
+        }
+    }
+
+    private synchronized void trim() {
+        if (retainedBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, Memo>> oldestFirst = new ArrayList<>(entries.entrySet());
+        oldestFirst.sort(Comparator.comparingLong(e -> e.getValue().storedAt));
+        for (Map.Entry<String, Memo> entry : oldestFirst) {
+            if (retainedBytes.get() <= maxBytes) {
+                return;
+            }
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Memo holds a decrypted plaintext and, once requested, its UTF-8 decoding.
+     */
+    static final class Memo {
+        private final byte[] plaintext;
+        private final long storedAt;
+        private volatile String string;
+
+        private Memo(byte[] plaintext, long storedAt) {
+            this.plaintext = plaintext;
+            this.storedAt = storedAt;
+        }
+
+        /**
+         * Wraps a plaintext that is not held by any cache.
+         *
+         * @param plaintext
+         * @return
+         */
+        static Memo of(byte[] plaintext) {
+            return new Memo(plaintext, 0);
+        }
+
+        /**
+         * Returns a copy of the plaintext.
+         *
+         * @return
+         */
+        byte[] bytes() {
+            return plaintext.clone();
+        }
+
+        /**
+         * Returns the plaintext interpreted as a UTF-8 string. The string is decoded at most once per memo (barring
+         * races, which are benign).
+         *
+         * @return
+         */
+        String string() {
+            String s = string;
+            if (s == null) {
+                s = new String(plaintext, UTF8);
+                string = s;
+            }
+            return s;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.wagmorelabs.biscuit;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RefreshAhead re-decrypts frequently looked up secrets shortly before their cached plaintexts or keys expire, so
+ * that lookups keep finding warm entries instead of paying for key decryption when an entry expires.
+ * <p>
+ * Lookups are counted per secret. Every tick, a quarter of the refresh window, each secret's count is added to half
+ * of its previous score; secrets scoring at least {@link #HOT} (roughly, looked up at least once every other tick)
+ * whose cached entry expires within their lead time are refreshed; secrets with nothing cached are left to the next
+ * lookup, which caches them again if it can. Each secret's lead time is chosen at random between half
+ * the window and the whole window, so that processes that filled their caches together do not all call the key
+ * management service at the same moment. Refreshes run on a fixed number of worker threads with a bounded queue;
+ * secrets that do not fit are retried on the next tick.
+ */
+class RefreshAhead implements Closeable {
+    private static final Logger logger = Logger.getLogger(RefreshAhead.class.getName());
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    static final double HOT = 1.0;
+    // scores below this are forgotten
+    private static final double COLD = 1.0 / 64;
+    private static final int QUEUE_LENGTH = 256;
+
+    private final Target target;
+    private final long windowNanos;
+    private final Random random;
+    private final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<>();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService ticker;
+
+    /**
+     * Target is what RefreshAhead refreshes.
+     */
+    interface Target {
+        /**
+         * Returns how long the cached state of a secret has left before it expires, -1 if nothing is cached, or
+         * Long.MAX_VALUE if the secret need not be refreshed.
+         */
+        long remainingNanos(String name);
+
+        /**
+         * Decrypts a secret again, bypassing and then replacing its cached state.
+         */
+        void refresh(String name) throws GeneralSecurityException;
+    }
+
+    /**
+     * Constructor. Call {@link #start()} to begin refreshing.
+     *
+     * @param target
+     * @param window  How long before expiry a secret may be refreshed.
+     * @param threads The number of threads refreshing secrets.
+     */
+    RefreshAhead(Target target, Duration window, int threads) {
+        this(target, window, threads, new Random());
+    }
+
+    RefreshAhead(Target target, Duration window, int threads, Random random) {
+        if (window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.target = target;
+        this.windowNanos = window.toNanos();
+        this.random = random;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_LENGTH), runnable -> {
+            Thread thread = new Thread(runnable, "biscuit-refresh-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "biscuit-refresh-ticker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * start() schedules a tick every quarter of the refresh window.
+     */
+    void start() {
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(1), windowNanos / 4);
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Exception thrown while scheduling refreshes", e);
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * accessed() counts a lookup of a secret.
+     *
+     * @param name
+     */
+    void accessed(String name) {
+        Usage u = usage.get(name);
+        if (u == null) {
+            u = usage.computeIfAbsent(name, (ignored) -> new Usage(leadNanos()));
+        }
+        u.lookups.increment();
+    }
+
+    private long leadNanos() {
+        synchronized (random) {
+            return windowNanos - (long) (random.nextDouble() * (windowNanos / 2));
+        }
+    }
+
+    /**
+     * tick() decays the lookup counts and submits the refreshes that are due.
+     */
+    void tick() {
+        for (Iterator<Map.Entry<String, Usage>> it = usage.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Usage> entry = it.next();
+            Usage u = entry.getValue();
+            u.score = u.score / 2 + u.lookups.sumThenReset();
+            if (u.score < HOT) {
+                if (u.score < COLD) {
+                    // a lookup racing with the removal is lost, which at worst delays a refresh by a tick
+                    it.remove();
+                }
+                continue;
+            }
+            String name = entry.getKey();
+            long remaining = target.remainingNanos(name);
+            if (remaining >= 0 && remaining <= u.leadNanos && inFlight.add(name)) {
+                submit(name);
+            }
+        }
+    }
+
+    private void submit(String name) {
+        try {
+            workers.execute(() -> {
+                try {
+                    target.refresh(name);
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Unable to refresh " + name, e);
+                } finally {
+                    inFlight.remove(name);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(name);
+        }
+    }
+
+    /**
+     * score() returns the decayed lookup count of a secret as of the last tick, or 0 if it is not tracked.
+     */
+    double score(String name) {
+        Usage u = usage.get(name);
+        return u == null ? 0 : u.score;
+    }
+
+    /**
+     * leadNanos() returns how long before expiry a secret is refreshed, or -1 if it is not tracked.
+     */
+    long leadNanos(String name) {
+        Usage u = usage.get(name);
+        return u == null ? -1 : u.leadNanos;
+    }
+
+    /**
+     * refreshing() indicates whether a refresh of a secret has been submitted and not yet finished.
+     */
+    boolean refreshing(String name) {
+        return inFlight.contains(name);
+    }
+
+    /**
+     * close() stops refreshing. Refreshes already running are interrupted.
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Usage counts the lookups of one secret.
+     */
+    private static final class Usage {
+        private final LongAdder lookups = new LongAdder();
+        private final long leadNanos;
+        private double score; // only touched by tick()
+
+        Usage(long leadNanos) {
+            this.leadNanos = leadNanos;
+        }
+    }
+}
@@ -1,26 +1,86 @@
 package com.wagmorelabs.biscuit;
 
-import com.emstlk.nacl4s.crypto.secretbox.XSalsa20Poly1305;
-
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 
 /**
- * SecretBox implements a wrapper around an implementation of a NaCl-compatible
- * secretbox_open implementation.
+ * SecretBox implements NaCl-compatible secretbox and secretbox_open operations.
  */
 class SecretBox implements Algorithm {
-    private static final int SECRETBOX_NONCE_LENGTH = XSalsa20Poly1305.nonceBytes();
+    private static final int SECRETBOX_NONCE_LENGTH = XSalsa20Poly1305.NONCE_LENGTH;
+    private static final int SECRETBOX_TAG_LENGTH = XSalsa20Poly1305.TAG_LENGTH;
+
+    private static final ThreadLocal<XSalsa20Poly1305> boxes = ThreadLocal.withInitial(XSalsa20Poly1305::new);
+    private static final SecureRandom random = new SecureRandom();
 
     @Override
-    public byte[] decrypt(byte[] key, byte[] ciphertext) throws GeneralSecurityException {
+    public int decrypt(byte[] key, ByteBuffer ciphertext, ByteBuffer output) throws GeneralSecurityException {
+        plaintextLength(ciphertext.remaining());
         // Format of ciphertext is [nonce][message]
+        ByteBuffer nonce = ciphertext.duplicate();
+        ciphertext.position(ciphertext.position() + SECRETBOX_NONCE_LENGTH);
+        return boxes.get().open(key, nonce, ciphertext, output);
+    }
+
+    @Override
+    public Decryption open(byte[] key, ByteBuffer ciphertext) throws GeneralSecurityException {
+        plaintextLength(ciphertext.remaining());
+        // Format of ciphertext is [nonce][message]; the stream keeps its own state, as it may be read on any thread
+        ByteBuffer nonce = ciphertext.duplicate();
+        ByteBuffer box = ciphertext.duplicate();
+        box.position(box.position() + SECRETBOX_NONCE_LENGTH);
+        XSalsa20Poly1305 stream = new XSalsa20Poly1305();
+        stream.authenticate(key, nonce, box);
+        return new Decryption() {
+            private int position = box.position() + SECRETBOX_TAG_LENGTH;
+            private boolean destroyed;
+
+            @Override
+            public int read(ByteBuffer output) {
+                if (destroyed) {
+                    throw new IllegalStateException("Decryption destroyed");
+                }
+                if (position == box.limit()) {
+                    return -1;
+                }
+                int length = Math.min(box.limit() - position, output.remaining());
+                stream.xor(box, position, length, output);
+                position += length;
+                return length;
+            }
+
+            @Override
+            public int remaining() {
+                return box.limit() - position;
+            }
+
+            @Override
+            public void destroy() {
+                destroyed = true;
+                stream.reset();
+            }
+        };
+    }
+
+    @Override
+    public byte[] encrypt(byte[] key, byte[] plaintext) {
+        // Format of ciphertext is [nonce][message]
+        ByteBuffer ciphertext = ByteBuffer.allocate(SECRETBOX_NONCE_LENGTH + SECRETBOX_TAG_LENGTH + plaintext.length);
         byte[] nonce = new byte[SECRETBOX_NONCE_LENGTH];
-        System.arraycopy(ciphertext, 0, nonce, 0, SECRETBOX_NONCE_LENGTH);
-        byte[] message = new byte[ciphertext.length - SECRETBOX_NONCE_LENGTH];
-        System.arraycopy(ciphertext, SECRETBOX_NONCE_LENGTH, message, 0,
-                ciphertext.length - SECRETBOX_NONCE_LENGTH);
-        com.emstlk.nacl4s.crypto.SecretBox box = new com.emstlk.nacl4s.crypto.SecretBox(key);
-        return box.decrypt(nonce, message);
+        random.nextBytes(nonce);
+        ciphertext.put(nonce);
+        boxes.get().seal(key, ByteBuffer.wrap(nonce), ByteBuffer.wrap(plaintext), ciphertext);
+        return ciphertext.array();
+    }
+
+    @Override
+    public int plaintextLength(int ciphertextLength) throws GeneralSecurityException {
+        if (ciphertextLength < SECRETBOX_NONCE_LENGTH + SECRETBOX_TAG_LENGTH) {
+            throw new AEADBadTagException("Ciphertext too short");
+        }
+        return ciphertextLength - SECRETBOX_NONCE_LENGTH - SECRETBOX_TAG_LENGTH;
     }
 
     @Override
@@ -0,0 +1,16 @@
+package com.wagmorelabs.biscuit;
+
+import java.util.Set;
+
+/**
+ * SecretChangeListener is notified when secrets are loaded, replaced or removed, by {@link Biscuit#read},
+ * {@link Biscuit#load} or a file watched with {@link Biscuit#watchFile}. Listeners are called on the thread that
+ * loaded the secrets.
+ */
+public interface SecretChangeListener {
+    /**
+     * @param changed The names of secrets that were added or whose entries changed.
+     * @param removed The names of secrets that were removed.
+     */
+    void secretsChanged(Set<String> changed, Set<String> removed);
+}
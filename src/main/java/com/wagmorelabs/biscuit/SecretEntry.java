@@ -0,0 +1,109 @@
+package com.wagmorelabs.biscuit;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SecretEntry is one encrypted copy of a secret, as loaded from a secrets file. Labels are interned, the algorithm
+ * and key managers are resolved when the entry is loaded, and the encrypted key and ciphertext are stored already
+ * decoded from base64. The ciphertext is held either in an array or, for entries read from a mapped store, in a slice
+ * of the mapped file.
+ */
+final class SecretEntry {
+    private final String keyID;
+    private final String keyManagerLabel;
+    private final KeyManager keyManager;
+    private final AsyncKeyManager asyncKeyManager;
+    private final String algorithmLabel;
+    private final Algorithm algorithm;
+    private final byte[] keyCiphertext;
+    private final byte[] ciphertext;
+    private final ByteBuffer mappedCiphertext;
+
+    /**
+     * Constructor. The byte arrays are owned by the entry and must not be modified.
+     *
+     * @param keyID
+     * @param keyManagerLabel
+     * @param keyManager      The key manager named by keyManagerLabel, or null if it is not registered.
+     * @param asyncKeyManager The async key manager named by keyManagerLabel, or null if it is not registered.
+     * @param algorithmLabel
+     * @param algorithm       The algorithm named by algorithmLabel, or null if it is not registered.
+     * @param keyCiphertext
+     * @param ciphertext
+     */
+    SecretEntry(String keyID, String keyManagerLabel, KeyManager keyManager, AsyncKeyManager asyncKeyManager,
+                String algorithmLabel, Algorithm algorithm, byte[] keyCiphertext, byte[] ciphertext) {
+        this.keyID = keyID;
+        this.keyManagerLabel = keyManagerLabel;
+        this.keyManager = keyManager;
+        this.asyncKeyManager = asyncKeyManager;
+        this.algorithmLabel = algorithmLabel;
+        this.algorithm = algorithm;
+        this.keyCiphertext = keyCiphertext;
+        this.ciphertext = ciphertext;
+        this.mappedCiphertext = null;
+    }
+
+    /**
+     * Constructor for an entry whose ciphertext is a slice of a buffer, such as a mapped file. The buffer's position
+     * and limit delimit the ciphertext; the buffer must not be modified.
+     */
+    SecretEntry(String keyID, String keyManagerLabel, KeyManager keyManager, AsyncKeyManager asyncKeyManager,
+                String algorithmLabel, Algorithm algorithm, byte[] keyCiphertext, ByteBuffer ciphertext) {
+        this.keyID = keyID;
+        this.keyManagerLabel = keyManagerLabel;
+        this.keyManager = keyManager;
+        this.asyncKeyManager = asyncKeyManager;
+        this.algorithmLabel = algorithmLabel;
+        this.algorithm = algorithm;
+        this.keyCiphertext = keyCiphertext;
+        this.ciphertext = null;
+        this.mappedCiphertext = ciphertext;
+    }
+
+    String keyID() {
+        return keyID;
+    }
+
+    String keyManagerLabel() {
+        return keyManagerLabel;
+    }
+
+    KeyManager keyManager() {
+        return keyManager;
+    }
+
+    AsyncKeyManager asyncKeyManager() {
+        return asyncKeyManager;
+    }
+
+    String algorithmLabel() {
+        return algorithmLabel;
+    }
+
+    Algorithm algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the encrypted key. Callers must not modify the returned array.
+     *
+     * @return
+     */
+    byte[] keyCiphertext() {
+        return keyCiphertext;
+    }
+
+    /**
+     * Returns a new buffer over the ciphertext, positioned at its start. Callers must not modify its contents.
+     *
+     * @return
+     */
+    ByteBuffer ciphertext() {
+        return mappedCiphertext != null ? mappedCiphertext.duplicate() : ByteBuffer.wrap(ciphertext);
+    }
+
+    int ciphertextLength() {
+        return mappedCiphertext != null ? mappedCiphertext.remaining() : ciphertext.length;
+    }
+}
@@ -0,0 +1,120 @@
+package com.wagmorelabs.biscuit;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * SecretHandle holds a decrypted secret in a direct (off-heap) buffer. Unlike the arrays and strings returned by
+ * {@link Biscuit#get(String)} and {@link Biscuit#getString(String)}, the plaintext is never copied onto the Java heap
+ * by the handle, and it is zeroed when the handle is closed. The off-heap memory itself is returned to the system
+ * once the handle and every buffer obtained from it are garbage collected.
+ * <p>
+ * Handles may be read from several threads, but must not be closed while another thread is using them.
+ */
+public final class SecretHandle implements AutoCloseable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private volatile ByteBuffer plaintext;
+
+    SecretHandle(ByteBuffer plaintext) {
+        this.plaintext = plaintext;
+    }
+
+    /**
+     * Returns the length of the plaintext in bytes.
+     *
+     * @return
+     */
+    public int size() {
+        return buffer().remaining();
+    }
+
+    /**
+     * Returns a read-only view of the plaintext. The view shares memory with the handle and reads as zeroes once
+     * the handle is closed.
+     *
+     * @return
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        return buffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Decodes the plaintext as UTF-8 into a caller-supplied buffer, advancing its position.
+     *
+     * @param out
+     * @return The number of characters written.
+     * @throws CharacterCodingException if the plaintext is not valid UTF-8.
+     * @throws BufferOverflowException  if out does not have room for the decoded plaintext.
+     */
+    public int decodeUtf8(CharBuffer out) throws CharacterCodingException {
+        CharsetDecoder decoder = UTF8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        int start = out.position();
+        ByteBuffer in = buffer().duplicate();
+        CoderResult result = decoder.decode(in, out, true);
+        if (!result.isUnderflow()) {
+            check(result);
+        }
+        result = decoder.flush(out);
+        if (!result.isUnderflow()) {
+            check(result);
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Indicates whether the handle has been closed.
+     *
+     * @return
+     */
+    public boolean isClosed() {
+        return plaintext == null;
+    }
+
+    /**
+     * Zeroes the plaintext. Further use of the handle throws IllegalStateException. Closing a closed handle has no
+     * effect.
+     */
+    @Override
+    public void close() {
+        ByteBuffer buffer = plaintext;
+        if (buffer != null) {
+            plaintext = null;
+            zero(buffer);
+        }
+    }
+
+    /**
+     * zero() overwrites the whole capacity of a buffer with zeroes.
+     *
+     * @param buffer
+     */
+    static void zero(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = plaintext;
+        if (buffer == null) {
+            throw new IllegalStateException("SecretHandle is closed");
+        }
+        return buffer;
+    }
+
+    private static void check(CoderResult result) throws CharacterCodingException {
+        if (result.isOverflow()) {
+            throw new BufferOverflowException();
+        }
+        result.throwException();
+    }
+}
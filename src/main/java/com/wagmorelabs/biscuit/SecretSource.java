@@ -0,0 +1,101 @@
+package com.wagmorelabs.biscuit;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * SecretSource supplies one or more YAML (or JSON) secrets documents. Sources are loaded with
+ * {@link Biscuit#load(List)} or {@link Biscuit.Builder#withSource(SecretSource)}.
+ */
+public interface SecretSource {
+    /**
+     * Returns the documents of this source. When several documents define the same secret, the last one takes
+     * precedence.
+     *
+     * @return
+     * @throws IOException if the documents cannot be listed.
+     */
+    List<Document> documents() throws IOException;
+
+    /**
+     * Document is a single secrets document.
+     */
+    interface Document {
+        /**
+         * Returns a description of the document, such as its path, for use in error messages.
+         *
+         * @return
+         */
+        String description();
+
+        /**
+         * Opens the document for reading. The caller closes the reader.
+         *
+         * @return
+         * @throws IOException
+         */
+        Reader open() throws IOException;
+    }
+
+    /**
+     * Returns a source that reads a UTF-8 file.
+     *
+     * @param path
+     * @return
+     */
+    static SecretSource file(Path path) {
+        return new SecretSources.FileSource(path);
+    }
+
+    /**
+     * Returns a source that reads every regular file under directory whose path relative to directory matches glob,
+     * in the syntax of {@link java.nio.file.FileSystem#getPathMatcher(String)}. For example, "*.yml" matches the YAML
+     * files directly inside the directory and "**&#47;*.yml" those in its subdirectories. Files are ordered by
+     * relative path, so later paths take precedence. A directory with no matching files is an empty source.
+     *
+     * @param directory
+     * @param glob
+     * @return
+     */
+    static SecretSource directory(Path directory, String glob) {
+        return new SecretSources.DirectorySource(directory, glob);
+    }
+
+    /**
+     * Returns a source that reads every resource with the given name visible to the class loader of this interface.
+     * See {@link #classpath(ClassLoader, String)}.
+     *
+     * @param resource
+     * @return
+     */
+    static SecretSource classpath(String resource) {
+        return classpath(SecretSource.class.getClassLoader(), resource);
+    }
+
+    /**
+     * Returns a source that reads every resource with the given name visible to a class loader. As with
+     * {@link ClassLoader#getResource(String)}, the resource found first on the class path takes precedence over
+     * those after it, so an application can layer its own file over defaults packaged in a library. It is an error
+     * for no resource to exist.
+     *
+     * @param classLoader
+     * @param resource
+     * @return
+     */
+    static SecretSource classpath(ClassLoader classLoader, String resource) {
+        return new SecretSources.ClasspathSource(classLoader, resource);
+    }
+
+    /**
+     * Returns a source holding a document in memory.
+     *
+     * @param description Used in error messages.
+     * @param document
+     * @return
+     */
+    static SecretSource inMemory(String description, String document) {
+        return new SecretSources.InMemorySource(description, document);
+    }
+}
@@ -0,0 +1,169 @@
+package com.wagmorelabs.biscuit;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * SecretSources holds the implementations of the sources returned by the factory methods of {@link SecretSource}.
+ */
+class SecretSources {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SecretSources() {
+    }
+
+    private static Reader reader(Path path) throws IOException {
+        return Files.newBufferedReader(path, UTF8);
+    }
+
+    /**
+     * PathDocument is a document read from a file.
+     */
+    private static final class PathDocument implements SecretSource.Document {
+        private final Path path;
+
+        PathDocument(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public String description() {
+            return path.toString();
+        }
+
+        @Override
+        public Reader open() throws IOException {
+            return reader(path);
+        }
+    }
+
+    static final class FileSource implements SecretSource {
+        private final Path path;
+
+        FileSource(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public List<Document> documents() {
+            return Collections.singletonList(new PathDocument(path));
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    static final class DirectorySource implements SecretSource {
+        private final Path directory;
+        private final String glob;
+
+        DirectorySource(Path directory, String glob) {
+            this.directory = directory;
+            this.glob = glob;
+        }
+
+        @Override
+        public List<Document> documents() throws IOException {
+            PathMatcher matcher = directory.getFileSystem().getPathMatcher("glob:" + glob);
+            try (Stream<Path> paths = Files.walk(directory)) {
+                return paths
+                        .filter(Files::isRegularFile)
+                        .map(directory::relativize)
+                        .filter(matcher::matches)
+                        .sorted()
+                        .map(relative -> new PathDocument(directory.resolve(relative)))
+                        .collect(Collectors.toList());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return directory.resolve(glob).toString();
+        }
+    }
+
+    static final class ClasspathSource implements SecretSource {
+        private final ClassLoader classLoader;
+        private final String resource;
+
+        ClasspathSource(ClassLoader classLoader, String resource) {
+            this.classLoader = classLoader;
+            this.resource = resource;
+        }
+
+        @Override
+        public List<Document> documents() throws IOException {
+            List<Document> documents = new ArrayList<>();
+            for (URL url : Collections.list(classLoader.getResources(resource))) {
+                documents.add(new Document() {
+                    @Override
+                    public String description() {
+                        return url.toString();
+                    }
+
+                    @Override
+                    public Reader open() throws IOException {
+                        return new BufferedReader(new InputStreamReader(url.openStream(), UTF8));
+                    }
+                });
+            }
+            if (documents.isEmpty()) {
+                throw new FileNotFoundException("Resource not found on the class path: " + resource);
+            }
+            // the first resource on the class path takes precedence, so it is applied last
+            Collections.reverse(documents);
+            return documents;
+        }
+
+        @Override
+        public String toString() {
+            return "classpath:" + resource;
+        }
+    }
+
+    static final class InMemorySource implements SecretSource, SecretSource.Document {
+        private final String description;
+        private final String document;
+
+        InMemorySource(String description, String document) {
+            this.description = description;
+            this.document = document;
+        }
+
+        @Override
+        public List<Document> documents() {
+            return Collections.singletonList(this);
+        }
+
+        @Override
+        public String description() {
+            return description;
+        }
+
+        @Override
+        public Reader open() {
+            return new StringReader(document);
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
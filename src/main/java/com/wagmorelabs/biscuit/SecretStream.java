@@ -0,0 +1,92 @@
+package com.wagmorelabs.biscuit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * SecretStream reads the plaintext of a secret as it is decrypted, so that large secrets can be copied to a file or
+ * loaded into a KeyStore without holding the whole plaintext in memory. It is both an InputStream and a
+ * ReadableByteChannel. The ciphertext has been authenticated before the stream is returned by
+ * {@link Biscuit#openStream(String)}, so every byte read is authentic.
+ * <p>
+ * Streams are not thread safe. Closing the stream clears the decryption state; plaintext already read into the
+ * caller's buffers is the caller's to zero.
+ */
+public final class SecretStream extends InputStream implements ReadableByteChannel {
+    private final int size;
+    private final byte[] single = new byte[1];
+    private Algorithm.Decryption decryption;
+
+    SecretStream(Algorithm.Decryption decryption) {
+        this.decryption = decryption;
+        this.size = decryption.remaining();
+    }
+
+    /**
+     * Returns the length of the plaintext in bytes.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        // a decryption always makes progress while there is room in the output, so this never returns 0
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (decryption == null) {
+            throw new ClosedChannelException();
+        }
+        try {
+            return decryption.read(dst);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt secret", e);
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (decryption == null) {
+            throw new ClosedChannelException();
+        }
+        return decryption.remaining();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return decryption != null;
+    }
+
+    /**
+     * close() clears the decryption state. Closing a closed stream has no effect.
+     */
+    @Override
+    public void close() {
+        if (decryption != null) {
+            decryption.destroy();
+            decryption = null;
+            single[0] = 0;
+        }
+    }
+}
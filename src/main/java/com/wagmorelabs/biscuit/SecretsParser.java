@@ -0,0 +1,141 @@
+package com.wagmorelabs.biscuit;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.ScalarEvent;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * SecretsParser reads a secrets document from SnakeYAML's event stream. Each secret is handed to a callback as soon
+ * as its entries have been read, so the document is never held in memory as a generic tree. Fields with null values
+ * (~, null, or nothing) are omitted from the entries; empty strings such as '' are kept.
+ */
+class SecretsParser {
+    private static final Pattern NULL = Pattern.compile("^(?:~|null|Null|NULL)?$");
+
+    /**
+     * Handler receives each secret in document order.
+     */
+    interface Handler {
+        /**
+         * @param name    The name of the secret.
+         * @param entries The fields of each entry, keyed by field name.
+         */
+        void secret(String name, List<Map<String, String>> entries);
+    }
+
+    private final Iterator<Event> events;
+    private Event current;
+
+    private SecretsParser(Reader reader) {
+        this.events = new Yaml().parse(reader).iterator();
+    }
+
+    /**
+     * parse() reads a YAML (or JSON) document mapping secret names to lists of entries.
+     *
+     * @param reader
+     * @param handler
+     * @throws YAMLException if the document is malformed or does not have the expected structure.
+     */
+    static void parse(Reader reader, Handler handler) {
+        new SecretsParser(reader).document(handler);
+    }
+
+    private void document(Handler handler) {
+        expect(Event.ID.StreamStart);
+        if (next().is(Event.ID.StreamEnd)) {
+            return;
+        }
+        expectCurrent(Event.ID.DocumentStart);
+        next();
+        if (current.is(Event.ID.MappingStart)) {
+            while (!next().is(Event.ID.MappingEnd)) {
+                String name = scalar();
+                handler.secret(name, entries());
+            }
+            next();
+        } else if (!isNull(current)) {
+            throw unexpected("a mapping of secret names");
+        } else {
+            next();
+        }
+        expectCurrent(Event.ID.DocumentEnd);
+        if (!next().is(Event.ID.StreamEnd)) {
+            throw unexpected("a single document");
+        }
+    }
+
+    private List<Map<String, String>> entries() {
+        next();
+        expectCurrent(Event.ID.SequenceStart);
+        List<Map<String, String>> entries = new ArrayList<>();
+        while (!next().is(Event.ID.SequenceEnd)) {
+            expectCurrent(Event.ID.MappingStart);
+            Map<String, String> entry = new HashMap<>();
+            while (!next().is(Event.ID.MappingEnd)) {
+                String field = scalar();
+                next();
+                if (!current.is(Event.ID.Scalar)) {
+                    throw unexpected("a scalar value for " + field);
+                }
+                if (!isNull(current)) {
+                    entry.put(field, ((ScalarEvent) current).getValue());
+                }
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private String scalar() {
+        if (!current.is(Event.ID.Scalar)) {
+            throw unexpected("a scalar");
+        }
+        return ((ScalarEvent) current).getValue();
+    }
+
+    private static boolean isNull(Event event) {
+        if (!event.is(Event.ID.Scalar)) {
+            return false;
+        }
+        ScalarEvent scalar = (ScalarEvent) event;
+        return scalar.getTag() == null && scalar.getImplicit().canOmitTagInPlainScalar()
+                && NULL.matcher(scalar.getValue()).matches();
+    }
+
+    private Event next() {
+        if (!events.hasNext()) {
+            throw new YAMLException("Unexpected end of document");
+        }
+        current = events.next();
+        if (current.is(Event.ID.Alias)) {
+            throw unexpected("no aliases");
+        }
+        return current;
+    }
+
+    private void expect(Event.ID id) {
+        next();
+        expectCurrent(id);
+    }
+
+    private void expectCurrent(Event.ID id) {
+        if (!current.is(id)) {
+            throw unexpected(id.toString());
+        }
+    }
+
+    private YAMLException unexpected(String expected) {
+        return new YAMLException("Expected " + expected + " but found " + current + " at " +
+                current.getStartMark());
+    }
+}
@@ -13,6 +13,16 @@ class TestingKeyManager implements KeyManager {
         return plaintextKey;
     }
 
+    /**
+     * Returns the fixed key, encrypted as 32 bytes of 'y'.
+     */
+    @Override
+    public DataKey generateDataKey(String keyID, String secretName) {
+        byte[] keyCiphertext = new byte[32];
+        Arrays.fill(keyCiphertext, (byte) 'y');
+        return new DataKey(decrypt(keyID, keyCiphertext, secretName), keyCiphertext);
+    }
+
     @Override
     public String label() {
         return "testing";
@@ -0,0 +1,58 @@
+package com.wagmorelabs.biscuit;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * WarmUpResult holds the outcome of {@link Biscuit#warmUp}.
+ */
+public final class WarmUpResult {
+    private final Set<String> warmed;
+    private final Map<String, Exception> failures;
+    private final Set<String> timedOut;
+
+    WarmUpResult(Set<String> warmed, Map<String, Exception> failures, Set<String> timedOut) {
+        this.warmed = Collections.unmodifiableSet(warmed);
+        this.failures = Collections.unmodifiableMap(failures);
+        this.timedOut = Collections.unmodifiableSet(timedOut);
+    }
+
+    /**
+     * Returns the names of the secrets that were decrypted before the deadline.
+     *
+     * @return
+     */
+    public Set<String> warmed() {
+        return warmed;
+    }
+
+    /**
+     * Returns the reason each failed secret could not be decrypted, by secret name, as in
+     * {@link BulkResult#failures()}.
+     *
+     * @return
+     */
+    public Map<String, Exception> failures() {
+        return failures;
+    }
+
+    /**
+     * Returns the names of the secrets that were still being decrypted at the deadline. They continue in the
+     * background and populate the caches when they finish.
+     *
+     * @return
+     */
+    public Set<String> timedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Indicates whether every requested secret was decrypted before the deadline.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return failures.isEmpty() && timedOut.isEmpty();
+    }
+}
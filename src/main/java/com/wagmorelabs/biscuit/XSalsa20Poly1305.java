@@ -0,0 +1,463 @@
+package com.wagmorelabs.biscuit;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * XSalsa20Poly1305 implements NaCl's crypto_secretbox_open (XSalsa20 stream cipher with a Poly1305 authenticator).
+ * It reads directly from the caller's buffers and keeps its working state in reusable arrays, so opening a box
+ * allocates nothing. Instances are not thread safe.
+ */
+final class XSalsa20Poly1305 {
+    static final int KEY_LENGTH = 32;
+    static final int NONCE_LENGTH = 24;
+    static final int TAG_LENGTH = 16;
+
+    private static final int SIGMA0 = 0x61707865;
+    private static final int SIGMA1 = 0x3320646e;
+    private static final int SIGMA2 = 0x79622d32;
+    private static final int SIGMA3 = 0x6b206574;
+
+    private final int[] input = new int[16];
+    private final int[] state = new int[16];
+    private final byte[] keystream = new byte[64];
+    private final byte[] block = new byte[16];
+    private final byte[] tag = new byte[16];
+    private final Poly1305 poly1305 = new Poly1305();
+    private long counter;
+    private int keystreamOffset;
+
+    /**
+     * open() verifies and decrypts a box laid out as [tag][message] from the remaining bytes of box, writing the
+     * plaintext to output. Nothing is written to output unless the tag is valid.
+     *
+     * @param key
+     * @param nonce  A buffer whose next NONCE_LENGTH bytes are the nonce. Its position is advanced past the nonce.
+     * @param box
+     * @param output
+     * @return The number of bytes written.
+     * @throws AEADBadTagException if the box is too short or fails authentication.
+     */
+    int open(byte[] key, ByteBuffer nonce, ByteBuffer box, ByteBuffer output) throws AEADBadTagException {
+        try {
+            authenticate(key, nonce, box);
+            int length = box.remaining() - TAG_LENGTH;
+            xor(box, box.position() + TAG_LENGTH, length, output);
+            box.position(box.limit());
+            return length;
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * authenticate() verifies a box laid out as [tag][message] from the remaining bytes of box, leaving the
+     * keystream positioned at the start of the message so that it can be decrypted with
+     * {@link #xor(ByteBuffer, int, int, ByteBuffer)}. The position of box is not changed. The caller must call
+     * {@link #reset()} when done.
+     *
+     * @param key
+     * @param nonce A buffer whose next NONCE_LENGTH bytes are the nonce. Its position is advanced past the nonce.
+     * @param box
+     * @throws AEADBadTagException if the box is too short or fails authentication.
+     */
+    void authenticate(byte[] key, ByteBuffer nonce, ByteBuffer box) throws AEADBadTagException {
+        int length = box.remaining() - TAG_LENGTH;
+        if (length < 0) {
+            throw new AEADBadTagException("Ciphertext too short");
+        }
+        init(key, nonce);
+        int start = box.position();
+        poly1305.update(box, start + TAG_LENGTH, length);
+        poly1305.finish(tag);
+        if (!verify(box, start, tag)) {
+            reset();
+            throw new AEADBadTagException("Message authentication failed");
+        }
+    }
+
+    /**
+     * init() derives the XSalsa20 subkey for a key and nonce, generates the first keystream block, and keys the
+     * authenticator with its first 32 bytes.
+     */
+    void init(byte[] key, ByteBuffer nonce) {
+        if (key == null || key.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("key must be " + KEY_LENGTH + " bytes");
+        }
+        // HSalsa20(key, nonce[0:16]) gives the subkey
+        input[0] = SIGMA0;
+        input[1] = le32(key, 0);
+        input[2] = le32(key, 4);
+        input[3] = le32(key, 8);
+        input[4] = le32(key, 12);
+        input[5] = SIGMA1;
+        input[6] = le32(nonce);
+        input[7] = le32(nonce);
+        input[8] = le32(nonce);
+        input[9] = le32(nonce);
+        input[10] = SIGMA2;
+        input[11] = le32(key, 16);
+        input[12] = le32(key, 20);
+        input[13] = le32(key, 24);
+        input[14] = le32(key, 28);
+        input[15] = SIGMA3;
+        rounds(input, state);
+        input[1] = state[0];
+        input[2] = state[5];
+        input[3] = state[10];
+        input[4] = state[15];
+        input[11] = state[6];
+        input[12] = state[7];
+        input[13] = state[8];
+        input[14] = state[9];
+        // Salsa20(subkey, nonce[16:24])
+        input[6] = le32(nonce);
+        input[7] = le32(nonce);
+        counter = 0;
+        nextBlock();
+        poly1305.init(keystream);
+        keystreamOffset = 32;
+    }
+
+    /**
+     * xor() XORs length bytes of input starting at the absolute index from with the keystream and writes them to
+     * output.
+     */
+    void xor(ByteBuffer in, int from, int length, ByteBuffer output) {
+        for (int i = 0; i < length; i++) {
+            if (keystreamOffset == 64) {
+                nextBlock();
+            }
+            output.put((byte) (in.get(from + i) ^ keystream[keystreamOffset++]));
+        }
+    }
+
+    /**
+     * seal() encrypts the remaining bytes of message and writes [tag][ciphertext] to output. The nonce must never be
+     * reused with the same key.
+     *
+     * @param key
+     * @param nonce   A buffer whose next NONCE_LENGTH bytes are the nonce.
+     * @param message
+     * @param output
+     */
+    void seal(byte[] key, ByteBuffer nonce, ByteBuffer message, ByteBuffer output) {
+        try {
+            init(key, nonce);
+            int length = message.remaining();
+            int tagPosition = output.position();
+            output.position(tagPosition + TAG_LENGTH);
+            int ciphertextPosition = output.position();
+            xor(message, message.position(), length, output);
+            message.position(message.limit());
+            poly1305.update(output, ciphertextPosition, length);
+            poly1305.finish(tag);
+            int end = output.position();
+            output.position(tagPosition);
+            output.put(tag);
+            output.position(end);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * reset() clears all key-dependent state.
+     */
+    void reset() {
+        Arrays.fill(input, 0);
+        Arrays.fill(state, 0);
+        Arrays.fill(keystream, (byte) 0);
+        Arrays.fill(block, (byte) 0);
+        Arrays.fill(tag, (byte) 0);
+        poly1305.reset();
+        counter = 0;
+        keystreamOffset = 64;
+    }
+
+    private void nextBlock() {
+        input[8] = (int) counter;
+        input[9] = (int) (counter >>> 32);
+        counter++;
+        rounds(input, state);
+        for (int i = 0; i < 16; i++) {
+            int word = state[i] + input[i];
+            keystream[4 * i] = (byte) word;
+            keystream[4 * i + 1] = (byte) (word >>> 8);
+            keystream[4 * i + 2] = (byte) (word >>> 16);
+            keystream[4 * i + 3] = (byte) (word >>> 24);
+        }
+        keystreamOffset = 0;
+    }
+
+    private boolean verify(ByteBuffer box, int from, byte[] expected) {
+        int diff = 0;
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            diff |= box.get(from + i) ^ expected[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * rounds() applies the 20 Salsa20 rounds to in, leaving the result (without the final addition) in out.
+     */
+    private static void rounds(int[] in, int[] out) {
+        int x0 = in[0], x1 = in[1], x2 = in[2], x3 = in[3];
+        int x4 = in[4], x5 = in[5], x6 = in[6], x7 = in[7];
+        int x8 = in[8], x9 = in[9], x10 = in[10], x11 = in[11];
+        int x12 = in[12], x13 = in[13], x14 = in[14], x15 = in[15];
+        for (int i = 0; i < 20; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        out[0] = x0;
+        out[1] = x1;
+        out[2] = x2;
+        out[3] = x3;
+        out[4] = x4;
+        out[5] = x5;
+        out[6] = x6;
+        out[7] = x7;
+        out[8] = x8;
+        out[9] = x9;
+        out[10] = x10;
+        out[11] = x11;
+        out[12] = x12;
+        out[13] = x13;
+        out[14] = x14;
+        out[15] = x15;
+    }
+
+    private static int le32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static int le32(ByteBuffer b) {
+        return (b.get() & 0xff) | (b.get() & 0xff) << 8 | (b.get() & 0xff) << 16 | (b.get() & 0xff) << 24;
+    }
+
+    /**
+     * Poly1305 implements the Poly1305 one-time authenticator using 26-bit limbs.
+     */
+    static final class Poly1305 {
+        private static final long MASK26 = 0x3ffffff;
+
+        private long r0, r1, r2, r3, r4;
+        private long s1, s2, s3, s4;
+        private long h0, h1, h2, h3, h4;
+        private long pad0, pad1, pad2, pad3;
+        private final byte[] buffer = new byte[16];
+        private int buffered;
+
+        /**
+         * init() keys the authenticator with the first 32 bytes of key.
+         */
+        void init(byte[] key) {
+            r0 = le32(key, 0) & 0x3ffffffL;
+            r1 = (le32(key, 3) >>> 2) & 0x3ffff03L;
+            r2 = (le32(key, 6) >>> 4) & 0x3ffc0ffL;
+            r3 = (le32(key, 9) >>> 6) & 0x3f03fffL;
+            r4 = (le32(key, 12) >>> 8) & 0x00fffffL;
+            s1 = r1 * 5;
+            s2 = r2 * 5;
+            s3 = r3 * 5;
+            s4 = r4 * 5;
+            h0 = h1 = h2 = h3 = h4 = 0;
+            pad0 = le32(key, 16) & 0xffffffffL;
+            pad1 = le32(key, 20) & 0xffffffffL;
+            pad2 = le32(key, 24) & 0xffffffffL;
+            pad3 = le32(key, 28) & 0xffffffffL;
+            buffered = 0;
+        }
+
+        /**
+         * update() authenticates length bytes of in starting at the absolute index from.
+         */
+        void update(ByteBuffer in, int from, int length) {
+            int i = 0;
+            if (buffered > 0) {
+                while (buffered < 16 && i < length) {
+                    buffer[buffered++] = in.get(from + i++);
+                }
+                if (buffered < 16) {
+                    return;
+                }
+                block(buffer, 1 << 24);
+                buffered = 0;
+            }
+            for (; length - i >= 16; i += 16) {
+                for (int j = 0; j < 16; j++) {
+                    buffer[j] = in.get(from + i + j);
+                }
+                block(buffer, 1 << 24);
+            }
+            while (i < length) {
+                buffer[buffered++] = in.get(from + i++);
+            }
+        }
+
+        /**
+         * finish() writes the 16 byte tag to out.
+         */
+        void finish(byte[] out) {
+            if (buffered > 0) {
+                buffer[buffered] = 1;
+                for (int i = buffered + 1; i < 16; i++) {
+                    buffer[i] = 0;
+                }
+                block(buffer, 0);
+                buffered = 0;
+            }
+
+            long c;
+            c = h1 >>> 26;
+            h1 &= MASK26;
+            h2 += c;
+            c = h2 >>> 26;
+            h2 &= MASK26;
+            h3 += c;
+            c = h3 >>> 26;
+            h3 &= MASK26;
+            h4 += c;
+            c = h4 >>> 26;
+            h4 &= MASK26;
+            h0 += c * 5;
+            c = h0 >>> 26;
+            h0 &= MASK26;
+            h1 += c;
+
+            // compute h - p and select it if h >= p
+            long g0 = h0 + 5;
+            c = g0 >>> 26;
+            g0 &= MASK26;
+            long g1 = h1 + c;
+            c = g1 >>> 26;
+            g1 &= MASK26;
+            long g2 = h2 + c;
+            c = g2 >>> 26;
+            g2 &= MASK26;
+            long g3 = h3 + c;
+            c = g3 >>> 26;
+            g3 &= MASK26;
+            long g4 = h4 + c - (1L << 26);
+
+            long mask = (g4 >>> 63) - 1;
+            g0 &= mask;
+            g1 &= mask;
+            g2 &= mask;
+            g3 &= mask;
+            g4 &= mask;
+            mask = ~mask;
+            h0 = (h0 & mask) | g0;
+            h1 = (h1 & mask) | g1;
+            h2 = (h2 & mask) | g2;
+            h3 = (h3 & mask) | g3;
+            h4 = (h4 & mask) | g4;
+
+            // h = h % 2^128, then add the pad
+            h0 = (h0 | (h1 << 26)) & 0xffffffffL;
+            h1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+            h2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+            h3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+            long f;
+            f = h0 + pad0;
+            h0 = f & 0xffffffffL;
+            f = h1 + pad1 + (f >>> 32);
+            h1 = f & 0xffffffffL;
+            f = h2 + pad2 + (f >>> 32);
+            h2 = f & 0xffffffffL;
+            f = h3 + pad3 + (f >>> 32);
+            h3 = f & 0xffffffffL;
+
+            put32(out, 0, h0);
+            put32(out, 4, h1);
+            put32(out, 8, h2);
+            put32(out, 12, h3);
+        }
+
+        /**
+         * reset() clears all key-dependent state.
+         */
+        void reset() {
+            r0 = r1 = r2 = r3 = r4 = 0;
+            s1 = s2 = s3 = s4 = 0;
+            h0 = h1 = h2 = h3 = h4 = 0;
+            pad0 = pad1 = pad2 = pad3 = 0;
+            Arrays.fill(buffer, (byte) 0);
+            buffered = 0;
+        }
+
+        private void block(byte[] m, int hibit) {
+            h0 += le32(m, 0) & 0x3ffffffL;
+            h1 += (le32(m, 3) >>> 2) & 0x3ffffffL;
+            h2 += (le32(m, 6) >>> 4) & 0x3ffffffL;
+            h3 += (le32(m, 9) >>> 6) & 0x3ffffffL;
+            h4 += (le32(m, 12) >>> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26;
+            h0 = d0 & MASK26;
+            d1 += c;
+            c = d1 >>> 26;
+            h1 = d1 & MASK26;
+            d2 += c;
+            c = d2 >>> 26;
+            h2 = d2 & MASK26;
+            d3 += c;
+            c = d3 >>> 26;
+            h3 = d3 & MASK26;
+            d4 += c;
+            c = d4 >>> 26;
+            h4 = d4 & MASK26;
+            h0 += c * 5;
+            c = h0 >>> 26;
+            h0 &= MASK26;
+            h1 += c;
+        }
+
+        private static void put32(byte[] out, int off, long v) {
+            out[off] = (byte) v;
+            out[off + 1] = (byte) (v >>> 8);
+            out[off + 2] = (byte) (v >>> 16);
+            out[off + 3] = (byte) (v >>> 24);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.wagmorelabs.biscuit.examples;
+
+import com.wagmorelabs.biscuit.Biscuit;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * CompileSecrets converts a secrets file to the binary form read by {@link Biscuit#readMapped(Path)}. The secrets
+ * remain encrypted.
+ * <p>
+ * Usage: CompileSecrets secrets.yml secrets.bin
+ */
+public class CompileSecrets {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: CompileSecrets <secrets.yml> <output>");
+            System.exit(2);
+        }
+        Path source = Paths.get(args[0]);
+        Path destination = Paths.get(args[1]);
+        Biscuit.compileMapped(source, destination);
+
+        // Check that the output can be read back before it is deployed.
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.readMapped(destination);
+        System.out.printf("wrote %s%n", destination);
+    }
+}
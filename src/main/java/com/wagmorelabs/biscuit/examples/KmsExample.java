@@ -1,9 +1,6 @@
 package com.wagmorelabs.biscuit.examples;
 
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.kms.AWSKMSClient;
 import com.wagmorelabs.biscuit.Biscuit;
 import com.wagmorelabs.biscuit.KeyManager;
 import com.wagmorelabs.biscuit.KmsKeyManager;
@@ -12,6 +9,7 @@ import javax.crypto.Cipher;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 
 /**
  * KmsExample demonstrates how to configure an AWS KMS client for use with Biscuit.
@@ -28,9 +26,9 @@ public class KmsExample {
         // On EC2, you could also use EC2MetadataUtils.getRegion().
         String regionHint = System.getenv("AWS_REGION");
 
-        KeyManager kmsKeyManager = new KmsKeyManager(region ->
-                Region.getRegion(Regions.fromName(region)).createClient(AWSKMSClient.class, credentials, null),
-                regionHint);
+        // KmsKeyManager keeps one client per region; idle clients are shut down after five minutes.
+        KeyManager kmsKeyManager = new KmsKeyManager(KmsKeyManager.clientFactory(credentials, 16), regionHint,
+                Duration.ofMinutes(5));
 
         Biscuit biscuit = new Biscuit.Builder()
                 .withKeyManager(kmsKeyManager)
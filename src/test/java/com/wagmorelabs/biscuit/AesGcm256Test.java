@@ -2,10 +2,16 @@ package com.wagmorelabs.biscuit;
 
 import org.junit.Test;
 
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 import static javax.xml.bind.DatatypeConverter.parseHexBinary;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 public class AesGcm256Test {
 
@@ -46,4 +52,100 @@ public class AesGcm256Test {
             assertArrayEquals(plaintext, new AesGcm256().decrypt(key, ciphertext));
         }
     }
+
+    @Test
+    public void testByteBufferDecryption() throws GeneralSecurityException {
+        for (String[] testCase : aesGcmTests) {
+            byte[] key = parseHexBinary(testCase[KEY]);
+            byte[] plaintext = parseHexBinary(testCase[PLAINTEXT]);
+            byte[] ciphertext = parseHexBinary(testCase[RESULT] + testCase[NONCE]);
+            // surround the ciphertext with unrelated bytes to exercise position and limit handling
+            ByteBuffer input = ByteBuffer.allocate(ciphertext.length + 8);
+            input.position(3);
+            input.put(ciphertext);
+            input.flip();
+            input.position(3);
+            ByteBuffer output = ByteBuffer.allocateDirect(plaintext.length + 5);
+            output.position(5);
+            AesGcm256 algorithm = new AesGcm256();
+            assertEquals(plaintext.length, algorithm.plaintextLength(ciphertext.length));
+            assertEquals(plaintext.length, algorithm.decrypt(key, input, output));
+            assertEquals(input.limit(), input.position());
+            byte[] decrypted = new byte[plaintext.length];
+            output.position(5);
+            output.get(decrypted);
+            assertArrayEquals(plaintext, decrypted);
+        }
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testTamperedCiphertext() throws GeneralSecurityException {
+        String[] testCase = aesGcmTests[2];
+        byte[] ciphertext = parseHexBinary(testCase[RESULT] + testCase[NONCE]);
+        ciphertext[0] ^= 1;
+        new AesGcm256().decrypt(parseHexBinary(testCase[KEY]), ciphertext);
+    }
+
+    @Test
+    public void testEncryption() throws GeneralSecurityException {
+        AesGcm256 algorithm = new AesGcm256();
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 7);
+        for (int length : new int[]{0, 1, 1000}) {
+            byte[] plaintext = new byte[length];
+            Arrays.fill(plaintext, (byte) 'p');
+            byte[] ciphertext = algorithm.encrypt(key, plaintext);
+            assertEquals(length, algorithm.plaintextLength(ciphertext.length));
+            assertArrayEquals(plaintext, algorithm.decrypt(key, ciphertext));
+            // nonces are random
+            assertFalse(Arrays.equals(ciphertext, algorithm.encrypt(key, plaintext)));
+        }
+    }
+
+    private static byte[] readAll(Algorithm.Decryption decryption, int chunk) throws GeneralSecurityException {
+        ByteBuffer plaintext = ByteBuffer.allocate(decryption.remaining());
+        ByteBuffer buffer = ByteBuffer.allocate(chunk);
+        while (decryption.read(buffer) >= 0) {
+            buffer.flip();
+            plaintext.put(buffer);
+            buffer.clear();
+        }
+        return plaintext.array();
+    }
+
+    @Test
+    public void testStreamingDecryption() throws GeneralSecurityException {
+        AesGcm256 algorithm = new AesGcm256();
+        for (String[] testCase : aesGcmTests) {
+            byte[] ciphertext = parseHexBinary(testCase[RESULT] + testCase[NONCE]);
+            assertArrayEquals(parseHexBinary(testCase[PLAINTEXT]),
+                    readAll(algorithm.open(parseHexBinary(testCase[KEY]), ByteBuffer.wrap(ciphertext)), 5));
+        }
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 7);
+        for (int length : new int[]{1, 15, 16, 17, 100000}) {
+            byte[] plaintext = new byte[length];
+            for (int i = 0; i < length; i++) {
+                plaintext[i] = (byte) i;
+            }
+            byte[] ciphertext = algorithm.encrypt(key, plaintext);
+            for (int chunk : new int[]{1, 7, 4096}) {
+                assertArrayEquals(plaintext, readAll(algorithm.open(key, ByteBuffer.wrap(ciphertext)), chunk));
+            }
+            for (int i : new int[]{0, length - 1, length, length + 15}) {
+                ciphertext[i] ^= 1;
+                try {
+                    algorithm.open(key, ByteBuffer.wrap(ciphertext));
+                    fail();
+                } catch (AEADBadTagException expected) {
+                }
+                ciphertext[i] ^= 1;
+            }
+        }
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testShortCiphertext() throws GeneralSecurityException {
+        new AesGcm256().decrypt(new byte[32], new byte[27]);
+    }
 }
@@ -0,0 +1,111 @@
+package com.wagmorelabs.biscuit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.kms.AbstractAWSKMSAsync;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.StringReader;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for AsyncKmsKeyManager.
+ */
+public class AsyncKmsKeyManagerTest {
+
+    /**
+     * A KMS client that "decrypts" by returning the ciphertext blob, and fails for the SecretName "fail".
+     */
+    private static class EchoKms extends AbstractAWSKMSAsync {
+        private final List<String> regions;
+        private final String region;
+
+        EchoKms(List<String> regions, String region) {
+            this.regions = regions;
+            this.region = region;
+        }
+
+        @Override
+        public Future<DecryptResult> decryptAsync(DecryptRequest request,
+                                                  AsyncHandler<DecryptRequest, DecryptResult> handler) {
+            regions.add(region);
+            CompletableFuture<DecryptResult> result = new CompletableFuture<>();
+            if ("fail".equals(request.getEncryptionContext().get("SecretName"))) {
+                AmazonServiceException ex = new AmazonServiceException("denied");
+                handler.onError(ex);
+                result.completeExceptionally(ex);
+            } else {
+                DecryptResult decrypted = new DecryptResult().withPlaintext(request.getCiphertextBlob());
+                handler.onSuccess(request, decrypted);
+                result.complete(decrypted);
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void decryptAsync() throws Exception {
+        List<String> regions = new ArrayList<>();
+        AsyncKmsKeyManager keyManager = new AsyncKmsKeyManager(region -> new EchoKms(regions, region), "us-east-1");
+        byte[] key = keyManager.decryptAsync("arn:aws:kms:us-west-1:123456789012:alias/biscuit-x",
+                new byte[]{1, 2, 3}, "k").get();
+        assertArrayEquals(new byte[]{1, 2, 3}, key);
+        keyManager.decryptAsync("alias/biscuit-x", new byte[1], "k").get();
+        assertEquals("us-west-1", regions.get(0));
+        assertEquals("us-east-1", regions.get(1));
+        try {
+            keyManager.decryptAsync("alias/biscuit-x", new byte[1], "fail").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+    }
+
+    @Test
+    public void biscuitGetAsync() throws Exception {
+        byte[] testingKey = new TestingKeyManager().decrypt(null, null, null);
+        Biscuit biscuit = new Biscuit.Builder()
+                .withAsyncKeyManager(new AsyncKmsKeyManager(region -> new EchoKms(new ArrayList<>(), region),
+                        "us-east-1"))
+                .build();
+        biscuit.read(new StringReader("k:\n" +
+                "- key_manager: kms\n  key_ciphertext: AAAA\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n" +
+                "- key_manager: kms\n  key_ciphertext: " +
+                DatatypeConverter.printBase64Binary(testingKey) + "\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n"));
+        assertEquals("v-aesgcm256", biscuit.getStringAsync("k").get());
+        try {
+            biscuit.getAsync("404").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoSuchElementException);
+        }
+    }
+
+    @Test
+    public void blockingAdapter() throws Exception {
+        Biscuit biscuit = new Biscuit.Builder().withExecutor(Runnable::run).build();
+        biscuit.read(new StringReader("k:\n- key_manager: testing\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n"));
+        assertEquals("v-aesgcm256", biscuit.getStringAsync("k").get());
+        biscuit.read(new StringReader("k:\n- key_manager: kms\n  algorithm: aesgcm256\n"));
+        try {
+            biscuit.getAsync("k").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KeyStoreException);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.wagmorelabs.biscuit;
 
+import com.amazonaws.AmazonClientException;
 import org.junit.Test;
 
 import javax.crypto.Cipher;
@@ -7,10 +8,28 @@ import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -78,6 +97,489 @@ public class BiscuitTest {
         assertEquals("v-aesgcm256", biscuit.getString("launchcodes"));
     }
 
+    @Test
+    public void getAll() throws GeneralSecurityException {
+        AtomicInteger keyRequests = new AtomicInteger();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(new KeyManager() {
+                    @Override
+                    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                        keyRequests.incrementAndGet();
+                        return new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+                    }
+
+                    @Override
+                    public String label() {
+                        return "testing";
+                    }
+                })
+                .build();
+        biscuit.read(new InputStreamReader(getClass().getResourceAsStream("secrets.yml"),
+                Charset.forName("UTF-8")));
+        biscuit.read(new StringReader("k-bad:\n- algorithm: 3des\n  ciphertext: aGVsbG8K"));
+        BulkResult<String> result = biscuit.getAllStrings(
+                Arrays.asList("k-none", "k-aesgcm256", "k-aesgcm256", "404", "k-bad"));
+        assertEquals("v-none", result.values().get("k-none"));
+        assertEquals("v-aesgcm256", result.values().get("k-aesgcm256"));
+        assertEquals(2, result.values().size());
+        assertEquals(1, keyRequests.get());
+        assertFalse(result.isComplete());
+        assertTrue(result.failures().get("404") instanceof NoSuchElementException);
+        assertTrue(result.failures().get("k-bad") instanceof NoSuchAlgorithmException);
+
+        BulkResult<byte[]> bytes = biscuit.getAll(Collections.singleton("k-none-big"), Runnable::run);
+        assertTrue(bytes.isComplete());
+        assertArrayEquals(biscuit.get("k-none-big"), bytes.values().get("k-none-big"));
+    }
+
+    @Test
+    public void metrics() {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyCache(10, Duration.ofMinutes(5))
+                .withPlaintextCache(1 << 20, Duration.ofMinutes(5))
+                .withMetrics(metrics)
+                .build();
+        biscuit.read(new InputStreamReader(getClass().getResourceAsStream("secrets.yml"),
+                Charset.forName("UTF-8")));
+        biscuit.read(new StringReader("k-fallback:\n- key_manager: kms\n  algorithm: secretbox\n" +
+                "- algorithm: none\n  ciphertext: aGVsbG8K\n"));
+        assertEquals("v-aesgcm256", biscuit.getString("k-aesgcm256"));
+        assertEquals("v-aesgcm256", biscuit.getString("k-aesgcm256"));
+        biscuit.invalidate("k-aesgcm256");
+        assertEquals("v-aesgcm256", biscuit.getString("k-aesgcm256"));
+        assertNotNull(biscuit.get("k-aesgcm256-big"));
+        assertEquals("hello\n", biscuit.getString("k-fallback"));
+
+        assertEquals(4, metrics.plaintextCacheMisses());
+        assertEquals(1, metrics.plaintextCacheHits());
+        assertEquals(2, metrics.keyCacheMisses());
+        assertEquals(1, metrics.keyCacheHits());
+        assertEquals(2, metrics.secretLatencies().get("k-aesgcm256").count());
+        assertEquals(3, metrics.keyManagerLatencies().get("testing").count());
+        assertEquals(3, metrics.algorithmLatencies().get("aesgcm256").count());
+        assertEquals(1, metrics.algorithmLatencies().get("none").count());
+        assertEquals(Long.valueOf(1), metrics.entryFallbacks().get("k-fallback"));
+        assertTrue(metrics.failures().isEmpty());
+    }
+
+    @Test
+    public void warmUp() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(new KeyManager() {
+                    @Override
+                    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public String label() {
+                        return "slow";
+                    }
+                })
+                .withPlaintextCache(1 << 20, Duration.ofMinutes(5))
+                .withMetrics(metrics)
+                .build();
+        biscuit.read(new InputStreamReader(getClass().getResourceAsStream("secrets.yml"),
+                Charset.forName("UTF-8")));
+        biscuit.read(new StringReader("k-slow:\n- key_manager: slow\n  algorithm: secretbox\n" +
+                "k-bad:\n- algorithm: 3des\n  ciphertext: aGVsbG8K\n"));
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            WarmUpResult result = biscuit.warmUp(Arrays.asList("k-aesgcm256", "k-secretbox", "k-slow", "k-bad", "404"),
+                    Duration.ofMillis(500), pool);
+            assertFalse(result.isComplete());
+            assertEquals(new HashSet<>(Arrays.asList("k-aesgcm256", "k-secretbox")), result.warmed());
+            assertEquals(Collections.singleton("k-slow"), result.timedOut());
+            assertTrue(result.failures().get("k-bad") instanceof NoSuchAlgorithmException);
+            assertTrue(result.failures().get("404") instanceof NoSuchElementException);
+
+            long misses = metrics.plaintextCacheMisses();
+            assertEquals("v-aesgcm256", biscuit.getString("k-aesgcm256"));
+            assertEquals(misses, metrics.plaintextCacheMisses());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+        WarmUpResult all = biscuit.warmUp(Duration.ofSeconds(30));
+        assertEquals(6, all.warmed().size());
+        assertEquals(new HashSet<>(Arrays.asList("k-slow", "k-bad")), all.failures().keySet());
+    }
+
+    private static KeyManager slowKeyManager(String label, long millis, CountDownLatch finished,
+                                             AtomicBoolean interrupted) {
+        return new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    return null;
+                } finally {
+                    finished.countDown();
+                }
+                return new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+            }
+
+            @Override
+            public String label() {
+                return label;
+            }
+        };
+    }
+
+    @Test
+    public void hedging() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(2);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(slowKeyManager("slow", 1000, finished, interrupted))
+                .withHedging(Duration.ofMillis(20))
+                .withMetrics(metrics)
+                .build();
+        String entry = "  key_ciphertext: eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXk=\n" +
+                "  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n";
+        biscuit.read(new StringReader("k-hedged:\n- key_manager: slow\n" + entry + "- key_manager: testing\n" + entry +
+                "k-fast:\n- key_manager: testing\n" + entry + "- key_manager: slow\n" + entry +
+                "k-failing:\n- key_manager: kms\n" + entry + "- key_manager: testing\n" + entry));
+
+        long start = System.nanoTime();
+        assertEquals("v-aesgcm256", biscuit.getString("k-hedged"));
+        assertEquals("v-aesgcm256", biscuit.getString("k-fast"));
+        assertEquals("v-aesgcm256", biscuit.getString("k-failing"));
+        try (SecretHandle handle = biscuit.getHandle("k-hedged")) {
+            assertEquals(11, handle.size());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+        assertEquals(Long.valueOf(2), metrics.entryHedges().get("k-hedged"));
+        assertNull(metrics.entryHedges().get("k-fast"));
+        assertEquals(Long.valueOf(1), metrics.entryFallbacks().get("k-failing"));
+        // the losing attempts run to completion, as their key requests may be shared with other lookups
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        assertFalse(interrupted.get());
+
+        // attempts that the executor rejects run on the calling thread
+        Biscuit rejecting = new Biscuit.Builder()
+                .withHedging(Duration.ofMillis(20), runnable -> {
+                    throw new RejectedExecutionException();
+                })
+                .build();
+        rejecting.read(new StringReader("k:\n- key_manager: kms\n" + entry + "- key_manager: testing\n" + entry));
+        assertEquals("v-aesgcm256", rejecting.getString("k"));
+    }
+
+    @Test
+    public void hedgingSurvivesRuntimeExceptions() {
+        KeyManager timingOut = new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                throw new AmazonClientException("Unable to execute HTTP request: Read timed out");
+            }
+
+            @Override
+            public String label() {
+                return "timing-out";
+            }
+        };
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(timingOut)
+                .withHedging(Duration.ofSeconds(30))
+                .withMetrics(metrics)
+                .build();
+        String entry = "  key_ciphertext: eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXk=\n" +
+                "  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n";
+        biscuit.read(new StringReader("k:\n- key_manager: timing-out\n" + entry + "- key_manager: testing\n" + entry +
+                "k-down:\n- key_manager: kms\n" + entry + "- key_manager: timing-out\n" + entry));
+
+        // the timeout fails only its own attempt, so the next entry is tried at once
+        assertEquals("v-aesgcm256", biscuit.getString("k"));
+        assertEquals(Long.valueOf(1), metrics.entryFallbacks().get("k"));
+
+        // the runtime exception is rethrown only when no entry succeeds
+        try {
+            biscuit.get("k-down");
+            fail();
+        } catch (AmazonClientException e) {
+            assertEquals(1, e.getSuppressed().length);
+            assertTrue(e.getSuppressed()[0] instanceof GeneralSecurityException);
+        }
+    }
+
+    @Test
+    public void circuitBreaker() {
+        AtomicInteger calls = new AtomicInteger();
+        KeyManager down = new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                calls.incrementAndGet();
+                return null;
+            }
+
+            @Override
+            public String label() {
+                return "down";
+            }
+        };
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(down)
+                .withCircuitBreaker(2, Duration.ofMinutes(5))
+                .build();
+        assertTrue(biscuit.health().isEmpty());
+        String entry = "  key_ciphertext: eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXk=\n" +
+                "  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n";
+        StringBuilder yaml = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            yaml.append("k").append(i).append(":\n- key_manager: down\n").append(entry)
+                    .append("- key_manager: testing\n").append(entry);
+        }
+        biscuit.read(new StringReader(yaml.toString()));
+
+        // the first lookup of each secret remembers that the second entry won
+        assertEquals("v-aesgcm256", biscuit.getString("k0"));
+        assertEquals(1, biscuit.preferredEntry("k0"));
+        assertEquals("v-aesgcm256", biscuit.getString("k0"));
+        assertEquals(1, calls.get());
+
+        // the breaker opens after two failures, after which other secrets skip the entry too
+        assertEquals("v-aesgcm256", biscuit.getString("k1"));
+        for (int i = 2; i < 5; i++) {
+            assertEquals("v-aesgcm256", biscuit.getString("k" + i));
+        }
+        assertEquals(2, calls.get());
+        for (PathHealth path : biscuit.health()) {
+            if (path.keyManager().equals("down")) {
+                assertEquals(PathHealth.State.OPEN, path.state());
+                assertEquals(2, path.consecutiveFailures());
+            } else {
+                assertEquals(PathHealth.State.CLOSED, path.state());
+            }
+        }
+
+        // reloading a secret forgets its winner
+        biscuit.read(new StringReader("k0:\n- key_manager: testing\n" + entry + "- key_manager: down\n" + entry));
+        assertEquals(0, biscuit.preferredEntry("k0"));
+        assertEquals("v-aesgcm256", biscuit.getString("k0"));
+        assertEquals(0, biscuit.preferredEntry("k0"));
+    }
+
+    @Test
+    public void cachedKeysDoNotCountTowardsCircuitBreakers() {
+        KeyManager failsForA = new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                if (secretName.equals("a")) {
+                    return null;
+                }
+                return new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+            }
+
+            @Override
+            public String label() {
+                return "flaky";
+            }
+        };
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(failsForA)
+                .withKeyCache(16, Duration.ofMinutes(5))
+                .withCircuitBreaker(2, Duration.ofMinutes(5))
+                .build();
+        String entry = "- key_manager: flaky\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n";
+        biscuit.read(new StringReader("a:\n" + entry + "b:\n" + entry));
+        assertEquals("v-aesgcm256", biscuit.getString("b"));
+        assertNull(biscuit.get("a"));
+        // served from the key cache, so the breaker does not hear of it
+        assertEquals("v-aesgcm256", biscuit.getString("b"));
+        assertNull(biscuit.get("a"));
+        assertEquals(PathHealth.State.OPEN, biscuit.health().get(0).state());
+    }
+
+    @Test
+    public void concurrentReadsDuringReload() throws Exception {
+        int secrets = 200;
+        String[] documents = new String[2];
+        for (int version = 0; version < documents.length; version++) {
+            StringBuilder yaml = new StringBuilder();
+            for (int i = 0; i < secrets; i++) {
+                yaml.append("secret-").append(i).append(":\n- algorithm: none\n  ciphertext: ")
+                        .append(DatatypeConverter.printBase64Binary(("v" + version).getBytes("UTF-8")))
+                        .append("\n");
+            }
+            documents[version] = yaml.toString();
+        }
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.read(new StringReader(documents[0]));
+
+        int readers = 8;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < readers; t++) {
+            int seed = t;
+            futures.add(pool.submit(() -> {
+                for (int i = seed; !done.get(); i++) {
+                    String value = biscuit.getString("secret-" + (i % secrets));
+                    if (!"v0".equals(value) && !"v1".equals(value)) {
+                        failure.compareAndSet(null, "secret-" + (i % secrets) + " was " + value);
+                    }
+                    // every secret in a snapshot comes from the same document
+                    Map<String, SecretEntry[]> snapshot = biscuit.snapshot();
+                    String first = version(snapshot, "secret-" + (i % secrets));
+                    String second = version(snapshot, "secret-" + ((i + secrets / 2) % secrets));
+                    if (!first.equals(second)) {
+                        failure.compareAndSet(null, "snapshot mixed " + first + " and " + second);
+                    }
+                }
+            }));
+        }
+        for (int i = 0; i < 500; i++) {
+            biscuit.read(new StringReader(documents[i % 2]));
+        }
+        done.set(true);
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        assertNull(failure.get());
+    }
+
+    private static String version(Map<String, SecretEntry[]> snapshot, String name) {
+        ByteBuffer ciphertext = snapshot.get(name)[0].ciphertext();
+        byte[] plaintext = new byte[ciphertext.remaining()];
+        ciphertext.get(plaintext);
+        return new String(plaintext, Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void memoryFootprint() {
+        int secrets = 10000;
+        String keyCiphertext = DatatypeConverter.printBase64Binary(new byte[184]);
+        StringBuilder yaml = new StringBuilder();
+        for (int i = 0; i < secrets; i++) {
+            yaml.append("secret-").append(i).append(":\n")
+                    .append("- key_id: arn:aws:kms:us-west-2:123456789012:alias/biscuit-x\n")
+                    .append("  key_manager: testing\n")
+                    .append("  key_ciphertext: ").append(keyCiphertext).append("\n")
+                    .append("  algorithm: aesgcm256\n")
+                    .append("  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n");
+        }
+        String document = yaml.toString();
+        Biscuit biscuit = new Biscuit.Builder().build();
+        long before = usedHeap();
+        biscuit.read(new StringReader(document));
+        long perSecret = (usedHeap() - before) / secrets;
+        assertEquals("v-aesgcm256", biscuit.getString("secret-" + (secrets - 1)));
+        // 184 + 40 bytes of decoded ciphertext plus the name, entry and map overhead.
+        assertTrue("retained " + perSecret + " bytes per secret", perSecret < 768);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * RecordingAlgorithm records the keys it is given.
+     */
+    private static class RecordingAlgorithm implements Algorithm {
+        private final Algorithm delegate;
+        private final List<byte[]> keys;
+
+        RecordingAlgorithm(Algorithm delegate, List<byte[]> keys) {
+            this.delegate = delegate;
+            this.keys = keys;
+        }
+
+        @Override
+        public int decrypt(byte[] key, ByteBuffer ciphertext, ByteBuffer output) throws GeneralSecurityException {
+            keys.add(key);
+            return delegate.decrypt(key, ciphertext, output);
+        }
+
+        @Override
+        public Decryption open(byte[] key, ByteBuffer ciphertext) throws GeneralSecurityException {
+            keys.add(key);
+            return delegate.open(key, ciphertext);
+        }
+
+        @Override
+        public byte[] encrypt(byte[] key, byte[] plaintext) throws GeneralSecurityException {
+            return delegate.encrypt(key, plaintext);
+        }
+
+        @Override
+        public int plaintextLength(int ciphertextLength) throws GeneralSecurityException {
+            return delegate.plaintextLength(ciphertextLength);
+        }
+
+        @Override
+        public String label() {
+            return delegate.label();
+        }
+
+        @Override
+        public boolean requiresKey() {
+            return delegate.requiresKey();
+        }
+    }
+
+    @Test
+    public void zeroesDataKeys() throws IOException {
+        // a key manager may hand out the same array every time; Biscuit zeroes its own copies only
+        byte[] shared = new TestingKeyManager().decrypt(null, new byte[0], "");
+        List<byte[]> keys = Collections.synchronizedList(new ArrayList<>());
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(new KeyManager() {
+                    @Override
+                    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                        return shared;
+                    }
+
+                    @Override
+                    public String label() {
+                        return "testing";
+                    }
+                })
+                .withAlgorithm(new RecordingAlgorithm(new AesGcm256(), keys))
+                .withAlgorithm(new RecordingAlgorithm(new SecretBox(), keys))
+                .build();
+        biscuit.read(new InputStreamReader(getClass().getResourceAsStream("secrets.yml"), Charset.forName("UTF-8")));
+        for (int i = 0; i < 2; i++) {
+            for (String algo : new String[]{"aesgcm256", "secretbox"}) {
+                assertEquals("v-" + algo, biscuit.getString("k-" + algo));
+                try (SecretHandle handle = biscuit.getHandle("k-" + algo)) {
+                    assertEquals(("v-" + algo).length(), handle.size());
+                }
+                try (SecretStream stream = biscuit.openStream("k-" + algo)) {
+                    assertEquals('v', stream.read());
+                }
+            }
+        }
+        assertEquals(12, keys.size());
+        for (byte[] key : keys) {
+            assertNotSame(shared, key);
+            assertArrayEquals(new byte[32], key);
+        }
+        assertArrayEquals(new TestingKeyManager().decrypt(null, new byte[0], ""), shared);
+    }
+
     @Test
     public void verifyUnlimitedJcePolicy() throws NoSuchAlgorithmException {
         assertTrue(Cipher.getMaxAllowedKeyLength("AES") >= 256);
@@ -0,0 +1,225 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BiscuitWriterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, byte[]> secrets(String... names) {
+        Map<String, byte[]> secrets = new LinkedHashMap<>();
+        for (String name : names) {
+            secrets.put(name, ("value of " + name).getBytes(UTF8));
+        }
+        return secrets;
+    }
+
+    private static String write(BiscuitWriter writer, Map<String, byte[]> secrets)
+            throws IOException, GeneralSecurityException {
+        StringWriter out = new StringWriter();
+        writer.write(secrets, out);
+        return out.toString();
+    }
+
+    @Test
+    public void roundTrip() throws IOException, GeneralSecurityException {
+        List<String> names = Arrays.asList("plain", "true", "null", "~", "123", "a: b", "- item", "#comment",
+                "quote\"back\\slash", "tab\there", "Ａ", "😀", "");
+        for (String algorithm : new String[]{"secretbox", "aesgcm256", "none"}) {
+            BiscuitWriter writer = new BiscuitWriter.Builder()
+                    .withAlgorithm(algorithm)
+                    .withKey("testing", "key")
+                    .build();
+            Map<String, byte[]> secrets = secrets(names.toArray(new String[names.size()]));
+            secrets.put("empty", new byte[0]);
+            Biscuit biscuit = new Biscuit.Builder().build();
+            biscuit.read(new StringReader(write(writer, secrets)));
+            for (Map.Entry<String, byte[]> secret : secrets.entrySet()) {
+                assertArrayEquals(algorithm + " " + secret.getKey(), secret.getValue(),
+                        biscuit.get(secret.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void format() throws IOException, GeneralSecurityException {
+        String yaml = write(new BiscuitWriter.Builder().withKey("testing", "key").build(), secrets("k"));
+        String[] lines = yaml.split("\n");
+        assertEquals("\"k\":", lines[0]);
+        assertEquals("- key_id: \"key\"", lines[1]);
+        assertEquals("  key_manager: testing", lines[2]);
+        assertEquals("  key_ciphertext: eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXk=", lines[3]);
+        assertEquals("  algorithm: secretbox", lines[4]);
+        assertTrue(lines[5].startsWith("  ciphertext: "));
+        assertEquals(6, lines.length);
+
+        assertEquals("\"k\":\n- algorithm: none\n  ciphertext: dmFsdWUgb2Ygaw==\n",
+                write(new BiscuitWriter.Builder().withAlgorithm("none").build(), secrets("k")));
+    }
+
+    @Test
+    public void regions() throws IOException, GeneralSecurityException {
+        FakeKms kms = new FakeKms();
+        String west = kms.region("us-west-2").keyArn("biscuit");
+        String east = kms.region("us-east-1").keyArn("biscuit");
+        BiscuitWriter writer = new BiscuitWriter.Builder()
+                .withKeyManager(new KmsKeyManager(kms, "us-west-2"))
+                .withKey("kms", west)
+                .withKey("kms", east)
+                .withMaxInFlight(8)
+                .build();
+        String[] names = new String[500];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "secret-" + i;
+        }
+        Path path = folder.getRoot().toPath().resolve("secrets.yml");
+        writer.write(secrets(names), path);
+        assertEquals(names.length, kms.region("us-west-2").requests.sum());
+        assertEquals(names.length, kms.region("us-east-1").requests.sum());
+
+        // each region can decrypt every secret on its own
+        for (String region : new String[]{"us-west-2", "us-east-1"}) {
+            FakeKms.Region other = kms.region(region.equals("us-west-2") ? "us-east-1" : "us-west-2");
+            other.errorRate(1);
+            Biscuit biscuit = new Biscuit.Builder()
+                    .withKeyManager(new KmsKeyManager(kms, "us-west-2"))
+                    .build();
+            biscuit.readFile(path.toString());
+            for (String name : Arrays.asList(names[0], names[names.length - 1])) {
+                assertEquals("value of " + name, biscuit.getString(name));
+            }
+            other.errorRate(0);
+        }
+    }
+
+    @Test
+    public void failures() throws IOException, GeneralSecurityException {
+        FakeKms kms = new FakeKms();
+        kms.region("us-west-2").errorRate(1);
+        BiscuitWriter writer = new BiscuitWriter.Builder()
+                .withKeyManager(new KmsKeyManager(kms, "us-west-2"))
+                .withKey("kms", kms.region("us-west-2").keyArn("biscuit"))
+                .build();
+        Path path = folder.getRoot().toPath().resolve("secrets.yml");
+        try {
+            writer.write(secrets("a", "b"), path);
+            fail();
+        } catch (GeneralSecurityException expected) {
+        }
+        assertFalse(path.toFile().exists());
+        assertEquals(0, folder.getRoot().list().length);
+
+        try {
+            new BiscuitWriter.Builder().build();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            new BiscuitWriter.Builder().withKey("kms", "key").build();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            new BiscuitWriter.Builder().withAlgorithm("3des");
+            fail();
+        } catch (NoSuchAlgorithmException expected) {
+        }
+        KeyManager decryptOnly = new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                return null;
+            }
+
+            @Override
+            public String label() {
+                return "decrypt-only";
+            }
+        };
+        try {
+            decryptOnly.generateDataKey("key", "a");
+            fail();
+        } catch (KeyStoreException expected) {
+        }
+        BiscuitWriter decryptOnlyWriter = new BiscuitWriter.Builder()
+                .withKeyManager(decryptOnly)
+                .withKey("decrypt-only", "key")
+                .build();
+        try {
+            decryptOnlyWriter.write(secrets("a"), path);
+            fail();
+        } catch (KeyStoreException expected) {
+        }
+        assertFalse(path.toFile().exists());
+    }
+
+    @Test
+    public void cancelsSecretsInFlightOnFailure() throws IOException {
+        AtomicInteger generated = new AtomicInteger();
+        KeyManager failsForA = new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                return null;
+            }
+
+            @Override
+            public DataKey generateDataKey(String keyID, String secretName) throws GeneralSecurityException {
+                if (secretName.equals("a")) {
+                    throw new KeyStoreException("Unable to generate data key");
+                }
+                generated.incrementAndGet();
+                return new TestingKeyManager().generateDataKey(keyID, secretName);
+            }
+
+            @Override
+            public String label() {
+                return "testing";
+            }
+        };
+        // the first task runs at once and fails; the rest wait until the test runs them
+        AtomicBoolean started = new AtomicBoolean();
+        List<Runnable> queued = new ArrayList<>();
+        BiscuitWriter writer = new BiscuitWriter.Builder()
+                .withKeyManager(failsForA)
+                .withKey("testing", "key")
+                .withExecutor(task -> {
+                    if (started.compareAndSet(false, true)) {
+                        task.run();
+                    } else {
+                        queued.add(task);
+                    }
+                })
+                .build();
+        try {
+            write(writer, secrets("a", "b", "c"));
+            fail();
+        } catch (GeneralSecurityException expected) {
+        }
+        assertEquals(2, queued.size());
+        for (Runnable task : queued) {
+            task.run();
+        }
+        assertEquals(0, generated.get());
+    }
+}
@@ -0,0 +1,125 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CachingKeyManagerTest {
+
+    private static class CountingKeyManager implements KeyManager {
+        private final AtomicInteger calls = new AtomicInteger();
+        private byte[] last;
+
+        @Override
+        public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+            calls.incrementAndGet();
+            last = new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+            return last;
+        }
+
+        @Override
+        public String label() {
+            return "testing";
+        }
+    }
+
+    @Test
+    public void cachesUntilTtl() {
+        AtomicLong now = new AtomicLong();
+        CountingKeyManager counting = new CountingKeyManager();
+        KeyCache cache = new KeyCache(10, Duration.ofSeconds(60), now::get);
+        KeyManager cached = new CachingKeyManager(counting, cache);
+        byte[] first = cached.decrypt("id", new byte[]{1}, "k");
+        byte[] second = cached.decrypt("id", new byte[]{1}, "k");
+        assertArrayEquals(first, second);
+        assertEquals(1, counting.calls.get());
+
+        // a different secret name or ciphertext is a different key
+        cached.decrypt("id", new byte[]{1}, "other");
+        cached.decrypt("id", new byte[]{2}, "k");
+        assertEquals(3, counting.calls.get());
+
+        byte[] expired = cache.retained(new KeyCache.CacheKey("testing", "id", new byte[]{1}, "k"));
+        now.addAndGet(Duration.ofSeconds(60).toNanos());
+        cached.decrypt("id", new byte[]{1}, "k");
+        assertEquals(4, counting.calls.get());
+        assertArrayEquals(new byte[expired.length], expired);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAndZeroes() {
+        CountingKeyManager counting = new CountingKeyManager();
+        KeyCache cache = new KeyCache(2, Duration.ofMinutes(5));
+        KeyManager cached = new CachingKeyManager(counting, cache);
+        cached.decrypt("id", new byte[]{1}, "a");
+        cached.decrypt("id", new byte[]{1}, "b");
+        byte[] evicted = cache.retained(new KeyCache.CacheKey("testing", "id", new byte[]{1}, "b"));
+        assertEquals('x', evicted[0]);
+        cached.decrypt("id", new byte[]{1}, "a");
+        cached.decrypt("id", new byte[]{1}, "c");
+        assertEquals(2, cache.size());
+        assertArrayEquals(new byte[evicted.length], evicted);
+        assertEquals(3, counting.calls.get());
+        cached.decrypt("id", new byte[]{1}, "a");
+        assertEquals(3, counting.calls.get());
+        cached.decrypt("id", new byte[]{1}, "b");
+        assertEquals(4, counting.calls.get());
+    }
+
+    @Test
+    public void zeroesExpiredKeysThatAreNotRead() {
+        AtomicLong now = new AtomicLong();
+        KeyCache cache = new KeyCache(10, Duration.ofSeconds(60), now::get);
+        KeyManager cached = new CachingKeyManager(new CountingKeyManager(), cache);
+        cached.decrypt("id", new byte[]{1}, "a");
+        byte[] expired = cache.retained(new KeyCache.CacheKey("testing", "id", new byte[]{1}, "a"));
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        cached.decrypt("id", new byte[]{1}, "b");
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        cached.decrypt("id", new byte[]{1}, "c");
+        assertArrayEquals(new byte[expired.length], expired);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void remainingDoesNotCountAsUse() {
+        AtomicLong now = new AtomicLong();
+        KeyCache cache = new KeyCache(2, Duration.ofSeconds(60), now::get);
+        CachingKeyManager cached = new CachingKeyManager(new CountingKeyManager(), cache);
+        cached.decrypt("id", new byte[]{1}, "a");
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        cached.decrypt("id", new byte[]{1}, "b");
+        assertEquals(Duration.ofSeconds(50).toNanos(), cached.remainingNanos("id", new byte[]{1}, "a"));
+        cached.decrypt("id", new byte[]{1}, "c");
+        assertEquals(-1, cached.remainingNanos("id", new byte[]{1}, "a"));
+        assertEquals(Duration.ofSeconds(60).toNanos(), cached.remainingNanos("id", new byte[]{1}, "b"));
+    }
+
+    @Test
+    public void returnedKeysAreCopies() {
+        KeyManager cached = new CachingKeyManager(new CountingKeyManager(), new KeyCache(2, Duration.ofMinutes(5)));
+        byte[] key = cached.decrypt("id", new byte[]{1}, "a");
+        key[0] = 0;
+        assertEquals('x', cached.decrypt("id", new byte[]{1}, "a")[0]);
+    }
+
+    @Test
+    public void builderWrapsKeyManagers() {
+        CountingKeyManager counting = new CountingKeyManager();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(counting)
+                .withKeyCache(100, Duration.ofMinutes(5))
+                .build();
+        biscuit.read(new StringReader("k:\n- key_manager: testing\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n"));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("v-aesgcm256", biscuit.getString("k"));
+        }
+        assertEquals(1, counting.calls.get());
+    }
+}
@@ -0,0 +1,146 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class EntryHealthTest {
+    private static final String WEST = "arn:aws:kms:us-west-2:000000000000:key/biscuit";
+    private static final String EAST = "arn:aws:kms:us-east-1:000000000000:key/biscuit";
+
+    private static SecretEntry entry(String keyID) {
+        return new SecretEntry(keyID, "kms", null, null, "aesgcm256", null, new byte[0], new byte[0]);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        AtomicLong now = new AtomicLong();
+        EntryHealth health = new EntryHealth(3, Duration.ofSeconds(10), now::get);
+        SecretEntry west = entry(WEST);
+        SecretEntry east = entry(EAST);
+        SecretEntry[] entries = {west, east};
+
+        health.keyResult("kms", WEST, false);
+        health.keyResult("kms", WEST, false);
+        health.keyResult("kms", WEST, true);
+        health.keyResult("kms", WEST, false);
+        health.keyResult("kms", WEST, false);
+        assertSame(west, health.order("k", entries)[0]);
+
+        health.keyResult("kms", WEST, false);
+        assertArrayEquals(new SecretEntry[]{east, west}, health.order("k", entries));
+        // another key in the same region shares the breaker
+        SecretEntry[] other = {entry(WEST.replace("biscuit", "other")), east};
+        assertSame(east, health.order("other", other)[0]);
+    }
+
+    @Test
+    public void halfOpenProbe() {
+        AtomicLong now = new AtomicLong();
+        EntryHealth health = new EntryHealth(1, Duration.ofSeconds(10), now::get);
+        SecretEntry west = entry(WEST);
+        SecretEntry east = entry(EAST);
+        SecretEntry[] entries = {west, east};
+        health.keyResult("kms", WEST, false);
+        assertSame(east, health.order("k", entries)[0]);
+
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        // lookups try the entry in order again until one of them reaches the key manager and probes it
+        assertSame(west, health.order("k", entries)[0]);
+        assertSame(west, health.order("k", entries)[0]);
+        assertEquals(PathHealth.State.OPEN, state(health, "us-west-2"));
+        health.attempting("kms", WEST);
+        assertEquals(PathHealth.State.HALF_OPEN, state(health, "us-west-2"));
+        assertSame(east, health.order("k", entries)[0]);
+
+        // a failed probe opens the breaker again
+        health.keyResult("kms", WEST, false);
+        assertEquals(PathHealth.State.OPEN, state(health, "us-west-2"));
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        assertSame(east, health.order("k", entries)[0]);
+
+        // a successful probe closes it
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        assertSame(west, health.order("k", entries)[0]);
+        health.attempting("kms", WEST);
+        health.keyResult("kms", WEST, true);
+        assertEquals(PathHealth.State.CLOSED, state(health, "us-west-2"));
+        assertSame(west, health.order("k", entries)[0]);
+    }
+
+    @Test
+    public void unreportedProbeIsRetried() {
+        AtomicLong now = new AtomicLong();
+        EntryHealth health = new EntryHealth(1, Duration.ofSeconds(10), now::get);
+        SecretEntry west = entry(WEST);
+        SecretEntry[] entries = {west, entry(EAST)};
+        health.keyResult("kms", WEST, false);
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        health.attempting("kms", WEST);
+        assertNotSame(west, health.order("k", entries)[0]);
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertSame(west, health.order("k", entries)[0]);
+    }
+
+    @Test
+    public void stickyWinner() {
+        EntryHealth health = new EntryHealth(5, Duration.ofSeconds(10));
+        SecretEntry[] entries = {entry(WEST), entry(EAST), entry("local")};
+        assertEquals(0, health.preferredEntry("k"));
+        health.succeeded("k", entries, entries[2], false);
+        assertEquals(2, health.preferredEntry("k"));
+        assertArrayEquals(new SecretEntry[]{entries[2], entries[0], entries[1]}, health.order("k", entries));
+
+        // a reloaded secret may have fewer entries
+        assertArrayEquals(new SecretEntry[]{entries[0], entries[1]},
+                health.order("k", new SecretEntry[]{entries[0], entries[1]}));
+
+        health.forget(Collections.singleton("k"));
+        assertEquals(0, health.preferredEntry("k"));
+        health.succeeded("k", entries, entries[1], false);
+        health.succeeded("k", entries, entries[0], false);
+        assertEquals(0, health.preferredEntry("k"));
+
+        // changing the mapped stores forgets only the winners of mapped secrets
+        health.succeeded("k", entries, entries[1], false);
+        health.succeeded("m", entries, entries[2], true);
+        health.forgetMapped();
+        assertEquals(1, health.preferredEntry("k"));
+        assertEquals(0, health.preferredEntry("m"));
+        health.succeeded("m", entries, entries[2], true);
+        assertEquals(2, health.preferredEntry("m"));
+    }
+
+    @Test
+    public void paths() {
+        EntryHealth health = new EntryHealth(1, Duration.ofSeconds(10));
+        health.keyResult("kms", WEST, false);
+        health.keyResult("kms", "alias/biscuit", true);
+        List<PathHealth> paths = health.paths();
+        assertEquals(2, paths.size());
+        for (PathHealth path : paths) {
+            assertEquals("kms", path.keyManager());
+            if (path.region() == null) {
+                assertEquals(PathHealth.State.CLOSED, path.state());
+            } else {
+                assertEquals("us-west-2", path.region());
+                assertEquals(PathHealth.State.OPEN, path.state());
+                assertEquals(1, path.consecutiveFailures());
+            }
+        }
+    }
+
+    private static PathHealth.State state(EntryHealth health, String region) {
+        for (PathHealth path : health.paths()) {
+            if (region.equals(path.region())) {
+                return path.state();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,297 @@
+package com.wagmorelabs.biscuit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.AbstractAWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import com.amazonaws.services.kms.model.EncryptRequest;
+import com.amazonaws.services.kms.model.EncryptResult;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import com.amazonaws.services.kms.model.InvalidCiphertextException;
+import com.amazonaws.services.kms.model.NotFoundException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FakeKms is an in-process stand-in for AWS KMS in any number of regions, for use as a
+ * {@link KmsKeyManager.AWSKMSFactory}. Keys are created on first use. Ciphertexts really are encrypted, with
+ * AES-GCM under a per-key master key, and are bound to their encryption context, so decrypting with the wrong
+ * SecretName fails as it would with KMS. Each region can be given a latency distribution, a request rate above which
+ * requests are throttled, and a rate of internal errors.
+ */
+class FakeKms implements KmsKeyManager.AWSKMSFactory {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final SecureRandom random = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Region> regions = new ConcurrentHashMap<>();
+
+    /**
+     * Latency produces the service time of each request, in nanoseconds.
+     */
+    interface Latency {
+        Latency NONE = () -> 0;
+
+        long nextNanos();
+
+        static Latency fixed(long duration, TimeUnit unit) {
+            long nanos = unit.toNanos(duration);
+            return () -> nanos;
+        }
+
+        static Latency uniform(long min, long max, TimeUnit unit) {
+            long minNanos = unit.toNanos(min);
+            long maxNanos = unit.toNanos(max);
+            return () -> ThreadLocalRandom.current().nextLong(minNanos, maxNanos + 1);
+        }
+
+        /**
+         * A log-normal distribution with the given median; sigma controls the length of the tail.
+         */
+        static Latency logNormal(long median, double sigma, TimeUnit unit) {
+            long medianNanos = unit.toNanos(median);
+            return () -> (long) (medianNanos * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+        }
+
+        /**
+         * Uses slow for the given fraction of requests and base otherwise.
+         */
+        static Latency withSlowFraction(Latency base, double fraction, Latency slow) {
+            return () -> ThreadLocalRandom.current().nextDouble() < fraction ? slow.nextNanos() : base.nextNanos();
+        }
+    }
+
+    /**
+     * Region holds the keys, fault configuration and request counters of one region.
+     */
+    static final class Region {
+        private final String name;
+        private final ConcurrentHashMap<String, SecretKeySpec> keys = new ConcurrentHashMap<>();
+        private volatile Latency latency = Latency.NONE;
+        private volatile double errorRate;
+        private volatile long throttleIntervalNanos;
+        private final AtomicLong nextPermit = new AtomicLong();
+        final LongAdder requests = new LongAdder();
+        final LongAdder throttled = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        private Region(String name) {
+            this.name = name;
+        }
+
+        Region latency(Latency latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * Fails the given fraction of requests with KMSInternalException.
+         */
+        Region errorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * Throttles requests beyond the given rate, allowing bursts of up to a second's worth of requests. Zero
+         * disables throttling.
+         */
+        Region throttleAbove(int requestsPerSecond) {
+            this.throttleIntervalNanos = requestsPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+            // start with a full bucket
+            nextPermit.set(System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+            return this;
+        }
+
+        String keyArn(String alias) {
+            return "arn:aws:kms:" + name + ":000000000000:key/" + alias;
+        }
+
+        private SecretKeySpec key(String keyId) {
+            return keys.computeIfAbsent(keyId, id -> {
+                byte[] key = new byte[32];
+                random.nextBytes(key);
+                return new SecretKeySpec(key, "AES");
+            });
+        }
+
+        private void admit() {
+            requests.increment();
+            long interval = throttleIntervalNanos;
+            if (interval > 0) {
+                // token bucket holding up to one second of permits
+                long now = System.nanoTime();
+                while (true) {
+                    long next = nextPermit.get();
+                    long start = Math.max(next, now - TimeUnit.SECONDS.toNanos(1));
+                    if (start > now) {
+                        throttled.increment();
+                        throw serviceException("ThrottlingException", "Rate exceeded", 400);
+                    }
+                    if (nextPermit.compareAndSet(next, start + interval)) {
+                        break;
+                    }
+                }
+            }
+            long nanos = latency.nextNanos();
+            if (nanos > 0) {
+                LockSupport.parkNanos(nanos);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.increment();
+                throw serviceException("KMSInternalException", "Internal error", 500);
+            }
+        }
+    }
+
+    /**
+     * region() returns the named region, creating it if necessary.
+     *
+     * @param name
+     * @return
+     */
+    Region region(String name) {
+        return regions.computeIfAbsent(name, Region::new);
+    }
+
+    @Override
+    public AWSKMS create(String region) {
+        return new Client(region(region));
+    }
+
+    /**
+     * encrypt() encrypts a data key as KMS would for a secret, without counting as a request.
+     *
+     * @param keyArn
+     * @param plaintext
+     * @param secretName
+     * @return
+     */
+    byte[] encrypt(String keyArn, byte[] plaintext, String secretName) {
+        Region region = region(KmsKeyManager.getRegionFromKeyId(keyArn));
+        return seal(region, keyArn, plaintext, KmsKeyManager.encryptionContext(secretName));
+    }
+
+    private static byte[] seal(Region region, String keyId, byte[] plaintext, Map<String, String> context) {
+        byte[] id = keyId.getBytes(UTF8);
+        byte[] nonce = new byte[12];
+        random.nextBytes(nonce);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, region.key(keyId), new GCMParameterSpec(128, nonce));
+            cipher.updateAAD(aad(context));
+            byte[] sealed = cipher.doFinal(plaintext);
+            // [key ID length][key ID][nonce][sealed]
+            return ByteBuffer.allocate(2 + id.length + nonce.length + sealed.length)
+                    .putShort((short) id.length).put(id).put(nonce).put(sealed).array();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] open(Region region, ByteBuffer blob, Map<String, String> context) {
+        try {
+            byte[] id = new byte[blob.getShort()];
+            blob.get(id);
+            String keyId = new String(id, UTF8);
+            if (!region.keys.containsKey(keyId)) {
+                throw serviceException(new NotFoundException("Key '" + keyId + "' does not exist"),
+                        "NotFoundException", 400);
+            }
+            byte[] nonce = new byte[12];
+            blob.get(nonce);
+            byte[] sealed = new byte[blob.remaining()];
+            blob.get(sealed);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, region.key(keyId), new GCMParameterSpec(128, nonce));
+            cipher.updateAAD(aad(context));
+            return cipher.doFinal(sealed);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            if (e instanceof AmazonServiceException) {
+                throw (AmazonServiceException) e;
+            }
+            throw serviceException(new InvalidCiphertextException("Invalid ciphertext"), "InvalidCiphertextException",
+                    400);
+        }
+    }
+
+    private static byte[] aad(Map<String, String> context) {
+        StringBuilder aad = new StringBuilder();
+        if (context != null) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(context).entrySet()) {
+                aad.append(entry.getKey()).append('\0').append(entry.getValue()).append('\0');
+            }
+        }
+        return aad.toString().getBytes(UTF8);
+    }
+
+    private static AmazonServiceException serviceException(String code, String message, int status) {
+        return serviceException(new AmazonServiceException(message), code, status);
+    }
+
+    private static AmazonServiceException serviceException(AmazonServiceException ex, String code, int status) {
+        ex.setErrorCode(code);
+        ex.setStatusCode(status);
+        ex.setServiceName("AWSKMS");
+        return ex;
+    }
+
+    /**
+     * Client is the AWSKMS view of one region.
+     */
+    private static final class Client extends AbstractAWSKMS {
+        private final Region region;
+
+        Client(Region region) {
+            this.region = region;
+        }
+
+        @Override
+        public EncryptResult encrypt(EncryptRequest request) {
+            region.admit();
+            byte[] plaintext = KmsKeyManager.toArray(request.getPlaintext());
+            String keyId = request.getKeyId().startsWith("arn:")
+                    ? request.getKeyId() : region.keyArn(request.getKeyId());
+            byte[] blob = seal(region, keyId, plaintext, request.getEncryptionContext());
+            return new EncryptResult().withKeyId(keyId).withCiphertextBlob(ByteBuffer.wrap(blob));
+        }
+
+        @Override
+        public GenerateDataKeyResult generateDataKey(GenerateDataKeyRequest request) {
+            region.admit();
+            byte[] plaintext = new byte[32];
+            random.nextBytes(plaintext);
+            String keyId = request.getKeyId().startsWith("arn:")
+                    ? request.getKeyId() : region.keyArn(request.getKeyId());
+            byte[] blob = seal(region, keyId, plaintext, request.getEncryptionContext());
+            return new GenerateDataKeyResult().withKeyId(keyId).withPlaintext(ByteBuffer.wrap(plaintext))
+                    .withCiphertextBlob(ByteBuffer.wrap(blob));
+        }
+
+        @Override
+        public DecryptResult decrypt(DecryptRequest request) {
+            region.admit();
+            return new DecryptResult().withPlaintext(ByteBuffer.wrap(
+                    open(region, request.getCiphertextBlob().duplicate(), request.getEncryptionContext())));
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
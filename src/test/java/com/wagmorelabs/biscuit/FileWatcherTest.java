@@ -0,0 +1,137 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileWatcherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(Path path, String yaml) throws IOException {
+        // replace the file atomically, as deployment tools do
+        Path temp = Files.createTempFile(path.getParent(), "secrets", ".tmp");
+        Files.write(temp, yaml.getBytes(Charset.forName("UTF-8")));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String secret(String name, String base64) {
+        return name + ":\n- algorithm: none\n  ciphertext: " + base64 + "\n";
+    }
+
+    @Test
+    public void reloadAppliesDifferences() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("secrets.yml");
+        write(path, secret("a", "YQ==") + secret("b", "Yg==") + secret("c", "Yw=="));
+        List<Set<String>> changes = new ArrayList<>();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withPlaintextCache(1024, Duration.ofMinutes(5))
+                .withChangeListener((changed, removed) -> {
+                    changes.add(new HashSet<>(changed));
+                    changes.add(new HashSet<>(removed));
+                })
+                .build();
+        biscuit.read(new StringReader(secret("other", "bw==")));
+        changes.clear();
+
+        FileWatcher watcher = new FileWatcher(biscuit, path, Duration.ofMillis(10));
+        watcher.reload();
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), changes.get(0));
+        assertEquals("b", biscuit.getString("b"));
+        assertEquals("c", biscuit.getString("c"));
+
+        changes.clear();
+        write(path, secret("a", "YQ==") + secret("b", "Qg=="));
+        watcher.reload();
+        assertEquals(Collections.singleton("b"), changes.get(0));
+        assertEquals(Collections.singleton("c"), changes.get(1));
+        assertEquals("a", biscuit.getString("a"));
+        assertEquals("B", biscuit.getString("b"));
+        assertNull(biscuit.getString("c"));
+        assertEquals("o", biscuit.getString("other"));
+
+        changes.clear();
+        watcher.reload();
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void keepsSecretsWhenFileIsMalformed() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("secrets.yml");
+        write(path, secret("a", "YQ=="));
+        Biscuit biscuit = new Biscuit.Builder().build();
+        FileWatcher watcher = new FileWatcher(biscuit, path, Duration.ofMillis(10));
+        watcher.reload();
+        write(path, "a: [");
+        try {
+            watcher.reload();
+            fail();
+        } catch (RuntimeException expected) {
+            // reported by the watch thread
+        }
+        assertEquals("a", biscuit.getString("a"));
+    }
+
+    @Test
+    public void digestIgnoresFieldOrder() {
+        assertArrayEquals(
+                FileWatcher.digest(Collections.singletonList(map("algorithm", "none", "ciphertext", "YQ=="))),
+                FileWatcher.digest(Collections.singletonList(map("ciphertext", "YQ==", "algorithm", "none"))));
+        assertFalse(Arrays.equals(
+                FileWatcher.digest(Collections.singletonList(map("algorithm", "none", "ciphertext", "YQ=="))),
+                FileWatcher.digest(Collections.singletonList(map("algorithm", "none", "ciphertext", "Yg==")))));
+    }
+
+    private static Map<String, String> map(String... fields) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i += 2) {
+            map.put(fields[i], fields[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void watchesFile() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("secrets.yml");
+        write(path, secret("a", "YQ=="));
+        CountDownLatch rotated = new CountDownLatch(1);
+        Biscuit biscuit = new Biscuit.Builder()
+                .withChangeListener((changed, removed) -> {
+                    if (changed.contains("b")) {
+                        rotated.countDown();
+                    }
+                })
+                .build();
+        FileWatcher watcher = (FileWatcher) biscuit.watchFile(path.toString(), Duration.ofMillis(10));
+        try {
+            assertEquals("a", biscuit.getString("a"));
+            write(path, secret("a", "YQ==") + secret("b", "Yg=="));
+            // some platforms poll for changes rather than being notified
+            assertTrue(rotated.await(30, TimeUnit.SECONDS));
+            assertEquals("b", biscuit.getString("b"));
+        } finally {
+            watcher.close();
+        }
+        assertFalse(watcher.isRunning());
+    }
+}
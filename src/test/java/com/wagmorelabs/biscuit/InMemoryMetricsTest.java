@@ -0,0 +1,55 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InMemoryMetricsTest {
+
+    @Test
+    public void buckets() {
+        assertEquals(0, InMemoryMetrics.Histogram.bucket(0));
+        assertEquals(1, InMemoryMetrics.Histogram.bucket(1));
+        assertEquals(2, InMemoryMetrics.Histogram.bucket(2));
+        assertEquals(2, InMemoryMetrics.Histogram.bucket(3));
+        assertEquals(11, InMemoryMetrics.Histogram.bucket(1024));
+        assertEquals(63, InMemoryMetrics.Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        InMemoryMetrics.Histogram histogram = new InMemoryMetrics.Histogram();
+        assertEquals(0, histogram.percentileNanos(99));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1000000);
+        assertEquals(100, histogram.count());
+        assertEquals(99 * 1000 + 1000000, histogram.sumNanos());
+        assertEquals(1000000, histogram.maxNanos());
+        assertEquals(1023, histogram.percentileNanos(50));
+        assertEquals(1023, histogram.percentileNanos(99));
+        assertEquals(1000000, histogram.percentileNanos(100));
+    }
+
+    @Test
+    public void counters() {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.secretDecrypted("a", 10, true);
+        metrics.secretDecrypted("a", 20, false);
+        metrics.keyDecrypted("kms", 5, false);
+        metrics.entryFallback("a", "kms");
+        metrics.kmsError("us-west-2", "ThrottlingException");
+        metrics.kmsError("us-west-2", "ThrottlingException");
+        metrics.keyCacheHit("kms");
+        metrics.plaintextCacheMiss("a");
+        assertEquals(2, metrics.secretLatencies().get("a").count());
+        assertEquals(Long.valueOf(1), metrics.failures().get("secret:a"));
+        assertEquals(Long.valueOf(1), metrics.failures().get("key_manager:kms"));
+        assertEquals(Long.valueOf(1), metrics.entryFallbacks().get("a"));
+        assertEquals(Long.valueOf(2), metrics.kmsErrors().get("us-west-2:ThrottlingException"));
+        assertEquals(1, metrics.keyCacheHits());
+        assertEquals(0, metrics.keyCacheMisses());
+        assertEquals(1, metrics.plaintextCacheMisses());
+    }
+}
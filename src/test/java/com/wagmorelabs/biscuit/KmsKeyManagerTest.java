@@ -1,12 +1,41 @@
 package com.wagmorelabs.biscuit;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kms.AbstractAWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
 import org.junit.Test;
 
+import java.io.StringReader;
 import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit test for KmsKeyManager.
@@ -24,4 +53,297 @@ public class KmsKeyManagerTest {
             assertEquals(entry.getValue(), KmsKeyManager.getRegionFromKeyId(entry.getKey()));
         }
     }
+
+    @Test
+    public void coalescesConcurrentDecrypts() throws Exception {
+        int threads = 8;
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        AbstractAWSKMS kms = new AbstractAWSKMS() {
+            @Override
+            public DecryptResult decrypt(DecryptRequest request) {
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return new DecryptResult().withPlaintext(request.getCiphertextBlob());
+            }
+        };
+        KmsKeyManager keyManager = new KmsKeyManager(region -> kms, "us-west-2");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> keyManager.decrypt("alias/x", new byte[]{1, 2}, "db-password")));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (keyManager.getCoalescedCount() < threads - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            // every caller gets its own copy of the key, so that it may zero it
+            Set<byte[]> keys = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Future<byte[]> result : results) {
+                byte[] key = result.get();
+                assertArrayEquals(new byte[]{1, 2}, key);
+                keys.add(key);
+                Arrays.fill(key, (byte) 0);
+            }
+            assertEquals(threads, keys.size());
+            assertEquals(1, calls.get());
+            assertEquals(threads - 1, keyManager.getCoalescedCount());
+
+            // a different secret name is a different request
+            keyManager.decrypt("alias/x", new byte[]{1, 2}, "other");
+            assertEquals(2, calls.get());
+            assertEquals(threads - 1, keyManager.getCoalescedCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void followersSeeLeaderErrors() throws Exception {
+        int threads = 4;
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        AbstractAWSKMS kms = new AbstractAWSKMS() {
+            @Override
+            public DecryptResult decrypt(DecryptRequest request) {
+                if (calls.incrementAndGet() > 1) {
+                    return new DecryptResult().withPlaintext(request.getCiphertextBlob());
+                }
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                throw new StackOverflowError();
+            }
+        };
+        KmsKeyManager keyManager = new KmsKeyManager(region -> kms, "us-west-2");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> keyManager.decrypt("alias/x", new byte[]{1, 2}, "db-password")));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (keyManager.getCoalescedCount() < threads - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<byte[]> result : results) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException expected) {
+                    assertTrue(expected.getCause() instanceof StackOverflowError);
+                }
+            }
+            // the failed flight is gone
+            assertArrayEquals(new byte[]{1, 2}, keyManager.decrypt("alias/x", new byte[]{1, 2}, "db-password"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static class EchoKms extends AbstractAWSKMS {
+        private boolean shutdown;
+
+        @Override
+        public DecryptResult decrypt(DecryptRequest request) {
+            return new DecryptResult().withPlaintext(request.getCiphertextBlob());
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+    }
+
+    @Test
+    public void reportsKmsErrors() {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        KmsKeyManager keyManager = new KmsKeyManager(region -> new EchoKms() {
+            @Override
+            public DecryptResult decrypt(DecryptRequest request) {
+                AmazonServiceException ex = new AmazonServiceException("Rate exceeded");
+                ex.setErrorCode("ThrottlingException");
+                throw ex;
+            }
+        }, "us-west-2").withMetrics(metrics);
+        assertNull(keyManager.decrypt("alias/x", new byte[]{1}, "k"));
+        assertEquals(Long.valueOf(1), metrics.kmsErrors().get("us-west-2:ThrottlingException"));
+    }
+
+    @Test
+    public void reportsKmsErrorsToBiscuitMetrics() {
+        KmsKeyManager shared = new KmsKeyManager(region -> new EchoKms() {
+            @Override
+            public DecryptResult decrypt(DecryptRequest request) {
+                AmazonServiceException ex = new AmazonServiceException("Access denied");
+                ex.setErrorCode("AccessDeniedException");
+                throw ex;
+            }
+        }, "us-west-2");
+        // each Biscuit sharing the key manager gets its own errors
+        for (int i = 0; i < 2; i++) {
+            InMemoryMetrics metrics = new InMemoryMetrics();
+            Biscuit biscuit = new Biscuit.Builder()
+                    .withKeyManager(shared)
+                    .withMetrics(metrics)
+                    .build();
+            biscuit.read(new StringReader("k:\n- key_manager: kms\n  key_id: alias/x\n  key_ciphertext: AQ==\n" +
+                    "  algorithm: aesgcm256\n  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n"));
+            assertNull(biscuit.get("k"));
+            assertEquals(Long.valueOf(1), metrics.kmsErrors().get("us-west-2:AccessDeniedException"));
+        }
+    }
+
+    @Test
+    public void reportsHealth() {
+        FakeKms kms = new FakeKms();
+        KmsKeyManager keyManager = new KmsKeyManager(kms, "us-west-2");
+        EntryHealth health = new EntryHealth(1, Duration.ofMinutes(5));
+        KeyManager reporting = keyManager.forBiscuit(BiscuitMetrics.NONE, health);
+        String keyArn = kms.region("us-west-2").keyArn("biscuit");
+        byte[] keyCiphertext = kms.encrypt(keyArn, new byte[32], "k");
+
+        // a rejected key ciphertext says nothing about the health of KMS
+        assertNull(reporting.decrypt(keyArn, keyCiphertext, "other"));
+        assertEquals(PathHealth.State.CLOSED, health.paths().get(0).state());
+
+        kms.region("us-west-2").errorRate(1);
+        // requests through the shared key manager itself are not recorded
+        assertNull(keyManager.decrypt(keyArn, keyCiphertext, "k"));
+        assertEquals(PathHealth.State.CLOSED, health.paths().get(0).state());
+        assertNull(reporting.decrypt(keyArn, keyCiphertext, "k"));
+        assertEquals(PathHealth.State.OPEN, health.paths().get(0).state());
+    }
+
+    @Test
+    public void generatesDataKeys() throws GeneralSecurityException {
+        FakeKms kms = new FakeKms();
+        KmsKeyManager keyManager = new KmsKeyManager(kms, "us-west-2");
+        String keyArn = kms.region("eu-west-1").keyArn("biscuit");
+        DataKey dataKey = keyManager.generateDataKey(keyArn, "k");
+        assertEquals(32, dataKey.plaintext().length);
+        assertEquals(1, kms.region("eu-west-1").requests.sum());
+        assertArrayEquals(dataKey.plaintext(), keyManager.decrypt(keyArn, dataKey.ciphertext(), "k"));
+        // the key is bound to the secret name
+        assertNull(keyManager.decrypt(keyArn, dataKey.ciphertext(), "other"));
+
+        kms.region("eu-west-1").errorRate(1);
+        try {
+            keyManager.generateDataKey(keyArn, "k");
+            fail();
+        } catch (KeyStoreException expected) {
+        }
+    }
+
+    @Test
+    public void reusesClientsPerRegion() {
+        Map<String, Integer> created = new HashMap<>();
+        KmsKeyManager keyManager = new KmsKeyManager(region -> {
+            created.merge(region, 1, Integer::sum);
+            return new EchoKms();
+        }, "us-west-2");
+        for (int i = 0; i < 10; i++) {
+            keyManager.decrypt("alias/x", new byte[]{1}, "k");
+            keyManager.decrypt("arn:aws:kms:eu-west-1:123456789012:alias/x", new byte[]{1}, "k");
+        }
+        assertEquals(Integer.valueOf(1), created.get("us-west-2"));
+        assertEquals(Integer.valueOf(1), created.get("eu-west-1"));
+        assertEquals("eu-west-1", keyManager.resolveRegion("arn:aws:kms:eu-west-1:123456789012:alias/x"));
+        assertEquals("us-west-2", keyManager.resolveRegion("alias/x"));
+    }
+
+    @Test
+    public void evictsIdleClients() {
+        AtomicLong now = new AtomicLong();
+        List<EchoKms> created = new ArrayList<>();
+        KmsClientPool pool = new KmsClientPool(region -> {
+            EchoKms kms = new EchoKms();
+            created.add(kms);
+            return kms;
+        }, Duration.ofMinutes(1), now::get);
+        KmsKeyManager keyManager = new KmsKeyManager(pool, "us-west-2");
+        keyManager.decrypt("alias/x", new byte[]{1}, "k");
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        keyManager.decrypt("alias/x", new byte[]{1}, "k");
+        assertEquals(1, created.size());
+
+        now.addAndGet(Duration.ofMinutes(2).toNanos());
+        KmsClientPool.PooledClient other = pool.acquire("eu-west-1");
+        other.release();
+        assertTrue(created.get(0).shutdown);
+        assertEquals(1, pool.size());
+
+        keyManager.decrypt("alias/x", new byte[]{1}, "k");
+        assertEquals(3, created.size());
+        keyManager.shutdown();
+        assertTrue(created.get(1).shutdown);
+        assertTrue(created.get(2).shutdown);
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void buildsOneClientPerRegionOutsideThePoolLock() throws Exception {
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<EchoKms> created = new CopyOnWriteArrayList<>();
+        KmsClientPool[] pool = new KmsClientPool[1];
+        pool[0] = new KmsClientPool(region -> {
+            // a factory that uses the pool would deadlock if called while the pool holds a lock
+            pool[0].size();
+            building.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            EchoKms kms = new EchoKms();
+            created.add(kms);
+            return kms;
+        }, null);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<KmsClientPool.PooledClient> first = threads.submit(() -> pool[0].acquire("us-west-2"));
+            assertTrue(building.await(10, TimeUnit.SECONDS));
+            Future<KmsClientPool.PooledClient> second = threads.submit(() -> pool[0].acquire("us-west-2"));
+            release.countDown();
+            assertSame(first.get(10, TimeUnit.SECONDS).client(), second.get(10, TimeUnit.SECONDS).client());
+            assertEquals(1, created.size());
+            assertEquals(1, pool[0].size());
+            // without an idle timeout the clients belong to the factory
+            pool[0].shutdown();
+            assertFalse(created.get(0).shutdown);
+            assertEquals(0, pool[0].size());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void forgetsFailedClients() {
+        AtomicInteger calls = new AtomicInteger();
+        KmsClientPool pool = new KmsClientPool(region -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IllegalStateException("no credentials");
+            }
+            return new EchoKms();
+        }, null);
+        try {
+            pool.acquire("us-west-2");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("no credentials", e.getMessage());
+        }
+        assertEquals(0, pool.size());
+        assertNotNull(pool.acquire("us-west-2").client());
+        assertEquals(2, calls.get());
+    }
 }
@@ -0,0 +1,167 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MappedStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path compile(String yaml) throws IOException {
+        Path path = folder.newFile().toPath();
+        MappedStore.compile(new StringReader(yaml), path);
+        return path;
+    }
+
+    private Path compileResource() throws IOException {
+        Path path = folder.newFile().toPath();
+        MappedStore.compile(new InputStreamReader(getClass().getResourceAsStream("secrets.yml"),
+                Charset.forName("UTF-8")), path);
+        return path;
+    }
+
+    @Test
+    public void matchesYaml() throws IOException {
+        Biscuit yaml = new Biscuit.Builder().build();
+        yaml.read(new InputStreamReader(getClass().getResourceAsStream("secrets.yml"), Charset.forName("UTF-8")));
+        Biscuit mapped = new Biscuit.Builder().build();
+        mapped.readMapped(compileResource());
+        for (String algo : Arrays.asList("aesgcm256", "secretbox", "none")) {
+            assertEquals("v-" + algo, mapped.getString("k-" + algo));
+            assertArrayEquals(yaml.get("k-" + algo + "-big"), mapped.get("k-" + algo + "-big"));
+            try (SecretHandle handle = mapped.getHandle("k-" + algo)) {
+                assertEquals(("v-" + algo).length(), handle.size());
+            }
+        }
+        assertNull(mapped.get("404"));
+        assertNull(mapped.get("k-"));
+        assertNull(mapped.get("k-none-bigger"));
+        assertEquals("v-none", mapped.getStringAsync("k-none").join());
+    }
+
+    @Test
+    public void index() throws Exception {
+        MappedStore store = MappedStore.open(compile(
+                "b:\n- algorithm: none\n" +
+                "\u00e9:\n- algorithm: none\n" +
+                "a:\n- algorithm: none\n  ciphertext: YQ==\n- algorithm: none\n  ciphertext: Yg==\n" +
+                "\uff21:\n- algorithm: none\n" +
+                "aa:\n- algorithm: none\n"));
+        assertEquals(5, store.size());
+        assertEquals(Arrays.asList("a", "aa", "b", "\u00e9", "\uff21"), store.names());
+        for (String name : store.names()) {
+            assertNotNull(name, store.get(name, (keyID, keyManager, algorithm, keyCiphertext, ciphertext) -> null));
+        }
+        SecretEntry[] entries = store.get("a", (keyID, keyManager, algorithm, keyCiphertext, ciphertext) ->
+                new SecretEntry(keyID, keyManager, null, null, algorithm, null, keyCiphertext, ciphertext));
+        assertEquals(2, entries.length);
+        assertEquals("none", entries[0].algorithmLabel());
+        assertEquals("", entries[0].keyID());
+        assertEquals(0, entries[0].keyCiphertext().length);
+        assertEquals('a', entries[0].ciphertext().get());
+        assertEquals('b', entries[1].ciphertext().get());
+        assertNull(store.get("ab", (keyID, keyManager, algorithm, keyCiphertext, ciphertext) -> null));
+    }
+
+    @Test
+    public void precedence() throws IOException {
+        Biscuit biscuit = new Biscuit.Builder()
+                .withPlaintextCache(1024, Duration.ofMinutes(5))
+                .build();
+        biscuit.readMapped(compile(
+                "a:\n- algorithm: none\n  ciphertext: YQ==\nb:\n- algorithm: none\n  ciphertext: Yg==\n"));
+        assertEquals("a", biscuit.getString("a"));
+        biscuit.readMapped(compile("a:\n- algorithm: none\n  ciphertext: QQ==\n"));
+        assertEquals("A", biscuit.getString("a"));
+        assertEquals("b", biscuit.getString("b"));
+        biscuit.read(new StringReader("b:\n- algorithm: none\n  ciphertext: Qg==\n"));
+        assertEquals("B", biscuit.getString("b"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), biscuit.warmUp(Duration.ofSeconds(30)).warmed());
+    }
+
+    @Test
+    public void replacesAndReleases() throws IOException {
+        Biscuit biscuit = new Biscuit.Builder()
+                .withPlaintextCache(1024, Duration.ofMinutes(5))
+                .withCircuitBreaker(3, Duration.ofMinutes(1))
+                .build();
+        String c = "c:\n- key_manager: kms\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n" +
+                "- algorithm: none\n  ciphertext: Yw==\n";
+        Path first = compile("a:\n- algorithm: none\n  ciphertext: YQ==\n" + c);
+        Path second = compile("a:\n- algorithm: none\n  ciphertext: QQ==\n");
+        biscuit.readMapped(first);
+        biscuit.readMapped(second);
+        assertEquals("A", biscuit.getString("a"));
+        assertEquals("c", biscuit.getString("c"));
+        assertEquals(1, biscuit.preferredEntry("c"));
+
+        // mapping a path again replaces its mapping, which then takes precedence
+        MappedStore.compile(new StringReader("a:\n- algorithm: none\n  ciphertext: eA==\n" + c), first);
+        biscuit.readMapped(first);
+        assertEquals("x", biscuit.getString("a"));
+        assertEquals(0, biscuit.preferredEntry("c"));
+
+        assertTrue(biscuit.releaseMapped(first));
+        assertFalse(biscuit.releaseMapped(first));
+        assertEquals("A", biscuit.getString("a"));
+        assertNull(biscuit.getString("c"));
+        assertTrue(biscuit.releaseMapped(second.getParent().resolve(".").resolve(second.getFileName())));
+        assertNull(biscuit.getString("a"));
+    }
+
+    @Test
+    public void corruptRecordsFailTheirLookups() throws Exception {
+        String yaml = "a:\n- algorithm: none\n  ciphertext: YQ==\nb:\n- algorithm: none\n  ciphertext: Yg==\n";
+        Path truncated = compile(yaml);
+        byte[] bytes = Files.readAllBytes(truncated);
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.readMapped(truncated);
+        assertEquals("a", biscuit.getString("a"));
+        assertNull(biscuit.get("b"));
+        try {
+            biscuit.getAsync("b").get(30, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GeneralSecurityException);
+        }
+
+        // the offset of b's record points past the end of the file
+        Path offset = compile(yaml);
+        ByteBuffer.wrap(bytes).putInt(16, bytes.length);
+        Files.write(offset, bytes);
+        MappedStore store = MappedStore.open(offset);
+        assertNotNull(store.get("a", (keyID, keyManager, algorithm, keyCiphertext, ciphertext) -> null));
+        try {
+            store.get("b", (keyID, keyManager, algorithm, keyCiphertext, ciphertext) -> null);
+            fail();
+        } catch (GeneralSecurityException e) {
+            assertTrue(e.getMessage().startsWith("Corrupt compiled secrets file"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsYaml() throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, "a:\n- algorithm: none\n".getBytes("UTF-8"));
+        new Biscuit.Builder().build().readMapped(path);
+    }
+}
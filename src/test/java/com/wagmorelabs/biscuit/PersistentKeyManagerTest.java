@@ -0,0 +1,182 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class PersistentKeyManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class CountingKeyManager implements KeyManager {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+            calls.incrementAndGet();
+            return new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+        }
+
+        @Override
+        public String label() {
+            return "testing";
+        }
+    }
+
+    private Path directory() {
+        return folder.getRoot().toPath().resolve("keys");
+    }
+
+    private byte[] hostKey() throws IOException {
+        return PersistentKeyManager.hostKey(folder.getRoot().toPath().resolve("host.key"));
+    }
+
+    private static long files(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void survivesRestart() throws IOException {
+        CountingKeyManager counting = new CountingKeyManager();
+        byte[] hostKey = hostKey();
+        KeyManager first = new PersistentKeyManager(counting, directory(), hostKey, Duration.ofHours(1));
+        byte[] key = first.decrypt("id", new byte[]{1}, "k");
+        assertArrayEquals(key, first.decrypt("id", new byte[]{1}, "k"));
+        assertEquals(1, counting.calls.get());
+        assertEquals(1, files(directory()));
+
+        KeyManager restarted = new PersistentKeyManager(counting, directory(), hostKey(), Duration.ofHours(1));
+        assertArrayEquals(key, restarted.decrypt("id", new byte[]{1}, "k"));
+        assertEquals(1, counting.calls.get());
+
+        // a different secret name, ciphertext or key ID is a different key
+        restarted.decrypt("id", new byte[]{1}, "other");
+        restarted.decrypt("id", new byte[]{2}, "k");
+        restarted.decrypt("id2", new byte[]{1}, "k");
+        assertEquals(4, counting.calls.get());
+        assertEquals(4, files(directory()));
+    }
+
+    @Test
+    public void expires() throws IOException {
+        AtomicLong now = new AtomicLong(1000);
+        CountingKeyManager counting = new CountingKeyManager();
+        KeyManager cached = new PersistentKeyManager(counting, directory(), hostKey(), Duration.ofSeconds(60),
+                now::get);
+        cached.decrypt("id", new byte[]{1}, "k");
+        cached.decrypt("id2", new byte[]{1}, "k");
+        now.addAndGet(Duration.ofSeconds(59).toMillis());
+        cached.decrypt("id", new byte[]{1}, "k");
+        assertEquals(2, counting.calls.get());
+
+        now.addAndGet(Duration.ofSeconds(1).toMillis());
+        cached.decrypt("id", new byte[]{1}, "k");
+        assertEquals(3, counting.calls.get());
+
+        // opening the cache deletes the other expired file
+        assertEquals(2, files(directory()));
+        new PersistentKeyManager(counting, directory(), hostKey(), Duration.ofSeconds(60), now::get);
+        assertEquals(1, files(directory()));
+    }
+
+    @Test
+    public void rejectsTamperedFiles() throws IOException {
+        CountingKeyManager counting = new CountingKeyManager();
+        KeyManager cached = new PersistentKeyManager(counting, directory(), hostKey(), Duration.ofHours(1));
+        byte[] key = cached.decrypt("id", new byte[]{1}, "k");
+        Path file;
+        try (Stream<Path> files = Files.list(directory())) {
+            file = files.findFirst().get();
+        }
+        byte[] contents = Files.readAllBytes(file);
+        // extending the expiry invalidates the file
+        contents[0] ^= 0x01;
+        Files.write(file, contents);
+        assertArrayEquals(key, cached.decrypt("id", new byte[]{1}, "k"));
+        assertEquals(2, counting.calls.get());
+
+        // so does sealing with a different host key
+        byte[] otherHostKey = new byte[PersistentKeyManager.HOST_KEY_LENGTH];
+        KeyManager other = new PersistentKeyManager(counting, directory(), otherHostKey, Duration.ofHours(1));
+        assertArrayEquals(key, other.decrypt("id", new byte[]{1}, "k"));
+        assertEquals(3, counting.calls.get());
+    }
+
+    @Test
+    public void createsHostKey() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("host.key");
+        byte[] key = PersistentKeyManager.hostKey(path);
+        assertEquals(PersistentKeyManager.HOST_KEY_LENGTH, key.length);
+        assertArrayEquals(key, PersistentKeyManager.hostKey(path));
+        Files.write(path, new byte[16]);
+        try {
+            PersistentKeyManager.hostKey(path);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void checksHostKeyPermissions() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("host.key");
+        PersistentKeyManager.hostKey(path);
+        Assume.assumeTrue(Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class));
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(path));
+
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-r--r--"));
+        try {
+            PersistentKeyManager.hostKey(path);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void keepsExistingHostKey() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("host.key");
+        byte[] existing = new byte[PersistentKeyManager.HOST_KEY_LENGTH];
+        Arrays.fill(existing, (byte) 7);
+        Files.write(path, existing);
+        Assume.assumeTrue(Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class));
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        assertArrayEquals(existing, PersistentKeyManager.hostKey(path));
+        assertArrayEquals(existing, Files.readAllBytes(path));
+    }
+
+    @Test
+    public void biscuit() throws IOException {
+        String secrets = "k:\n- key_manager: testing\n" +
+                "  key_ciphertext: eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXl5eXk=\n" +
+                "  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n";
+        Path hostKeyFile = folder.getRoot().toPath().resolve("host.key");
+        CountingKeyManager counting = new CountingKeyManager();
+        for (int restart = 0; restart < 2; restart++) {
+            Biscuit biscuit = new Biscuit.Builder()
+                    .withKeyManager(counting)
+                    .withKeyCache(10, Duration.ofMinutes(5))
+                    .withPersistentKeyCache(directory(), hostKeyFile, Duration.ofHours(1))
+                    .build();
+            biscuit.read(new StringReader(secrets));
+            assertEquals("v-aesgcm256", biscuit.getString("k"));
+        }
+        assertEquals(1, counting.calls.get());
+    }
+}
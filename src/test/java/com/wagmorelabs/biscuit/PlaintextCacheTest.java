@@ -0,0 +1,154 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class PlaintextCacheTest {
+
+    @Test
+    public void expires() {
+        AtomicLong now = new AtomicLong();
+        PlaintextCache cache = new PlaintextCache(1024, Duration.ofSeconds(10), now::get);
+        cache.put("a", new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get("a").bytes());
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.retainedBytes());
+    }
+
+    @Test
+    public void boundedByBytes() {
+        AtomicLong now = new AtomicLong();
+        PlaintextCache cache = new PlaintextCache(10, Duration.ofSeconds(10), now::get);
+        cache.put("a", new byte[4]);
+        now.incrementAndGet();
+        cache.put("b", new byte[4]);
+        now.incrementAndGet();
+        cache.put("c", new byte[4]);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(8, cache.retainedBytes());
+
+        cache.put("huge", new byte[11]);
+        assertNull(cache.get("huge"));
+        assertEquals(8, cache.retainedBytes());
+    }
+
+    @Test
+    public void invalidate() {
+        PlaintextCache cache = new PlaintextCache(10, Duration.ofSeconds(10));
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals(4, cache.retainedBytes());
+        cache.invalidateAll();
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.retainedBytes());
+    }
+
+    @Test
+    public void discardsPlaintextsDecryptedBeforeInvalidation() {
+        PlaintextCache cache = new PlaintextCache(10, Duration.ofSeconds(10));
+        long a = cache.generation("a");
+        long b = cache.generation("b");
+        cache.invalidate("a");
+        assertNull(cache.put("a", new byte[4], a));
+        assertNull(cache.get("a"));
+        assertNotNull(cache.put("b", new byte[4], b));
+        assertNotNull(cache.put("a", new byte[4], cache.generation("a")));
+
+        b = cache.generation("b");
+        cache.invalidateAll();
+        assertNull(cache.put("b", new byte[4], b));
+        assertEquals(0, cache.retainedBytes());
+    }
+
+    @Test
+    public void biscuitDoesNotMemoizeAcrossReloads() throws Exception {
+        CountDownLatch decrypting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(new KeyManager() {
+                    @Override
+                    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                        decrypting.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+                    }
+
+                    @Override
+                    public String label() {
+                        return "testing";
+                    }
+                })
+                .withPlaintextCache(1024, Duration.ofMinutes(5))
+                .build();
+        biscuit.read(new StringReader("k:\n- key_manager: testing\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n"));
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> stale = pool.submit(() -> biscuit.getString("k"));
+            assertTrue(decrypting.await(30, TimeUnit.SECONDS));
+            biscuit.read(new StringReader("k:\n- algorithm: none\n  ciphertext: aGVsbG8=\n"));
+            release.countDown();
+            // the lookup that started before the reload may return the old value, but must not memoize it
+            assertEquals("v-aesgcm256", stale.get(30, TimeUnit.SECONDS));
+            assertEquals("hello", biscuit.getString("k"));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void biscuitMemoizes() {
+        AtomicInteger calls = new AtomicInteger();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(new KeyManager() {
+                    @Override
+                    public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                        calls.incrementAndGet();
+                        return new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+                    }
+
+                    @Override
+                    public String label() {
+                        return "testing";
+                    }
+                })
+                .withPlaintextCache(1024, Duration.ofMinutes(5))
+                .build();
+        biscuit.read(new StringReader("k:\n- key_manager: testing\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n"));
+        assertEquals("v-aesgcm256", biscuit.getString("k"));
+        assertSame(biscuit.getString("k"), biscuit.getString("k"));
+        byte[] plaintext = biscuit.get("k");
+        plaintext[0] = 0;
+        assertEquals("v-aesgcm256", new String(biscuit.get("k")));
+        assertEquals(1, calls.get());
+
+        biscuit.invalidate("k");
+        assertEquals("v-aesgcm256", biscuit.getString("k"));
+        assertEquals(2, calls.get());
+
+        biscuit.read(new StringReader("k:\n- algorithm: none\n  ciphertext: aGVsbG8=\n"));
+        assertEquals("hello", biscuit.getString("k"));
+    }
+}
@@ -0,0 +1,253 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RefreshAheadTest {
+    private static final long WINDOW = Duration.ofSeconds(10).toNanos();
+
+    /**
+     * FakeTarget reports the remaining lifetimes it is given and records refreshes.
+     */
+    private static class FakeTarget implements RefreshAhead.Target {
+        final Map<String, Long> remaining = new ConcurrentHashMap<>();
+        final BlockingQueue<String> refreshed = new LinkedBlockingQueue<>();
+
+        @Override
+        public long remainingNanos(String name) {
+            return remaining.getOrDefault(name, -1L);
+        }
+
+        @Override
+        public void refresh(String name) throws GeneralSecurityException {
+            refreshed.add(name);
+        }
+    }
+
+    private static RefreshAhead refreshAhead(FakeTarget target) {
+        return new RefreshAhead(target, Duration.ofNanos(WINDOW), 2, new Random(1));
+    }
+
+    @Test
+    public void refreshesHotSecretsBeforeExpiry() throws InterruptedException {
+        FakeTarget target = new FakeTarget();
+        try (RefreshAhead refresher = refreshAhead(target)) {
+            target.remaining.put("a", 2 * WINDOW);
+            refresher.accessed("a");
+            refresher.accessed("a");
+            refresher.tick();
+            assertNull(target.refreshed.poll(50, TimeUnit.MILLISECONDS));
+
+            target.remaining.put("a", WINDOW / 4);
+            refresher.accessed("a");
+            refresher.tick();
+            assertEquals("a", target.refreshed.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void ignoresColdSecrets() throws InterruptedException {
+        FakeTarget target = new FakeTarget();
+        try (RefreshAhead refresher = refreshAhead(target)) {
+            target.remaining.put("a", 0L);
+            refresher.accessed("a");
+            refresher.tick();
+            assertEquals("a", target.refreshed.poll(5, TimeUnit.SECONDS));
+
+            // no further lookups: the score halves every tick until the secret is forgotten
+            refresher.tick();
+            assertEquals(0.5, refresher.score("a"), 0);
+            for (int i = 0; i < 10; i++) {
+                refresher.tick();
+            }
+            assertEquals(0, refresher.score("a"), 0);
+            assertEquals(-1, refresher.leadNanos("a"));
+            assertNull(target.refreshed.poll(50, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void ignoresUncachedSecrets() throws InterruptedException {
+        FakeTarget target = new FakeTarget();
+        try (RefreshAhead refresher = refreshAhead(target)) {
+            refresher.accessed("a");
+            refresher.accessed("a");
+            refresher.tick();
+            assertFalse(refresher.refreshing("a"));
+            assertNull(target.refreshed.poll(50, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void jittersLeadTimes() {
+        try (RefreshAhead refresher = refreshAhead(new FakeTarget())) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < 100; i++) {
+                refresher.accessed("secret-" + i);
+                long lead = refresher.leadNanos("secret-" + i);
+                assertTrue(lead > WINDOW / 2 && lead <= WINDOW);
+                min = Math.min(min, lead);
+                max = Math.max(max, lead);
+            }
+            assertTrue(max - min > WINDOW / 4);
+        }
+    }
+
+    @Test
+    public void oneRefreshInFlightPerSecret() throws InterruptedException {
+        AtomicInteger refreshes = new AtomicInteger();
+        Object gate = new Object();
+        RefreshAhead.Target target = new RefreshAhead.Target() {
+            @Override
+            public long remainingNanos(String name) {
+                return 0;
+            }
+
+            @Override
+            public void refresh(String name) {
+                refreshes.incrementAndGet();
+                synchronized (gate) {
+                    // blocks until the test releases the gate
+                }
+            }
+        };
+        try (RefreshAhead refresher = new RefreshAhead(target, Duration.ofNanos(WINDOW), 4)) {
+            synchronized (gate) {
+                for (int i = 0; i < 5; i++) {
+                    refresher.accessed("a");
+                    refresher.tick();
+                }
+                Thread.sleep(50);
+                assertEquals(1, refreshes.get());
+            }
+        }
+    }
+
+    private static KeyManager countingKeyManager(AtomicInteger keyRequests) {
+        return new KeyManager() {
+            @Override
+            public byte[] decrypt(String keyID, byte[] keyCiphertext, String secretName) {
+                keyRequests.incrementAndGet();
+                return new TestingKeyManager().decrypt(keyID, keyCiphertext, secretName);
+            }
+
+            @Override
+            public String label() {
+                return "testing";
+            }
+        };
+    }
+
+    private static void read(Biscuit biscuit) {
+        biscuit.read(new StringReader("k:\n- key_manager: testing\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7s\n"));
+    }
+
+    private static void awaitRefresh(RefreshAhead refresher, String name) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (refresher.refreshing(name)) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void biscuitKeepsPlaintextsWarm() throws IOException, InterruptedException {
+        AtomicInteger keyRequests = new AtomicInteger();
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        // the caches expire well within the lead time, so every tick finds the secret due; ticks are run by the test
+        Biscuit biscuit = new Biscuit.Builder()
+                .withKeyManager(countingKeyManager(keyRequests))
+                .withKeyCache(16, Duration.ofMinutes(20))
+                .withPlaintextCache(1024, Duration.ofMinutes(20))
+                .withMetrics(metrics)
+                .build();
+        read(biscuit);
+        assertEquals("v-aesgcm256", biscuit.getString("k"));
+        Closeable refreshing = biscuit.refreshAhead(Duration.ofHours(1), 1);
+        try {
+            try {
+                biscuit.refreshAhead(Duration.ofHours(1), 1);
+                fail();
+            } catch (IllegalStateException expectedException) {
+            }
+            RefreshAhead refresher = biscuit.refresher();
+            for (int i = 0; i < 3; i++) {
+                assertEquals("v-aesgcm256", biscuit.getString("k"));
+                assertEquals("v-aesgcm256", biscuit.getString("k"));
+                refresher.tick();
+                awaitRefresh(refresher, "k");
+            }
+        } finally {
+            refreshing.close();
+        }
+        assertNull(biscuit.refresher());
+        // the first lookup missed; each refresh fetched the key again and replaced the memo
+        assertEquals(1, metrics.plaintextCacheMisses());
+        assertEquals(4, keyRequests.get());
+    }
+
+    @Test
+    public void biscuitRefreshesKeysOfSecretsLargerThanThePlaintextCache() throws IOException, InterruptedException {
+        AtomicInteger keyRequests = new AtomicInteger();
+        Biscuit plaintextsOnly = new Biscuit.Builder()
+                .withKeyManager(countingKeyManager(keyRequests))
+                .withPlaintextCache(4, Duration.ofMinutes(20))
+                .build();
+        read(plaintextsOnly);
+        Closeable refreshing = plaintextsOnly.refreshAhead(Duration.ofHours(1), 1);
+        try {
+            assertEquals("v-aesgcm256", plaintextsOnly.getString("k"));
+            assertEquals("v-aesgcm256", plaintextsOnly.getString("k"));
+            // nothing is cached, so there is nothing to refresh
+            plaintextsOnly.refresher().tick();
+            assertFalse(plaintextsOnly.refresher().refreshing("k"));
+        } finally {
+            refreshing.close();
+        }
+        assertEquals(2, keyRequests.get());
+
+        keyRequests.set(0);
+        Biscuit withKeyCache = new Biscuit.Builder()
+                .withKeyManager(countingKeyManager(keyRequests))
+                .withKeyCache(16, Duration.ofMinutes(20))
+                .withPlaintextCache(4, Duration.ofMinutes(20))
+                .build();
+        read(withKeyCache);
+        refreshing = withKeyCache.refreshAhead(Duration.ofHours(1), 1);
+        try {
+            assertEquals("v-aesgcm256", withKeyCache.getString("k"));
+            assertEquals("v-aesgcm256", withKeyCache.getString("k"));
+            // the key is cached even though the plaintext is not
+            withKeyCache.refresher().tick();
+            awaitRefresh(withKeyCache.refresher(), "k");
+        } finally {
+            refreshing.close();
+        }
+        assertEquals(2, keyRequests.get());
+    }
+
+    @Test
+    public void biscuitRequiresCache() {
+        try {
+            new Biscuit.Builder().build().refreshAhead(Duration.ofSeconds(1), 1);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -2,11 +2,16 @@ package com.wagmorelabs.biscuit;
 
 import org.junit.Test;
 
+import javax.crypto.AEADBadTagException;
 import javax.xml.bind.DatatypeConverter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class SecretBoxTest {
     // From https://github.com/golang/crypto/blob/master/nacl/secretbox/secretbox_test.go
@@ -24,4 +29,111 @@ public class SecretBoxTest {
                 "4f6276cf6093b84be77ff0849cc33e34b7254d5a8f65ad");
         assertArrayEquals(message, new SecretBox().decrypt(key, result));
     }
+
+    // From tests/secretbox.c and tests/secretbox2.c in the NaCl distribution
+    private static final String NACL_KEY = "1b27556473e985d462cd51197a9a46c76009549eac6474f206c4ee0844f68389";
+    private static final String NACL_NONCE = "69696ee955b62b73cd62bda875fc73d68219e0036b7a0b37";
+    private static final String NACL_MESSAGE =
+            "be075fc53c81f2d5cf141316ebeb0c7b5228c52a4c62cbd44b66849b64244ffc" +
+            "e5ecbaaf33bd751a1ac728d45e6c61296cdc3c01233561f41db66cce314adb31" +
+            "0e3be8250c46f06dceea3a7fa1348057e2f6556ad6b1318a024a838f21af1fde" +
+            "048977eb48f59ffd4924ca1c60902e52f0a089bc76897040e082f93776384864" +
+            "5e0705";
+    private static final String NACL_BOX =
+            "f3ffc7703f9400e52a7dfb4b3d3305d98e993b9f48681273c29650ba32fc76ce" +
+            "48332ea7164d96a4476fb8c531a1186ac0dfc17c98dce87b4da7f011ec48c972" +
+            "71d2c20f9b928fe2270d6fb863d51738b48eeee314a7cc8ab932164548e526ae" +
+            "90224368517acfeabd6bb3732bc0e9da99832b61ca01b6de56244a9e88d5f9b3" +
+            "7973f622a43d14a6599b1f654cb45a74e355a5";
+
+    @Test
+    public void nacl() throws GeneralSecurityException {
+        byte[] key = DatatypeConverter.parseHexBinary(NACL_KEY);
+        byte[] ciphertext = DatatypeConverter.parseHexBinary(NACL_NONCE + NACL_BOX);
+        assertArrayEquals(DatatypeConverter.parseHexBinary(NACL_MESSAGE), new SecretBox().decrypt(key, ciphertext));
+    }
+
+    @Test
+    public void seal() {
+        byte[] key = DatatypeConverter.parseHexBinary(NACL_KEY);
+        byte[] message = DatatypeConverter.parseHexBinary(NACL_MESSAGE);
+        ByteBuffer box = ByteBuffer.allocate(message.length + XSalsa20Poly1305.TAG_LENGTH);
+        new XSalsa20Poly1305().seal(key, ByteBuffer.wrap(DatatypeConverter.parseHexBinary(NACL_NONCE)),
+                ByteBuffer.wrap(message), box);
+        assertArrayEquals(DatatypeConverter.parseHexBinary(NACL_BOX), box.array());
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void tampered() throws GeneralSecurityException {
+        byte[] ciphertext = DatatypeConverter.parseHexBinary(NACL_NONCE + NACL_BOX);
+        ciphertext[ciphertext.length - 1] ^= 1;
+        new SecretBox().decrypt(DatatypeConverter.parseHexBinary(NACL_KEY), ciphertext);
+    }
+
+    @Test
+    public void encrypt() throws GeneralSecurityException {
+        SecretBox algorithm = new SecretBox();
+        byte[] key = DatatypeConverter.parseHexBinary(NACL_KEY);
+        byte[] message = DatatypeConverter.parseHexBinary(NACL_MESSAGE);
+        byte[] ciphertext = algorithm.encrypt(key, message);
+        assertEquals(message.length, algorithm.plaintextLength(ciphertext.length));
+        assertArrayEquals(message, algorithm.decrypt(key, ciphertext));
+        assertArrayEquals(new byte[0], algorithm.decrypt(key, algorithm.encrypt(key, new byte[0])));
+    }
+
+    @Test
+    public void stream() throws GeneralSecurityException {
+        SecretBox algorithm = new SecretBox();
+        byte[] key = DatatypeConverter.parseHexBinary(NACL_KEY);
+        byte[] box = DatatypeConverter.parseHexBinary(NACL_NONCE + NACL_BOX);
+        Algorithm.Decryption decryption = algorithm.open(key, ByteBuffer.wrap(box));
+        assertEquals(NACL_MESSAGE.length() / 2, decryption.remaining());
+        ByteBuffer plaintext = ByteBuffer.allocate(decryption.remaining());
+        ByteBuffer chunk = ByteBuffer.allocate(7);
+        while (decryption.read(chunk) >= 0) {
+            chunk.flip();
+            plaintext.put(chunk);
+            chunk.clear();
+        }
+        assertArrayEquals(DatatypeConverter.parseHexBinary(NACL_MESSAGE), plaintext.array());
+        decryption.destroy();
+
+        box[box.length - 1] ^= 1;
+        try {
+            algorithm.open(key, ByteBuffer.wrap(box));
+            fail();
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void tooShort() throws GeneralSecurityException {
+        new SecretBox().decrypt(new byte[32], new byte[39]);
+    }
+
+    @Test
+    public void emptyMessage() throws GeneralSecurityException {
+        byte[] key = new byte[32];
+        ByteBuffer nonce = ByteBuffer.allocate(24);
+        ByteBuffer box = ByteBuffer.allocate(40);
+        box.position(24);
+        new XSalsa20Poly1305().seal(key, nonce, ByteBuffer.allocate(0), box);
+        assertArrayEquals(new byte[0], new SecretBox().decrypt(key, box.array()));
+    }
+
+    // RFC 8439, section 2.5.2
+    @Test
+    public void poly1305() {
+        XSalsa20Poly1305.Poly1305 poly1305 = new XSalsa20Poly1305.Poly1305();
+        poly1305.init(DatatypeConverter.parseHexBinary(
+                "85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b"));
+        byte[] message = "Cryptographic Forum Research Group".getBytes(Charset.forName("UTF-8"));
+        // feed the message in uneven pieces to exercise buffering
+        poly1305.update(ByteBuffer.wrap(message), 0, 5);
+        poly1305.update(ByteBuffer.wrap(message), 5, 20);
+        poly1305.update(ByteBuffer.wrap(message), 25, message.length - 25);
+        byte[] tag = new byte[16];
+        poly1305.finish(tag);
+        assertArrayEquals(DatatypeConverter.parseHexBinary("a8061dc1305136c6c22b8baf0c0127a9"), tag);
+    }
 }
@@ -0,0 +1,85 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class SecretHandleTest {
+
+    private static Biscuit biscuit() {
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.read(new InputStreamReader(SecretHandleTest.class.getResourceAsStream("secrets.yml"),
+                Charset.forName("UTF-8")));
+        return biscuit;
+    }
+
+    @Test
+    public void decryptsOffHeap() throws GeneralSecurityException, CharacterCodingException {
+        Biscuit biscuit = biscuit();
+        for (String algo : new String[]{"none", "aesgcm256", "secretbox"}) {
+            try (SecretHandle handle = biscuit.getHandle("k-" + algo)) {
+                assertTrue(handle.asReadOnlyBuffer().isDirect());
+                assertTrue(handle.asReadOnlyBuffer().isReadOnly());
+                CharBuffer chars = CharBuffer.allocate(32);
+                assertEquals(("v-" + algo).length(), handle.decodeUtf8(chars));
+                chars.flip();
+                assertEquals("v-" + algo, chars.toString());
+            }
+            try (SecretHandle handle = biscuit.getHandle("k-" + algo + "-big")) {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                md5.update(handle.asReadOnlyBuffer());
+                assertArrayEquals(DatatypeConverter.parseHexBinary("748c617aaee4b9263761ed851769a314"),
+                        md5.digest());
+            }
+        }
+        assertNull(biscuit.getHandle("404"));
+    }
+
+    @Test
+    public void closeZeroes() {
+        Biscuit biscuit = biscuit();
+        SecretHandle handle = biscuit.getHandle("k-aesgcm256");
+        ByteBuffer view = handle.asReadOnlyBuffer();
+        assertEquals('v', view.get(0));
+        handle.close();
+        assertTrue(handle.isClosed());
+        for (int i = 0; i < view.limit(); i++) {
+            assertEquals(0, view.get(i));
+        }
+        handle.close();
+        try {
+            handle.size();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void decodeOverflow() throws CharacterCodingException {
+        try (SecretHandle handle = biscuit().getHandle("k-none")) {
+            handle.decodeUtf8(CharBuffer.allocate(2));
+        }
+    }
+
+    @Test(expected = CharacterCodingException.class)
+    public void decodeMalformed() throws CharacterCodingException {
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.read(new StringReader("k:\n- algorithm: none\n  ciphertext: /w==\n"));
+        try (SecretHandle handle = biscuit.getHandle("k")) {
+            assertEquals(1, handle.size());
+            handle.decodeUtf8(CharBuffer.allocate(8));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SecretSourceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String secret(String name, String base64) {
+        return name + ":\n- algorithm: none\n  ciphertext: " + base64 + "\n";
+    }
+
+    private static Path write(Path path, String yaml) throws IOException {
+        Files.createDirectories(path.getParent());
+        return Files.write(path, yaml.getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static List<String> descriptions(SecretSource source) throws IOException {
+        List<String> descriptions = new ArrayList<>();
+        for (SecretSource.Document document : source.documents()) {
+            descriptions.add(document.description());
+        }
+        return descriptions;
+    }
+
+    @Test
+    public void directoryGlob() throws IOException {
+        Path root = folder.getRoot().toPath();
+        Path b = write(root.resolve("b.yml"), secret("b", "Yg=="));
+        Path a = write(root.resolve("a.yml"), secret("a", "YQ=="));
+        write(root.resolve("notes.txt"), "not secrets");
+        Path nested = write(root.resolve("service/c.yml"), secret("c", "Yw=="));
+
+        assertEquals(Arrays.asList(a.toString(), b.toString()),
+                descriptions(SecretSource.directory(root, "*.yml")));
+        assertEquals(Arrays.asList(nested.toString()), descriptions(SecretSource.directory(root, "**/*.yml")));
+        assertTrue(descriptions(SecretSource.directory(root, "*.yaml")).isEmpty());
+    }
+
+    @Test
+    public void classpathLayers() throws IOException {
+        Path app = folder.newFolder("app").toPath();
+        Path library = folder.newFolder("library").toPath();
+        write(app.resolve("secrets/default.yml"), secret("shared", "YXBw") + secret("app", "YQ=="));
+        write(library.resolve("secrets/default.yml"), secret("shared", "bGlicmFyeQ==") + secret("library", "bA=="));
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[]{app.toUri().toURL(), library.toUri().toURL()}, null)) {
+            Biscuit biscuit = new Biscuit.Builder()
+                    .withSource(SecretSource.classpath(loader, "secrets/default.yml"))
+                    .build();
+            assertEquals("app", biscuit.getString("shared"));
+            assertEquals("a", biscuit.getString("app"));
+            assertEquals("l", biscuit.getString("library"));
+
+            try {
+                SecretSource.classpath(loader, "secrets/missing.yml").documents();
+                fail();
+            } catch (FileNotFoundException expected) {
+            }
+        }
+        assertEquals(1, descriptions(SecretSource.classpath("com/wagmorelabs/biscuit/secrets.yml")).size());
+    }
+
+    @Test
+    public void precedence() throws IOException {
+        Path root = folder.getRoot().toPath();
+        for (int i = 0; i < 20; i++) {
+            write(root.resolve(String.format("services/%02d.yml", i)),
+                    secret("service-" + i, "cw==") + secret("shared", "c2VydmljZQ=="));
+        }
+        Path overrides = write(root.resolve("overrides.yml"), secret("shared", "b3ZlcnJpZGU="));
+        List<Set<String>> changes = new ArrayList<>();
+        Biscuit biscuit = new Biscuit.Builder()
+                .withChangeListener((changed, removed) -> changes.add(new HashSet<>(changed)))
+                .withSource(SecretSource.inMemory("defaults", secret("shared", "ZGVmYXVsdA==") +
+                        secret("default-only", "ZA==")))
+                .withSource(SecretSource.directory(root.resolve("services"), "*.yml"))
+                .withSource(SecretSource.file(overrides))
+                .build();
+        assertEquals("override", biscuit.getString("shared"));
+        assertEquals("d", biscuit.getString("default-only"));
+        for (int i = 0; i < 20; i++) {
+            assertEquals("s", biscuit.getString("service-" + i));
+        }
+        // all sources are published together
+        assertEquals(1, changes.size());
+        assertEquals(22, changes.get(0).size());
+    }
+
+    @Test
+    public void failedSourcePublishesNothing() throws IOException {
+        Path root = folder.getRoot().toPath();
+        Path good = write(root.resolve("good.yml"), secret("good", "Zw=="));
+        Path bad = write(root.resolve("bad.yml"), "bad: [unterminated");
+        Biscuit biscuit = new Biscuit.Builder().build();
+        try {
+            biscuit.load(Arrays.asList(SecretSource.file(good), SecretSource.file(bad),
+                    SecretSource.file(root.resolve("missing.yml"))));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bad.yml"));
+            assertEquals(1, e.getSuppressed().length);
+            assertTrue(e.getSuppressed()[0].getMessage().contains("missing.yml"));
+        }
+        assertNull(biscuit.getString("good"));
+
+        try {
+            new Biscuit.Builder().withSource(SecretSource.file(bad)).build();
+            fail();
+        } catch (UncheckedIOException expected) {
+        }
+    }
+}
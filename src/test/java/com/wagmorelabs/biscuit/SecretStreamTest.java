@@ -0,0 +1,104 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class SecretStreamTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String BIG_MD5 = "748c617aaee4b9263761ed851769a314";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Biscuit biscuit() {
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.read(new InputStreamReader(SecretStreamTest.class.getResourceAsStream("secrets.yml"), UTF8));
+        return biscuit;
+    }
+
+    private static String md5(SecretStream stream) throws IOException, GeneralSecurityException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+        while (stream.read(buffer) >= 0) {
+            buffer.flip();
+            md5.update(buffer);
+            buffer.clear();
+        }
+        return DatatypeConverter.printHexBinary(md5.digest()).toLowerCase();
+    }
+
+    @Test
+    public void inputStream() throws IOException {
+        Biscuit biscuit = biscuit();
+        for (String algo : new String[]{"none", "aesgcm256", "secretbox"}) {
+            try (SecretStream stream = biscuit.openStream("k-" + algo)) {
+                assertEquals(("v-" + algo).length(), stream.size());
+                assertEquals('v', stream.read());
+                ByteArrayOutputStream rest = new ByteArrayOutputStream();
+                byte[] buffer = new byte[3];
+                int n;
+                while ((n = stream.read(buffer)) >= 0) {
+                    rest.write(buffer, 0, n);
+                }
+                assertEquals("-" + algo, new String(rest.toByteArray(), UTF8));
+                assertEquals(-1, stream.read());
+                assertEquals(0, stream.available());
+            }
+        }
+        assertNull(biscuit.openStream("404"));
+    }
+
+    @Test
+    public void channel() throws IOException, GeneralSecurityException {
+        Biscuit yaml = biscuit();
+        Path path = folder.newFile().toPath();
+        MappedStore.compile(new InputStreamReader(getClass().getResourceAsStream("secrets.yml"), UTF8), path);
+        Biscuit mapped = new Biscuit.Builder().build();
+        mapped.readMapped(path);
+        for (Biscuit biscuit : new Biscuit[]{yaml, mapped}) {
+            for (String algo : new String[]{"none", "aesgcm256", "secretbox"}) {
+                try (SecretStream stream = biscuit.openStream("k-" + algo + "-big")) {
+                    assertEquals(yaml.get("k-" + algo + "-big").length, stream.size());
+                    assertEquals(BIG_MD5, md5(stream));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tamperedSecretIsNotOpened() {
+        Biscuit biscuit = new Biscuit.Builder().build();
+        biscuit.read(new StringReader("k:\n- key_manager: testing\n  algorithm: aesgcm256\n" +
+                "  ciphertext: lv5UjbEwUkYIdFbkyShZfqnWRNeQGQL0V4SU8JL1XZuzOuK7eF7t\n"));
+        assertNull(biscuit.openStream("k"));
+    }
+
+    @Test
+    public void close() throws IOException {
+        SecretStream stream = biscuit().openStream("k-secretbox");
+        assertTrue(stream.isOpen());
+        stream.close();
+        stream.close();
+        assertFalse(stream.isOpen());
+        try {
+            stream.read();
+            fail();
+        } catch (ClosedChannelException expected) {
+        }
+    }
+}
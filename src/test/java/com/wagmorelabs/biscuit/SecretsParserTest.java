@@ -0,0 +1,74 @@
+package com.wagmorelabs.biscuit;
+
+import org.junit.Test;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SecretsParserTest {
+
+    private static Map<String, List<Map<String, String>>> parse(String document) {
+        Map<String, List<Map<String, String>>> secrets = new LinkedHashMap<>();
+        SecretsParser.parse(new StringReader(document), secrets::put);
+        return secrets;
+    }
+
+    @Test
+    public void yaml() {
+        Map<String, List<Map<String, String>>> secrets = parse("a:\n" +
+                "- key_manager: kms\n  key_id: ~\n  algorithm: secretbox\n  ciphertext: ''\n" +
+                "- algorithm: none\n  ciphertext: 123\n" +
+                "b: []\n");
+        assertEquals(2, secrets.size());
+        List<Map<String, String>> a = secrets.get("a");
+        assertEquals(2, a.size());
+        assertEquals("kms", a.get(0).get("key_manager"));
+        assertFalse(a.get(0).containsKey("key_id"));
+        assertEquals("", a.get(0).get("ciphertext"));
+        assertEquals("123", a.get(1).get("ciphertext"));
+        assertTrue(secrets.get("b").isEmpty());
+    }
+
+    @Test
+    public void emptyKeyID() {
+        Map<String, String> entry = parse("k:\n- key_id: ''\n  key_manager: testing\n").get("k").get(0);
+        assertEquals("", entry.get("key_id"));
+        assertEquals("", Biscuit.Field.KEY_ID.get(entry));
+        entry.remove("key_id");
+        assertEquals("", Biscuit.Field.KEY_ID.get(entry));
+    }
+
+    @Test
+    public void json() {
+        Map<String, List<Map<String, String>>> secrets = parse(
+                "{\"k\": [{\"algorithm\": \"none\", \"ciphertext\": \"aGVsbG8=\", \"key_id\": null}]}");
+        assertEquals("aGVsbG8=", secrets.get("k").get(0).get("ciphertext"));
+        assertEquals(2, secrets.get("k").get(0).size());
+    }
+
+    @Test
+    public void empty() {
+        assertTrue(parse("").isEmpty());
+        assertTrue(parse("---\n").isEmpty());
+    }
+
+    @Test(expected = YAMLException.class)
+    public void notAList() {
+        parse("k:\n  algorithm: none\n");
+    }
+
+    @Test(expected = YAMLException.class)
+    public void nestedValue() {
+        parse("k:\n- algorithm: [none]\n");
+    }
+
+    @Test(expected = YAMLException.class)
+    public void multipleDocuments() {
+        parse("k: []\n---\nj: []\n");
+    }
+}